@@ -0,0 +1,226 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A local Maven repository shared by all builds.
+ * <p>
+ * Builds never write to the shared repository. Every job resolves through
+ * its own empty overlay with {@code -Dmaven.repo.local}, and reads the
+ * shared repository as a read-only tail with
+ * {@code -Dmaven.repo.local.tail}, which needs Maven 3.9 or later. When the
+ * job finishes, the artifacts it downloaded are moved into the shared
+ * repository, one atomic rename per file, so concurrent builds never see a
+ * partially written artifact.
+ * <p>
+ * The first push of a repository warms the shared repository in the
+ * background with {@code mvn dependency:go-offline} while the job waits in
+ * the queue. Its output goes to {@code warmup/<owner>/<repo>.log}.
+ */
+public class ArtifactCache {
+
+    private final File shared;
+    private final File overlays;
+    private final File warmupLogs;
+    private final Set<String> warmed = ConcurrentHashMap.newKeySet();
+    private final ExecutorService warmer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ci-artifact-warmup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A writable local repository of one job, layered over the shared one.
+     */
+    public final class Overlay implements AutoCloseable {
+        private final File directory;
+
+        private Overlay(File directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Returns the Maven options that make a build use this overlay.
+         *
+         * @return the options
+         */
+        public String getOptions() {
+            return "-Dmaven.repo.local=" + directory.getAbsolutePath()
+                    + " -Dmaven.repo.local.tail=" + shared.getAbsolutePath();
+        }
+
+        /**
+         * Moves the downloaded artifacts into the shared repository and
+         * deletes the overlay.
+         */
+        @Override
+        public void close() {
+            try {
+                promote(directory);
+            } catch (IOException e) {
+                System.out.println("Failed to share downloaded artifacts: " + e.getMessage());
+            }
+            WorkspaceManager.delete(directory);
+        }
+    }
+
+    /**
+     * Creates a cache in a directory. Several servers may share the
+     * directory, so the overlays of every server are kept apart by its
+     * process id, and only the overlays of servers that are no longer
+     * running are deleted.
+     *
+     * @param root the directory of the shared repository ({@code shared/}),
+     *             the overlays ({@code jobs/<pid>/}) and the logs of the
+     *             warm-ups ({@code warmup/})
+     */
+    public ArtifactCache(File root) {
+        File jobs = new File(root, "jobs");
+        long pid = ProcessHandle.current().pid();
+        this.shared = new File(root, "shared");
+        this.overlays = new File(jobs, String.valueOf(pid));
+        this.warmupLogs = new File(root, "warmup");
+        shared.mkdirs();
+        File[] servers = jobs.listFiles();
+        for (File server : servers == null ? new File[0] : servers) {
+            if (!isRunning(server.getName(), pid)) {
+                WorkspaceManager.delete(server);
+            }
+        }
+        overlays.mkdirs();
+    }
+
+    private static boolean isRunning(String name, long self) {
+        try {
+            long pid = Long.parseLong(name);
+            return pid != self && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the cache configured by {@code ci.artifacts.dir} if
+     * {@code ci.artifacts} is true.
+     *
+     * @return the cache, or null if builds use the local repository of the
+     *         user running the server
+     */
+    public static ArtifactCache fromConfig() {
+        if (!Boolean.parseBoolean(Config.get("artifacts", "false"))) {
+            return null;
+        }
+        return new ArtifactCache(new File(Config.get("artifacts.dir",
+                new File(WorkspaceManager.configuredRoot(), "m2").getPath())));
+    }
+
+    public File getShared() {
+        return shared;
+    }
+
+    /**
+     * Creates the overlay of a job.
+     *
+     * @param name a name unique among running jobs, such as the job id
+     * @return the overlay, to be closed when the job is done
+     */
+    public Overlay open(String name) {
+        File directory = new File(overlays, name);
+        WorkspaceManager.delete(directory);
+        directory.mkdirs();
+        return new Overlay(directory);
+    }
+
+    /**
+     * Resolves the dependencies of a repository into the shared repository
+     * in the background, once per repository and server run. The warm-up
+     * always runs plain Maven and is not a build of the repository, so it
+     * does not count towards the builds of its Maven daemons.
+     *
+     * @param workspaces the workspaces to check the commit out in
+     * @param url        the clone URL of the repository
+     * @param ref        the pushed ref
+     * @param commitSHA  the pushed commit
+     */
+    public void warmUp(WorkspaceManager workspaces, String url, String ref, String commitSHA) {
+        String repoName = ContinuousIntegrationServer.getRepoName(url);
+        String repoKey = MirrorCache.repoKey(url);
+        if (!warmed.add(repoKey)) {
+            return;
+        }
+        warmer.execute(() -> {
+            long start = System.currentTimeMillis();
+            File log = new File(warmupLogs, repoKey + ".log");
+            try (Overlay overlay = open("warmup-" + repoKey.replace('/', '-'));
+                    WorkspaceManager.Workspace workspace = workspaces.acquire(url, ref, commitSHA)) {
+                File dir = workspace.getDirectory();
+                Files.createDirectories(log.getParentFile().toPath());
+                Process process = ProcessSupervisor.forRepo(repoName).start(new ProcessBuilder(
+                        MavenProcessRunner.INSTANCE.command(dir, repoKey,
+                                overlay.getOptions() + " --batch-mode dependency:go-offline"))
+                        .directory(dir).redirectErrorStream(true));
+                try (OutputStream out = Files.newOutputStream(log.toPath())) {
+                    process.getInputStream().transferTo(out);
+                }
+                int exitCode = process.waitFor();
+                System.out.println("Warmed up the dependencies of " + repoKey + " in "
+                        + (System.currentTimeMillis() - start) + " ms, Maven exited with " + exitCode + ", see " + log);
+            } catch (Exception e) {
+                System.out.println("Failed to warm up the dependencies of " + repoKey + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Moves the files of an overlay that the shared repository does not have
+     * yet into it.
+     *
+     * @param overlay the overlay
+     * @return the number of files moved
+     * @throws IOException if the overlay could not be read
+     */
+    synchronized int promote(File overlay) throws IOException {
+        if (!overlay.isDirectory()) {
+            return 0;
+        }
+        Path from = overlay.toPath();
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(from)) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        int moved = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            // failed downloads and update checks only concern this job
+            if (name.endsWith(".lastUpdated") || name.equals("resolver-status.properties")
+                    || name.endsWith(".part") || name.endsWith(".lock")) {
+                continue;
+            }
+            Path target = shared.toPath().resolve(from.relativize(file));
+            if (Files.exists(target)) {
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                moved++;
+            } catch (FileAlreadyExistsException e) {
+                // shared by another job in the meantime
+            }
+        }
+        return moved;
+    }
+}
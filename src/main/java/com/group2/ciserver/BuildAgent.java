@@ -0,0 +1,446 @@
+package com.group2.ciserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A build agent of a {@link BuildFarm}. It registers with the coordinator,
+ * pulls a job whenever one of its slots is free, builds it in its own
+ * workspaces and sends the events, log lines and build record of the job
+ * back over HTTP.
+ * <p>
+ * Heartbeats tell the coordinator the agent is alive and bring back the jobs
+ * it must stop, such as superseded ones. When the coordinator has forgotten
+ * the agent, its jobs were given to other agents, so the agent stops them and
+ * registers again.
+ */
+public class BuildAgent implements Closeable {
+
+    // the longest a poll waits on the coordinator for a job
+    private static final long POLL_MILLIS = 20000;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final int MAX_LOG_CHUNK = 256 * 1024;
+
+    /**
+     * Builds the push of a job on the thread of the job, writing the log of
+     * the job and posting its events.
+     */
+    public interface Builder {
+        /**
+         * Builds a push.
+         *
+         * @param push the push
+         * @return the build record, or null if there is nothing to report
+         */
+        JSONObject build(PushEvent push);
+    }
+
+    /**
+     * A job being built and how much of its log was sent.
+     */
+    private static final class Running {
+        final BuildJob job;
+        final File log;
+        long logOffset;
+
+        Running(BuildJob job, File log) {
+            this.job = job;
+            this.log = log;
+            this.logOffset = log.length();
+        }
+    }
+
+    private final String coordinator;
+    private final String name;
+    private final String token;
+    private final File logDir;
+    private final JobQueue jobs;
+    private final EventBus events;
+    private final Builder builder;
+    private final Semaphore slots;
+    private final HttpClient client;
+    private final Map<Long, Running> running = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ci-agent");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile String agentId = null;
+    private volatile long heartbeatMillis = 2000;
+    private volatile boolean closed = false;
+    private volatile Thread poller;
+
+    /**
+     * Creates an agent. It does nothing until {@link #run()} or
+     * {@link #start()} is called.
+     *
+     * @param coordinator the base URL of the coordinator, such as
+     *                    "http://ci.example.com:8080"
+     * @param name        the name the agent is listed under
+     * @param token       the token of the farm, or null
+     * @param logDir      the directory the builder writes the job logs to
+     * @param jobs        the queue running the jobs, whose workers are the
+     *                    slots of the agent
+     * @param events      the bus the builder posts the job events on
+     * @param builder     the builder of the pushes
+     */
+    public BuildAgent(String coordinator, String name, String token, File logDir, JobQueue jobs, EventBus events,
+            Builder builder) {
+        this.coordinator = coordinator.endsWith("/") ? coordinator.substring(0, coordinator.length() - 1)
+                : coordinator;
+        this.name = name;
+        this.token = token == null || token.isEmpty() ? null : token;
+        this.logDir = logDir;
+        this.jobs = jobs;
+        this.events = events;
+        this.builder = builder;
+        this.slots = new Semaphore(jobs.getWorkerCount());
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        events.subscribe(this::forward);
+    }
+
+    /**
+     * Creates an agent configured by {@code ci.coordinator.url},
+     * {@code ci.agent.name}, {@code ci.agent.capacity} and
+     * {@code ci.farm.token}, which builds with workspaces, caches and history
+     * of its own.
+     *
+     * @return the agent
+     * @throws IOException if the build history could not be opened
+     */
+    public static BuildAgent fromConfig() throws IOException {
+        String coordinator = Config.get("coordinator.url", null);
+        if (coordinator == null) {
+            throw new IllegalArgumentException("ci.coordinator.url must be set on a build agent");
+        }
+        String name = Config.get("agent.name", null);
+        if (name == null) {
+            name = InetAddress.getLocalHost().getHostName();
+        }
+        int capacity = Config.getInt("agent.capacity",
+                Config.getInt("workers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        JobQueue jobs = new JobQueue(capacity, capacity);
+        WorkspaceManager workspaces = WorkspaceManager.fromConfig();
+        workspaces.startCollector(10);
+        ContinuousIntegrationServer pipeline = new ContinuousIntegrationServer(jobs, workspaces,
+                BuildHistory.fromConfig(), ResultCache.fromConfig(), ArtifactCache.fromConfig(), null, null);
+        return new BuildAgent(coordinator, name, Config.get("farm.token", null), BuildLog.getLogDir(), jobs,
+                pipeline.getEvents(), push -> pipeline.processCIJob(push, ""));
+    }
+
+    /**
+     * Starts pulling jobs on a thread of its own.
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "ci-agent-poll");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Pulls and starts jobs until the agent is closed.
+     */
+    public void run() {
+        poller = Thread.currentThread();
+        scheduler.scheduleWithFixedDelay(this::shipLogs, 500, 500, TimeUnit.MILLISECONDS);
+        long backoff = 1000;
+        while (!closed) {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            boolean started = false;
+            try {
+                if (agentId == null) {
+                    register();
+                }
+                started = poll();
+                backoff = 1000;
+            } catch (IOException e) {
+                if (closed) {
+                    break;
+                }
+                System.out.println("Coordinator " + coordinator + " unreachable: " + e.getMessage());
+                sleep(backoff);
+                backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                if (!started) {
+                    slots.release();
+                }
+            }
+        }
+    }
+
+    private void register() throws IOException, InterruptedException {
+        JSONObject body = new JSONObject().put("name", name).put("capacity", jobs.getWorkerCount());
+        HttpResponse<String> response = post("/agents", body.toString(), 10000);
+        if (response.statusCode() != 200) {
+            throw new IOException("Registration answered " + response.statusCode());
+        }
+        JSONObject answer = new JSONObject(response.body());
+        heartbeatMillis = answer.getLong("heartbeatMillis");
+        agentId = answer.getString("id");
+        System.out.println("Registered with " + coordinator + " as " + agentId);
+        scheduler.schedule(this::heartbeat, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asks the coordinator for a job and starts it.
+     *
+     * @return true if a job was started, it holds a slot until it finishes
+     */
+    private boolean poll() throws IOException, InterruptedException {
+        String id = agentId;
+        HttpResponse<String> response = post("/agents/" + id + "/poll?wait=" + POLL_MILLIS, "",
+                POLL_MILLIS + 10000);
+        if (response.statusCode() == 404) {
+            forgotten(id);
+            return false;
+        }
+        if (response.statusCode() == 204) {
+            return false;
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("Poll answered " + response.statusCode());
+        }
+        JSONObject assignment = new JSONObject(response.body());
+        long jobId = assignment.getLong("jobId");
+        PushEvent push = PushEvent.fromJSON(assignment.getJSONObject("push"));
+        BuildJob job = new BuildJob(jobId, push.getRepoName(), 0, null, push.getAfter(), () -> build(jobId, push));
+        running.put(jobId, new Running(job, BuildLog.getFile(logDir, jobId)));
+        System.out.println("Building job " + jobId + " (attempt " + assignment.optInt("attempt", 1) + ")");
+        if (jobs.submit(job) != JobQueue.SubmitResult.ACCEPTED) {
+            running.remove(jobId);
+            return false;
+        }
+        return true;
+    }
+
+    private void build(long jobId, PushEvent push) {
+        try {
+            JSONObject record = builder.build(push);
+            // the result must not overtake the status of the job
+            events.flush(10000);
+            Running job = running.get(jobId);
+            if (job != null) {
+                shipLog(job, true);
+            }
+            if (record != null && !BuildJob.isCurrentSuperseded()) {
+                report(jobId, "result", record.toString());
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to report job " + jobId + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.remove(jobId);
+            slots.release();
+        }
+    }
+
+    /**
+     * Sends an event of a running job to the coordinator, on the dispatcher
+     * thread of the bus so that the events keep their order.
+     */
+    private void forward(JobEvent event) {
+        if (!running.containsKey(event.getJobId())) {
+            return;
+        }
+        JSONObject body = new JSONObject().put("type", event.getType().name().toLowerCase());
+        if (event.getState() != null) {
+            body.put("state", event.getState()).put("description", event.getDescription());
+        }
+        try {
+            report(event.getJobId(), "events", body.toString());
+        } catch (IOException e) {
+            System.out.println("Failed to send " + event + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void shipLogs() {
+        for (Running job : running.values()) {
+            try {
+                shipLog(job, false);
+            } catch (IOException e) {
+                System.out.println("Failed to send the log of job " + job.job.getId() + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the complete lines of the log of a job written since the last
+     * call, or all of it once the job is done.
+     */
+    private void shipLog(Running job, boolean done) throws IOException, InterruptedException {
+        synchronized (job) {
+            long length = job.log.length();
+            while (job.logOffset < length) {
+                byte[] chunk = new byte[(int) Math.min(MAX_LOG_CHUNK, length - job.logOffset)];
+                try (RandomAccessFile file = new RandomAccessFile(job.log, "r")) {
+                    file.seek(job.logOffset);
+                    file.readFully(chunk);
+                }
+                int end = chunk.length;
+                if (!done) {
+                    // a line still being written is sent with the next chunk
+                    while (end > 0 && chunk[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        return;
+                    }
+                }
+                report(job.job.getId(), "log", new String(chunk, 0, end, StandardCharsets.UTF_8));
+                job.logOffset += end;
+            }
+        }
+    }
+
+    /**
+     * Sends a report of a job. A job the coordinator no longer counts as
+     * this agent's is stopped.
+     */
+    private void report(long jobId, String kind, String body) throws IOException, InterruptedException {
+        String id = agentId;
+        if (id == null) {
+            return;
+        }
+        HttpResponse<String> response = post("/agents/" + id + "/jobs/" + jobId + "/" + kind, body, 30000);
+        if (response.statusCode() == 409 || response.statusCode() == 404) {
+            cancel(jobId);
+        } else if (response.statusCode() >= 300) {
+            throw new IOException("Coordinator answered " + response.statusCode());
+        }
+    }
+
+    private void heartbeat() {
+        String id = agentId;
+        if (closed || id == null) {
+            return;
+        }
+        try {
+            JSONObject body = new JSONObject().put("running", new JSONArray(running.keySet()));
+            HttpResponse<String> response = post("/agents/" + id + "/heartbeat", body.toString(), heartbeatMillis);
+            if (response.statusCode() == 404) {
+                forgotten(id);
+                return;
+            }
+            if (response.statusCode() == 200) {
+                JSONArray cancel = new JSONObject(response.body()).getJSONArray("cancel");
+                for (int i = 0; i < cancel.length(); i++) {
+                    cancel(cancel.getLong(i));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Heartbeat failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!closed && agentId != null && agentId.equals(id)) {
+            scheduler.schedule(this::heartbeat, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the jobs of a registration the coordinator has forgotten, which
+     * it has handed to other agents, so that the next poll registers again.
+     */
+    private void forgotten(String id) {
+        synchronized (this) {
+            if (!id.equals(agentId)) {
+                return;
+            }
+            agentId = null;
+        }
+        System.out.println("Coordinator forgot agent " + id + ", stopping " + running.size() + " jobs");
+        for (long jobId : running.keySet()) {
+            cancel(jobId);
+        }
+    }
+
+    private void cancel(long jobId) {
+        Running job = running.get(jobId);
+        if (job != null && !job.job.isSuperseded()) {
+            System.out.println("Stopping job " + jobId + " at the request of the coordinator");
+            job.job.supersede();
+        }
+    }
+
+    private HttpResponse<String> post(String path, String body, long timeoutMillis)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(coordinator + path))
+                .timeout(Duration.ofMillis(timeoutMillis))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the id the coordinator gave the agent.
+     *
+     * @return the id, or null while the agent is not registered
+     */
+    public String getId() {
+        return agentId;
+    }
+
+    public int getRunningJobs() {
+        return running.size();
+    }
+
+    /**
+     * Stops pulling jobs and heartbeats and destroys the build processes of
+     * the running jobs. The coordinator is not told, it hands the jobs to
+     * other agents once the heartbeats stop.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        Thread thread = poller;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        jobs.abort();
+    }
+}
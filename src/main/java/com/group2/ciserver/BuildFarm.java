@@ -0,0 +1,683 @@
+package com.group2.ciserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The coordinator of a build farm. {@link BuildAgent}s on other machines
+ * register over HTTP, send heartbeats, pull jobs and report the events, log
+ * lines and build record of every job back, so the coordinator only answers
+ * webhooks and keeps the queue, history and commit statuses.
+ * <p>
+ * A worker of the {@link JobQueue} hands its job to {@link #run} and waits
+ * until an agent has built it. The farm remembers which agents last built
+ * each repository, and at which commit, because their workspaces, Maven
+ * repository and compiled classes are still warm: a job waits for one of
+ * these agents to ask for work, unless all of them are saturated or the job
+ * waited longer than the steal delay, then any agent may take it. Other jobs
+ * go to the asking agent with the most free slots. An agent that misses its
+ * heartbeats for longer than the agent timeout is forgotten and its jobs are
+ * handed to other agents, up to a number of attempts.
+ * <p>
+ * The agents talk to these endpoints, which answer 404 to an agent that was
+ * forgotten so that it registers again, and 409 about a job that is no
+ * longer its own so that it stops building it:
+ * <ul>
+ * <li>{@code POST /agents} with the "name" and "capacity" of the agent
+ * returns its "id" and the "heartbeatMillis" to keep</li>
+ * <li>{@code POST /agents/<id>/heartbeat} with the "running" job ids returns
+ * the job ids to "cancel"</li>
+ * <li>{@code POST /agents/<id>/poll?wait=<ms>} returns the "jobId" and
+ * "push" of a job, or 204 if none came up in time</li>
+ * <li>{@code POST /agents/<id>/jobs/<job>/events}, {@code .../log} and
+ * {@code .../result} report a job</li>
+ * <li>{@code GET /agents} lists the agents</li>
+ * </ul>
+ */
+public class BuildFarm implements Closeable {
+
+    // agents remembered as warm per repository, and repositories remembered
+    private static final int MAX_WARM_AGENTS = 8;
+    private static final int MAX_WARM_REPOS = 10000;
+
+    private final long heartbeatMillis;
+    private final long agentTimeoutMillis;
+    private final int maxAttempts;
+    private final long stealMillis;
+    private final byte[] token;
+    private final AtomicLong agentSequence = new AtomicLong();
+    private final Thread reaper;
+    private final LongAdder reassignedJobs = new LongAdder();
+    private final LongAdder lostAgents = new LongAdder();
+    private final LongAdder affinityHits = new LongAdder();
+    private final LongAdder affinityMisses = new LongAdder();
+    private final LongAdder stolenJobs = new LongAdder();
+
+    // all guarded by this
+    private final Map<String, Agent> agents = new LinkedHashMap<>();
+    private final Deque<Assignment> pending = new ArrayDeque<>();
+    private final Map<Long, Assignment> assignments = new HashMap<>();
+    private final Set<Agent> polling = new HashSet<>();
+    // the names of the agents that last built a repository, least recent first, with the commit they built
+    private final Map<String, LinkedHashMap<String, String>> warm =
+            new LinkedHashMap<String, LinkedHashMap<String, String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LinkedHashMap<String, String>> eldest) {
+            return size() > MAX_WARM_REPOS;
+        }
+    };
+    private boolean closed = false;
+
+    /**
+     * An agent known to the coordinator.
+     */
+    private static final class Agent {
+        final String id;
+        final String name;
+        final int capacity;
+        final Set<Assignment> running = new LinkedHashSet<>();
+        final Set<Long> cancelled = new HashSet<>();
+        long lastSeen = System.currentTimeMillis();
+
+        Agent(String id, String name, int capacity) {
+            this.id = id;
+            this.name = name;
+            this.capacity = capacity;
+        }
+
+        int getFreeSlots() {
+            return capacity - running.size();
+        }
+    }
+
+    /**
+     * A job handed to the farm, waiting for an agent or being built by one.
+     */
+    private static final class Assignment {
+        final BuildJob job;
+        final PushEvent push;
+        final BuildLog log;
+        final Consumer<JSONObject> events;
+        final long submittedAt = System.currentTimeMillis();
+        Agent agent;
+        long assignedAt;
+        int attempts = 0;
+        boolean finished = false;
+        JSONObject record;
+        String failure;
+
+        Assignment(BuildJob job, PushEvent push, BuildLog log, Consumer<JSONObject> events) {
+            this.job = job;
+            this.push = push;
+            this.log = log;
+            this.events = events;
+        }
+
+        String getRepoKey() {
+            return push.getCloneUrl() != null ? push.getCloneUrl() : push.getRepoName();
+        }
+    }
+
+    /**
+     * Creates a farm and starts the thread that forgets silent agents.
+     *
+     * @param heartbeatMillis    the time between the heartbeats of an agent
+     * @param agentTimeoutMillis the time without heartbeat after which an
+     *                           agent is forgotten and its jobs are reassigned
+     * @param maxAttempts        the agents a job is handed to before it fails
+     * @param stealMillis        the time a job waits for an agent warm for
+     *                           its repository that has free slots, before
+     *                           any agent may take it
+     * @param token              the token agents send as
+     *                           {@code Authorization: Bearer}, or null to
+     *                           accept any agent
+     */
+    public BuildFarm(long heartbeatMillis, long agentTimeoutMillis, int maxAttempts, long stealMillis,
+            String token) {
+        if (heartbeatMillis < 1 || agentTimeoutMillis < heartbeatMillis || maxAttempts < 1 || stealMillis < 0) {
+            throw new IllegalArgumentException("Invalid heartbeat, timeout, attempts or steal delay");
+        }
+        this.heartbeatMillis = heartbeatMillis;
+        this.agentTimeoutMillis = agentTimeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.stealMillis = stealMillis;
+        this.token = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+        this.reaper = new Thread(this::reap, "ci-farm-reaper");
+        this.reaper.setDaemon(true);
+        this.reaper.start();
+    }
+
+    /**
+     * Creates the farm configured by {@code ci.farm.heartbeat-seconds},
+     * {@code ci.farm.agent-timeout-seconds}, {@code ci.farm.max-attempts},
+     * {@code ci.farm.steal-seconds} and {@code ci.farm.token}. The token is
+     * required, because the agent endpoints share the public webhook port
+     * and an agent can report any build as passed.
+     *
+     * @return the farm
+     * @throws IllegalArgumentException if no token is configured
+     */
+    public static BuildFarm fromConfig() {
+        String token = Config.get("farm.token", "");
+        if (token.isEmpty()) {
+            throw new IllegalArgumentException("ci.farm.token must be set on a coordinator");
+        }
+        return new BuildFarm(TimeUnit.SECONDS.toMillis(Config.getInt("farm.heartbeat-seconds", 2)),
+                TimeUnit.SECONDS.toMillis(Config.getInt("farm.agent-timeout-seconds", 15)),
+                Config.getInt("farm.max-attempts", 3),
+                TimeUnit.SECONDS.toMillis(Config.getInt("farm.steal-seconds", 5)), token);
+    }
+
+    /**
+     * Builds a job on an agent and waits until it is built. Returns early,
+     * with null, when the job is superseded; the agent building it is told to
+     * stop.
+     *
+     * @param job    the job, which is running on the calling worker
+     * @param push   the push the job builds
+     * @param log    the log the lines sent by the agent are appended to
+     * @param events called with the "type", "state" and "description" of
+     *               every event the agent reports
+     * @return the build record sent by the agent, or null if the job was
+     *         superseded
+     * @throws IOException          if no agent built the job in
+     *                              {@code maxAttempts} attempts, or the farm
+     *                              was closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public JSONObject run(BuildJob job, PushEvent push, BuildLog log, Consumer<JSONObject> events)
+            throws IOException, InterruptedException {
+        Assignment assignment = new Assignment(job, push, log, events);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The build farm is shut down");
+            }
+            assignments.put(job.getId(), assignment);
+            pending.add(assignment);
+            notifyAll();
+            try {
+                while (!assignment.finished) {
+                    if (closed) {
+                        throw new IOException("The build farm is shut down");
+                    }
+                    if (job.isSuperseded()) {
+                        return null;
+                    }
+                    // woken by the agents, and every second to notice a superseded job
+                    wait(1000);
+                }
+            } finally {
+                assignments.remove(job.getId());
+                pending.remove(assignment);
+                if (assignment.agent != null && assignment.agent.running.remove(assignment)) {
+                    assignment.agent.cancelled.add(job.getId());
+                    notifyAll();
+                }
+            }
+        }
+        if (assignment.failure != null) {
+            throw new IOException(assignment.failure);
+        }
+        return assignment.record;
+    }
+
+    /**
+     * Handles a request of an agent.
+     *
+     * @param target   the request path, starting with "/agents"
+     * @param request  the HTTP servlet request
+     * @param response the HTTP servlet response
+     * @throws IOException if the request could not be read or answered
+     */
+    public void handle(String target, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        if (!isAuthorized(request.getHeader("Authorization"))) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        String[] path = target.substring(1).split("/");
+        try {
+            if (path.length == 1 && "GET".equals(request.getMethod())) {
+                writeJSON(response, new JSONObject().put("agents", listAgents()));
+            } else if (!"POST".equals(request.getMethod())) {
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            } else if (path.length == 1) {
+                JSONObject body = readJSON(request);
+                Agent agent = register(body.optString("name", "agent"), body.getInt("capacity"));
+                writeJSON(response, new JSONObject().put("id", agent.id).put("heartbeatMillis", heartbeatMillis));
+            } else if (path.length == 3 && "heartbeat".equals(path[2])) {
+                JSONArray cancel = heartbeat(path[1], readJSON(request).optJSONArray("running"));
+                if (cancel == null) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                } else {
+                    writeJSON(response, new JSONObject().put("cancel", cancel));
+                }
+            } else if (path.length == 3 && "poll".equals(path[2])) {
+                String wait = request.getParameter("wait");
+                poll(path[1], Math.min(60000, wait == null ? 20000 : Long.parseLong(wait)), response);
+            } else if (path.length == 5 && "jobs".equals(path[2])) {
+                report(path[1], Long.parseLong(path[3]), path[4], request, response);
+            } else {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void poll(String agentId, long waitMillis, HttpServletResponse response)
+            throws IOException, InterruptedException {
+        Assignment assignment;
+        synchronized (this) {
+            Agent agent = agents.get(agentId);
+            if (agent == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            assignment = take(agent, waitMillis);
+        }
+        if (assignment == null) {
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return;
+        }
+        writeJSON(response, new JSONObject().put("jobId", assignment.job.getId())
+                .put("attempt", assignment.attempts).put("push", assignment.push.toJSON()));
+    }
+
+    private void report(String agentId, long jobId, String kind, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        Assignment assignment;
+        synchronized (this) {
+            Agent agent = agents.get(agentId);
+            if (agent == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            assignment = assignments.get(jobId);
+            if (assignment == null || assignment.agent != agent || assignment.finished) {
+                response.sendError(HttpServletResponse.SC_CONFLICT);
+                return;
+            }
+        }
+        if ("events".equals(kind)) {
+            assignment.events.accept(readJSON(request));
+        } else if ("log".equals(kind)) {
+            String text = new String(request.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (text.endsWith("\n")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            if (!text.isEmpty()) {
+                for (String line : text.split("\n", -1)) {
+                    assignment.log.println(line);
+                }
+            }
+        } else if ("result".equals(kind)) {
+            JSONObject record = readJSON(request);
+            synchronized (this) {
+                if (assignment.agent != null) {
+                    assignment.agent.running.remove(assignment);
+                    record.put("agent", assignment.agent.name);
+                    String sha = record.optString("sha", assignment.push.getAfter());
+                    if (sha != null) {
+                        markWarm(assignment.getRepoKey(), assignment.agent.name, sha);
+                    }
+                }
+                assignment.record = record;
+                assignment.finished = true;
+                notifyAll();
+            }
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    private synchronized Agent register(String name, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be positive");
+        }
+        Agent agent = new Agent("agent-" + agentSequence.incrementAndGet(), name, capacity);
+        agents.put(agent.id, agent);
+        System.out.println("Agent " + agent.id + " (" + name + ") registered with " + capacity + " slots");
+        notifyAll();
+        return agent;
+    }
+
+    /**
+     * Records a heartbeat. Jobs the coordinator handed to the agent a while
+     * ago but the agent does not report, for example because the answer of
+     * the poll was lost, are handed to another agent.
+     *
+     * @return the jobs the agent must stop, or null if the agent is unknown
+     */
+    private synchronized JSONArray heartbeat(String agentId, JSONArray running) {
+        Agent agent = agents.get(agentId);
+        if (agent == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        agent.lastSeen = now;
+        Set<Long> reported = new HashSet<>();
+        for (int i = 0; running != null && i < running.length(); i++) {
+            reported.add(running.getLong(i));
+        }
+        for (Iterator<Assignment> it = agent.running.iterator(); it.hasNext();) {
+            Assignment assignment = it.next();
+            if (!reported.contains(assignment.job.getId()) && now - assignment.assignedAt > agentTimeoutMillis) {
+                it.remove();
+                requeue(assignment, "Job " + assignment.job.getId() + " never started on " + agent.name);
+            }
+        }
+        JSONArray cancel = new JSONArray();
+        for (long jobId : reported) {
+            Assignment assignment = assignments.get(jobId);
+            if (agent.cancelled.contains(jobId) || assignment == null || assignment.agent != agent) {
+                cancel.put(jobId);
+            }
+        }
+        agent.cancelled.retainAll(reported);
+        return cancel;
+    }
+
+    /**
+     * Waits for a job the agent should build: one is pending, the agent has
+     * a free slot and no other agent asking for work has more free slots.
+     */
+    private Assignment take(Agent agent, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        polling.add(agent);
+        try {
+            while (!closed && agents.get(agent.id) == agent) {
+                Assignment next = pending.isEmpty() || agent.getFreeSlots() <= 0 ? null : choose(agent);
+                if (next != null) {
+                    pending.remove(next);
+                    count(next, agent);
+                    next.agent = agent;
+                    next.attempts++;
+                    next.assignedAt = System.currentTimeMillis();
+                    agent.running.add(next);
+                    // the other agents asking may take the next pending job
+                    notifyAll();
+                    return next;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                // a job left to a warm agent may become free to steal without a notification
+                wait(pending.isEmpty() ? remaining : Math.min(remaining, Math.max(50, stealMillis / 4)));
+            }
+            return null;
+        } finally {
+            polling.remove(agent);
+        }
+    }
+
+    /**
+     * Picks the pending job an agent asking for work gets, or null to leave
+     * the jobs to other agents. The oldest job the agent is warm for comes
+     * first. A job other agents are warm for is left to them while one of
+     * them has a free slot and the job has waited less than the steal delay.
+     * The remaining jobs are left to an asking agent with more free slots.
+     */
+    private Assignment choose(Agent agent) {
+        long now = System.currentTimeMillis();
+        boolean mostFree = true;
+        for (Agent other : polling) {
+            if (other != agent && other.getFreeSlots() > agent.getFreeSlots()) {
+                mostFree = false;
+            }
+        }
+        Assignment open = null;
+        for (Assignment assignment : pending) {
+            Map<String, String> warmAgents = warm.get(assignment.getRepoKey());
+            if (warmAgents != null && warmAgents.containsKey(agent.name)) {
+                return assignment;
+            }
+            if (open == null && mostFree
+                    && (now - assignment.submittedAt >= stealMillis || !hasFreeWarmAgent(warmAgents))) {
+                open = assignment;
+            }
+        }
+        return open;
+    }
+
+    private boolean hasFreeWarmAgent(Map<String, String> warmAgents) {
+        if (warmAgents == null) {
+            return false;
+        }
+        for (Agent other : agents.values()) {
+            if (other.getFreeSlots() > 0 && warmAgents.containsKey(other.name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts a job as an affinity hit if the agent is warm for its
+     * repository, as stolen if another agent is, and as a miss otherwise.
+     */
+    private void count(Assignment assignment, Agent agent) {
+        Map<String, String> warmAgents = warm.get(assignment.getRepoKey());
+        if (warmAgents == null) {
+            affinityMisses.increment();
+        } else if (warmAgents.containsKey(agent.name)) {
+            affinityHits.increment();
+        } else {
+            boolean warmAgentAlive = false;
+            for (Agent other : agents.values()) {
+                warmAgentAlive |= warmAgents.containsKey(other.name);
+            }
+            if (warmAgentAlive) {
+                stolenJobs.increment();
+            } else {
+                affinityMisses.increment();
+            }
+        }
+    }
+
+    /**
+     * Remembers that an agent built a commit of a repository. Only the most
+     * recent agents of a repository are remembered.
+     */
+    private void markWarm(String repoKey, String agentName, String sha) {
+        LinkedHashMap<String, String> warmAgents = warm.computeIfAbsent(repoKey, key -> new LinkedHashMap<>());
+        warmAgents.remove(agentName);
+        warmAgents.put(agentName, sha);
+        if (warmAgents.size() > MAX_WARM_AGENTS) {
+            warmAgents.remove(warmAgents.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Hands a job whose agent was lost to another agent, ahead of the jobs
+     * that have not started, or fails it after its last attempt.
+     */
+    private void requeue(Assignment assignment, String reason) {
+        assignment.agent = null;
+        if (assignment.attempts >= maxAttempts) {
+            assignment.failure = reason + ", giving up after " + assignment.attempts + " attempts";
+            assignment.finished = true;
+        } else {
+            System.out.println(reason + ", building it on another agent");
+            reassignedJobs.increment();
+            pending.addFirst(assignment);
+        }
+        notifyAll();
+    }
+
+    private void reap() {
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                for (Iterator<Agent> it = agents.values().iterator(); it.hasNext();) {
+                    Agent agent = it.next();
+                    if (now - agent.lastSeen > agentTimeoutMillis) {
+                        it.remove();
+                        lostAgents.increment();
+                        System.out.println("Agent " + agent.id + " (" + agent.name + ") missed its heartbeats");
+                        for (Assignment assignment : agent.running) {
+                            requeue(assignment, "Agent " + agent.name + " was lost while building job "
+                                    + assignment.job.getId());
+                        }
+                        agent.running.clear();
+                    }
+                }
+                try {
+                    wait(heartbeatMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized JSONArray listAgents() {
+        JSONArray list = new JSONArray();
+        for (Agent agent : agents.values()) {
+            JSONArray running = new JSONArray();
+            for (Assignment assignment : agent.running) {
+                running.put(assignment.job.getId());
+            }
+            list.put(new JSONObject().put("id", agent.id).put("name", agent.name).put("capacity", agent.capacity)
+                    .put("running", running).put("lastSeen", agent.lastSeen));
+        }
+        return list;
+    }
+
+    private boolean isAuthorized(String header) {
+        if (token == null) {
+            return true;
+        }
+        if (header == null || !header.startsWith("Bearer ")) {
+            return false;
+        }
+        return MessageDigest.isEqual(token, header.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JSONObject readJSON(HttpServletRequest request) throws IOException {
+        byte[] body = request.getInputStream().readAllBytes();
+        return body.length == 0 ? new JSONObject() : new JSONObject(new String(body, StandardCharsets.UTF_8));
+    }
+
+    private static void writeJSON(HttpServletResponse response, JSONObject json) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json;charset=utf-8");
+        response.getWriter().print(json.toString());
+    }
+
+    public synchronized int getAgentCount() {
+        return agents.size();
+    }
+
+    /**
+     * Returns the jobs the registered agents can build at the same time.
+     *
+     * @return the summed slots of the agents
+     */
+    public synchronized int getCapacity() {
+        int capacity = 0;
+        for (Agent agent : agents.values()) {
+            capacity += agent.capacity;
+        }
+        return capacity;
+    }
+
+    public synchronized int getPendingJobs() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the jobs being built by agents.
+     *
+     * @return the number of jobs
+     */
+    public synchronized int getRunningJobs() {
+        int running = 0;
+        for (Agent agent : agents.values()) {
+            running += agent.running.size();
+        }
+        return running;
+    }
+
+    public long getReassignedJobs() {
+        return reassignedJobs.sum();
+    }
+
+    public long getLostAgents() {
+        return lostAgents.sum();
+    }
+
+    /**
+     * Returns the jobs given to an agent that had built their repository
+     * before.
+     *
+     * @return the number of jobs
+     */
+    public long getAffinityHits() {
+        return affinityHits.sum();
+    }
+
+    /**
+     * Returns the jobs given to an agent while no registered agent had built
+     * their repository.
+     *
+     * @return the number of jobs
+     */
+    public long getAffinityMisses() {
+        return affinityMisses.sum();
+    }
+
+    /**
+     * Returns the jobs taken by an agent while other agents were warm for
+     * their repository but saturated or too slow to ask.
+     *
+     * @return the number of jobs
+     */
+    public long getStolenJobs() {
+        return stolenJobs.sum();
+    }
+
+    /**
+     * Stops handing out jobs. The workers waiting in {@link #run} get an
+     * {@link IOException}, and agents asking for work get nothing.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        reaper.interrupt();
+    }
+}
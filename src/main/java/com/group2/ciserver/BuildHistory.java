@@ -0,0 +1,275 @@
+package com.group2.ciserver;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An append-only store of finished builds on local disk.
+ * <p>
+ * Every build is one JSON line in {@code builds.jsonl}. Build ids are
+ * consecutive, and {@code builds.idx} holds the 8 byte file offset of every
+ * build, so a build is read by id with two positional reads. Ids of the builds
+ * of every repository, branch and commit are kept in memory in ascending
+ * order, so listing the builds of one of them reads only the matching records.
+ * The in-memory indexes are rebuilt from the data file when the store is
+ * opened.
+ */
+public class BuildHistory implements Closeable {
+
+    private final RandomAccessFile dataFile;
+    private final RandomAccessFile indexFile;
+    private final FileChannel data;
+    private final FileChannel index;
+    private final Map<String, IdList> byRepo = new HashMap<>();
+    private final Map<String, IdList> byBranch = new HashMap<>();
+    private final Map<String, IdList> bySha = new HashMap<>();
+    private long lastId;
+    private long lastJobId;
+
+    /**
+     * A growable, sorted list of build ids.
+     */
+    private static final class IdList {
+        private long[] ids = new long[4];
+        private int size = 0;
+
+        void add(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * Returns the position of the last id below the given id.
+         */
+        int lastIndexBefore(long id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            return (position >= 0 ? position : -position - 1) - 1;
+        }
+    }
+
+    /**
+     * Opens the store in a directory, creating it if needed.
+     *
+     * @param directory the directory of the data and index files
+     * @throws IOException if the files could not be opened or read
+     */
+    public BuildHistory(File directory) throws IOException {
+        directory.mkdirs();
+        File dataPath = new File(directory, "builds.jsonl");
+        this.dataFile = new RandomAccessFile(dataPath, "rw");
+        this.indexFile = new RandomAccessFile(new File(directory, "builds.idx"), "rw");
+        this.data = dataFile.getChannel();
+        this.index = indexFile.getChannel();
+        load(dataPath);
+    }
+
+    /**
+     * Opens the store in the directory set by "history.dir".
+     *
+     * @return the opened store
+     * @throws IOException if the store could not be opened
+     */
+    public static BuildHistory fromConfig() throws IOException {
+        return new BuildHistory(new File(Config.get("history.dir", System.getProperty("user.home") + "/Github/history")));
+    }
+
+    private void load(File dataPath) throws IOException {
+        long records = index.size() / 8;
+        long offset = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(dataPath), StandardCharsets.UTF_8))) {
+            String line;
+            while (lastId < records && (line = reader.readLine()) != null) {
+                try {
+                    addToIndexes(new JSONObject(line));
+                } catch (JSONException e) {
+                    System.out.println("Skipping damaged build record at offset " + offset);
+                }
+                offset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                lastId++;
+            }
+        }
+        // drop a record that was written without its index entry
+        data.truncate(offset);
+        index.truncate(lastId * 8);
+    }
+
+    private void addToIndexes(JSONObject record) {
+        long id = record.getLong("id");
+        lastJobId = Math.max(lastJobId, record.optLong("jobId", 0));
+        String repo = record.optString("repo", "");
+        byRepo.computeIfAbsent(repo, k -> new IdList()).add(id);
+        if (record.has("branch")) {
+            byBranch.computeIfAbsent(branchKey(repo, record.getString("branch")), k -> new IdList()).add(id);
+        }
+        if (record.has("sha")) {
+            bySha.computeIfAbsent(record.getString("sha"), k -> new IdList()).add(id);
+        }
+    }
+
+    private static String branchKey(String repo, String branch) {
+        return repo + "#" + branch;
+    }
+
+    /**
+     * Appends a finished build. The record gets the next build id, which is
+     * also stored in its "id" field.
+     *
+     * @param record the build, with at least "repo", and usually "branch",
+     *               "sha", "outcome", timings and the log file
+     * @return the id of the build
+     * @throws IOException if the record could not be written
+     */
+    public synchronized long append(JSONObject record) throws IOException {
+        long id = lastId + 1;
+        record.put("id", id);
+        byte[] line = (record.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+        long offset = data.size();
+        data.write(ByteBuffer.wrap(line), offset);
+        data.force(false);
+        ByteBuffer entry = ByteBuffer.allocate(8).putLong(0, offset);
+        index.write(entry, (id - 1) * 8);
+        index.force(false);
+        lastId = id;
+        addToIndexes(record);
+        return id;
+    }
+
+    /**
+     * Reads a build.
+     *
+     * @param id the id of the build
+     * @return the build, or null if there is no build with that id
+     * @throws IOException if the store could not be read
+     */
+    public JSONObject get(long id) throws IOException {
+        long end;
+        synchronized (this) {
+            if (id < 1 || id > lastId) {
+                return null;
+            }
+            end = id == lastId ? data.size() : readOffset(id + 1);
+        }
+        long start = readOffset(id);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return new JSONObject(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+    }
+
+    private long readOffset(long id) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(8);
+        while (entry.hasRemaining()) {
+            if (index.read(entry, (id - 1) * 8 + entry.position()) < 0) {
+                throw new IOException("Missing index entry for build " + id);
+            }
+        }
+        return entry.getLong(0);
+    }
+
+    /**
+     * Passes the matching builds, newest first, to a consumer one at a time.
+     * The most selective of the given filters picks the index to read from.
+     *
+     * @param repo     the repository ("owner/name"), or null for all
+     * @param branch   the branch, or null for all; only used with a repository
+     * @param sha      the commit, or null for all
+     * @param beforeId only builds with a lower id are listed, 0 for no limit
+     * @param limit    the maximum number of builds to list
+     * @param consumer receives the builds
+     * @return the id of the last listed build, to be passed as beforeId for
+     *         the next page, or 0 if there are no more builds
+     * @throws IOException if the store could not be read
+     */
+    public long list(String repo, String branch, String sha, long beforeId, int limit,
+            Consumer<JSONObject> consumer) throws IOException {
+        long[] ids = null;
+        long from;
+        long lowest;
+        synchronized (this) {
+            long before = beforeId <= 0 ? lastId + 1 : beforeId;
+            IdList list = null;
+            if (sha != null) {
+                list = bySha.get(sha);
+            } else if (repo != null && branch != null) {
+                list = byBranch.get(branchKey(repo, branch));
+            } else if (repo != null) {
+                list = byRepo.get(repo);
+            }
+            if (list == null && (sha != null || repo != null)) {
+                return 0;
+            }
+            if (list == null) {
+                // without a filter the ids are consecutive and need no index
+                from = Math.min(before - 1, lastId);
+                lowest = 1;
+            } else {
+                ids = list.ids;
+                from = list.lastIndexBefore(before);
+                lowest = 0;
+            }
+        }
+        int listed = 0;
+        long lastListed = 0;
+        for (long position = from; position >= lowest && listed < limit; position--) {
+            long id = ids == null ? position : ids[(int) position];
+            JSONObject record = get(id);
+            if (record == null) {
+                continue;
+            }
+            if (repo != null && !repo.equals(record.optString("repo"))
+                    || branch != null && !branch.equals(record.optString("branch"))) {
+                continue;
+            }
+            consumer.accept(record);
+            listed++;
+            lastListed = id;
+        }
+        return listed == limit ? lastListed : 0;
+    }
+
+    /**
+     * Returns the number of stored builds.
+     *
+     * @return the number of builds
+     */
+    public synchronized long size() {
+        return lastId;
+    }
+
+    /**
+     * Returns the highest job id of the stored builds, so that job ids, and
+     * with them the names of the log files, are not reused after a restart.
+     *
+     * @return the highest job id, 0 if the store is empty
+     */
+    public synchronized long getLastJobId() {
+        return lastJobId;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dataFile.close();
+        indexFile.close();
+    }
+}
@@ -0,0 +1,272 @@
+package com.group2.ciserver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A unit of work waiting in the {@link JobQueue}. Jobs with a higher priority
+ * are started first, jobs with the same priority are started in the order they
+ * were submitted.
+ * <p>
+ * Jobs that build the same repository and branch share a coalescing key. When
+ * a newer job with the same key is submitted, the older one is superseded: it
+ * is dropped from the queue, or, if it is already running, its build
+ * processes are destroyed.
+ */
+public class BuildJob implements Comparable<BuildJob> {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final ThreadLocal<BuildJob> CURRENT = new ThreadLocal<>();
+
+    private final long id;
+    private final String repoName;
+    private final int priority;
+    private final Runnable task;
+    private final String coalesceKey;
+    private final String commitSHA;
+    private final long enqueuedAt;
+    private volatile long startedAt;
+    private volatile boolean superseded = false;
+    private volatile Runnable onSuperseded;
+    private final List<Process> processes = new CopyOnWriteArrayList<>();
+    private final LongAdder cpuMillis = new LongAdder();
+    private final AtomicLong peakRssBytes = new AtomicLong();
+
+    /**
+     * Creates a new job that is never coalesced with other jobs.
+     *
+     * @param repoName the name of the repository the job builds
+     * @param priority the priority of the job, higher values run first
+     * @param task     the work to run
+     */
+    public BuildJob(String repoName, int priority, Runnable task) {
+        this(repoName, priority, null, null, task);
+    }
+
+    /**
+     * Creates a new job.
+     *
+     * @param repoName    the name of the repository the job builds
+     * @param priority    the priority of the job, higher values run first
+     * @param coalesceKey the key shared by jobs that supersede each other, or
+     *                    null
+     * @param commitSHA   the commit the job builds, or null
+     * @param task        the work to run
+     */
+    public BuildJob(String repoName, int priority, String coalesceKey, String commitSHA, Runnable task) {
+        this(SEQUENCE.incrementAndGet(), repoName, priority, coalesceKey, commitSHA, task);
+    }
+
+    /**
+     * Creates a job whose id was handed out elsewhere, such as a job a
+     * {@link BuildAgent} builds for the coordinator.
+     *
+     * @param id          the id of the job
+     * @param repoName    the name of the repository the job builds
+     * @param priority    the priority of the job, higher values run first
+     * @param coalesceKey the key shared by jobs that supersede each other, or
+     *                    null
+     * @param commitSHA   the commit the job builds, or null
+     * @param task        the work to run
+     */
+    BuildJob(long id, String repoName, int priority, String coalesceKey, String commitSHA, Runnable task) {
+        this.id = id;
+        this.repoName = repoName;
+        this.priority = priority;
+        this.coalesceKey = coalesceKey;
+        this.commitSHA = commitSHA;
+        this.task = task;
+        this.enqueuedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Makes sure that ids handed out from now on are higher than the given id.
+     *
+     * @param lastId the highest id already in use
+     */
+    public static void advanceSequence(long lastId) {
+        SEQUENCE.accumulateAndGet(lastId, Math::max);
+    }
+
+    /**
+     * Returns the key of jobs that build the same repository and branch.
+     *
+     * @param cloneUrl the clone URL of the repository
+     * @param ref      the pushed ref, for example "refs/heads/main"
+     * @return the coalescing key
+     */
+    public static String coalesceKey(String cloneUrl, String ref) {
+        return cloneUrl + " " + ref;
+    }
+
+    /**
+     * Returns the job running on the current thread.
+     *
+     * @return the current job, or null if the thread is not running a job
+     */
+    public static BuildJob current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Registers a build process with the job running on the current thread,
+     * so that it can be destroyed if the job is superseded. Does nothing when
+     * no job is running on this thread.
+     *
+     * @param process the process that was started
+     */
+    public static void track(Process process) {
+        BuildJob job = CURRENT.get();
+        if (job == null || process == null) {
+            return;
+        }
+        job.processes.add(process);
+        if (job.superseded) {
+            destroyTree(process);
+        }
+    }
+
+    /**
+     * Checks whether the job running on the current thread has been
+     * superseded by a newer job.
+     *
+     * @return true if the current job is superseded
+     */
+    public static boolean isCurrentSuperseded() {
+        BuildJob job = CURRENT.get();
+        return job != null && job.superseded;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getRepoName() {
+        return repoName;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public String getCommitSHA() {
+        return commitSHA;
+    }
+
+    public boolean isSuperseded() {
+        return superseded;
+    }
+
+    public long getCpuMillis() {
+        return cpuMillis.sum();
+    }
+
+    /**
+     * Returns the largest resident memory of the build processes of the job
+     * so far. The processes of a sharded build run at the same time, their
+     * memory is not added up.
+     *
+     * @return the peak resident set size in bytes, 0 if unknown
+     */
+    public long getPeakRssBytes() {
+        return peakRssBytes.get();
+    }
+
+    /**
+     * Adds the resources used by a finished build process to the job.
+     *
+     * @param cpuMillis    the CPU time of the process and its children
+     * @param peakRssBytes the peak resident memory of the process and its
+     *                     children
+     * @see ProcessSupervisor
+     */
+    void addUsage(long cpuMillis, long peakRssBytes) {
+        this.cpuMillis.add(cpuMillis);
+        this.peakRssBytes.accumulateAndGet(peakRssBytes, Math::max);
+    }
+
+    /**
+     * Sets the action run when the job is superseded, for example to mark its
+     * commit on GitHub.
+     *
+     * @param onSuperseded the action to run
+     */
+    public void setOnSuperseded(Runnable onSuperseded) {
+        this.onSuperseded = onSuperseded;
+    }
+
+    /**
+     * Marks the job as superseded and destroys its running build processes.
+     * Only the first call has an effect.
+     */
+    void supersede() {
+        synchronized (this) {
+            if (superseded) {
+                return;
+            }
+            superseded = true;
+        }
+        destroyProcesses();
+        Runnable action = onSuperseded;
+        if (action != null) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                System.out.println("Failed to mark job " + id + " as superseded: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Destroys the running build processes of the job and their children.
+     */
+    void destroyProcesses() {
+        for (Process process : processes) {
+            destroyTree(process);
+        }
+    }
+
+    private static void destroyTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    /**
+     * Runs the task of the job and remembers when it was started.
+     */
+    void run() {
+        startedAt = System.currentTimeMillis();
+        if (superseded) {
+            return;
+        }
+        CURRENT.set(this);
+        try {
+            task.run();
+        } finally {
+            CURRENT.remove();
+            processes.clear();
+        }
+    }
+
+    @Override
+    public int compareTo(BuildJob other) {
+        if (priority != other.priority) {
+            return Integer.compare(other.priority, priority);
+        }
+        return Long.compare(id, other.id);
+    }
+}
@@ -0,0 +1,266 @@
+package com.group2.ciserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The append-only log file of a single CI job.
+ * <p>
+ * Lines are copied into a fixed-size ring buffer and written to the file by a
+ * writer thread of the log, so the threads draining the build process never
+ * wait for the disk and the memory used per job stays bounded. A producer
+ * only blocks when the ring is full. Logs of running jobs can be followed
+ * over HTTP with {@link #tail(File, long, OutputStream, boolean)}.
+ */
+public class BuildLog implements Closeable {
+
+    private static final int RING_SIZE = 64 * 1024;
+    private static final Map<Long, BuildLog> ACTIVE = new ConcurrentHashMap<>();
+    private static final ThreadLocal<BuildLog> CURRENT = new ThreadLocal<>();
+
+    private final long jobId;
+    private final File file;
+    private final byte[] ring;
+    private int head = 0;
+    private int size = 0;
+    private boolean closed = false;
+    private final Thread writer;
+    private final OutputStream out;
+
+    private BuildLog(long jobId, File file, int ringSize) throws IOException {
+        this.jobId = jobId;
+        this.file = file;
+        this.ring = new byte[ringSize];
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        this.out = new FileOutputStream(file, true);
+        this.writer = new Thread(this::writeLoop, "ci-log-" + jobId);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Returns the directory holding the job logs, set by the "log.dir"
+     * setting.
+     *
+     * @return the log directory
+     */
+    public static File getLogDir() {
+        return new File(Config.get("log.dir", System.getProperty("user.home") + "/Github/logs"));
+    }
+
+    /**
+     * Returns the log file of a job.
+     *
+     * @param logDir the log directory
+     * @param jobId  the id of the job
+     * @return the log file, which may not exist
+     */
+    public static File getFile(File logDir, long jobId) {
+        return new File(logDir, jobId + ".log");
+    }
+
+    /**
+     * Opens the log of a job and makes it the log of the current thread until
+     * it is closed.
+     *
+     * @param logDir the log directory
+     * @param jobId  the id of the job
+     * @return the opened log
+     * @throws IOException if the log file could not be opened
+     */
+    public static BuildLog open(File logDir, long jobId) throws IOException {
+        BuildLog log = new BuildLog(jobId, getFile(logDir, jobId), RING_SIZE);
+        ACTIVE.put(jobId, log);
+        CURRENT.set(log);
+        return log;
+    }
+
+    /**
+     * Returns the log opened on the current thread.
+     *
+     * @return the log, or null if no log is open on this thread
+     */
+    public static BuildLog current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Checks whether the log of a job is still being written.
+     *
+     * @param jobId the id of the job
+     * @return true while the job is running
+     */
+    public static boolean isActive(long jobId) {
+        return ACTIVE.containsKey(jobId);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends a line to the log. Blocks while the ring buffer is full.
+     *
+     * @param line the line to append
+     */
+    public void println(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        synchronized (this) {
+            while (offset < bytes.length && !closed) {
+                while (size == ring.length && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                int tail = (head + size) % ring.length;
+                int count = Math.min(bytes.length - offset, Math.min(ring.length - size, ring.length - tail));
+                System.arraycopy(bytes, offset, ring, tail, count);
+                size += count;
+                offset += count;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        byte[] chunk = new byte[8192];
+        try {
+            while (true) {
+                int count;
+                synchronized (this) {
+                    while (size == 0 && !closed) {
+                        wait();
+                    }
+                    if (size == 0) {
+                        break;
+                    }
+                    count = Math.min(chunk.length, Math.min(size, ring.length - head));
+                    System.arraycopy(ring, head, chunk, 0, count);
+                    head = (head + count) % ring.length;
+                    size -= count;
+                    notifyAll();
+                }
+                out.write(chunk, 0, count);
+                synchronized (this) {
+                    if (size == 0) {
+                        out.flush();
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Failed to write log of job " + jobId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the remaining buffered lines and closes the log file.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+            out.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Failed to close log of job " + jobId + ": " + e.getMessage());
+        } finally {
+            ACTIVE.remove(jobId, this);
+            if (CURRENT.get() == this) {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * Streams the log of a job to out, following it until the job is done.
+     * Only a small read buffer is held in memory, however long the log is.
+     *
+     * @param logDir the log directory
+     * @param jobId  the id of the job
+     * @param out    the stream to copy the log to; it is flushed after every
+     *               chunk
+     * @param sse    true to send every line as a server-sent event, false to
+     *               send the raw log
+     * @return false if there is no log for the job
+     * @throws IOException if the log could not be read or the client went away
+     */
+    public static boolean tail(File logDir, long jobId, OutputStream out, boolean sse) throws IOException {
+        File file = getFile(logDir, jobId);
+        if (!file.exists()) {
+            return false;
+        }
+        byte[] buffer = new byte[8192];
+        ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        try (RandomAccessFile reader = new RandomAccessFile(file, "r")) {
+            while (true) {
+                boolean active = isActive(jobId);
+                int read = reader.read(buffer);
+                if (read > 0) {
+                    if (sse) {
+                        writeEvents(buffer, read, partialLine, out);
+                    } else {
+                        out.write(buffer, 0, read);
+                    }
+                    out.flush();
+                } else if (!active) {
+                    break;
+                } else {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        if (sse) {
+            if (partialLine.size() > 0) {
+                writeEvent(partialLine, out);
+            }
+            out.write("event: end\ndata: \n\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        return true;
+    }
+
+    private static void writeEvents(byte[] buffer, int length, ByteArrayOutputStream partialLine,
+            OutputStream out) throws IOException {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                partialLine.write(buffer, start, i - start);
+                writeEvent(partialLine, out);
+                start = i + 1;
+            }
+        }
+        partialLine.write(buffer, start, length - start);
+    }
+
+    private static void writeEvent(ByteArrayOutputStream line, OutputStream out) throws IOException {
+        out.write("data: ".getBytes(StandardCharsets.UTF_8));
+        line.writeTo(out);
+        out.write("\n\n".getBytes(StandardCharsets.UTF_8));
+        line.reset();
+    }
+}
@@ -0,0 +1,509 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles and tests a project with a single Maven invocation.
+ * <p>
+ * Running {@code mvn clean compile} and then {@code mvn test} made Maven
+ * evaluate the reactor twice and threw away the incremental compiler output
+ * on every build. The pipeline runs {@code mvn test} once, by default without
+ * {@code clean} so the {@code target/} directories kept by the workspace stay
+ * warm, and follows the Maven output to report when the compile and test
+ * phases begin. The exit code of Maven decides whether the build passed.
+ * When it failed, the goal named in Maven's "Failed to execute goal" line
+ * tells a compilation failure from a test failure.
+ */
+public class BuildPipeline {
+
+    private static final Pattern MOJO_START = Pattern.compile("--- ([\\w.-]+):[\\w.-]+:([\\w-]+) ");
+    private static final Pattern DOWNLOADED = Pattern.compile("Downloaded from [^:]+: \\S+ \\(([\\d.,]+) (B|kB|MB|GB)");
+    private static final Pattern FAILED_GOAL = Pattern.compile("Failed to execute goal \\S*?([\\w.-]+):[\\w.-]+:([\\w-]+) ");
+
+    /**
+     * The stages of a build, reported to a {@link Listener} as they begin.
+     */
+    public enum Stage {
+        COMPILE, TEST, DONE
+    }
+
+    /**
+     * The result of a build.
+     */
+    public enum Outcome {
+        SUCCESS, COMPILE_FAILED, TESTS_FAILED, TIMED_OUT, ERROR
+    }
+
+    /**
+     * Receives the stages of a build.
+     */
+    public interface Listener {
+        /**
+         * Called when a stage begins, on the thread reading the Maven output.
+         *
+         * @param stage the stage
+         * @param time  the time the stage began, in milliseconds since the
+         *              epoch
+         */
+        void onStage(Stage stage, long time);
+
+        /**
+         * Called before {@link Stage#DONE} with the artifacts Maven downloaded
+         * while resolving dependencies and plugins.
+         *
+         * @param artifacts the number of downloaded files
+         * @param bytes     their total size
+         * @param millis    the time from the first download starting to the
+         *                  last one finishing
+         */
+        default void onDownloads(int artifacts, long bytes, long millis) {
+        }
+    }
+
+    private final BuildRunner runner;
+    private final String repoKey;
+    private final boolean clean;
+    private List<String> tests = null;
+    private List<String> modules = null;
+    private int shards = 1;
+    private TestShards durations = null;
+    private String shardArgLine = "";
+    private String mavenOptions = "";
+    private ProcessSupervisor supervisor;
+    private String timeout = null;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param runner   the runner providing the Maven command line
+     * @param repoName the name of the repository being built
+     * @param clean    true to run {@code clean} first, false to build
+     *                 incrementally
+     */
+    public BuildPipeline(BuildRunner runner, String repoName, boolean clean) {
+        this(runner, repoName, repoName, clean);
+    }
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param runner   the runner providing the Maven command line
+     * @param repoName the name of the repository being built
+     * @param repoKey  the owner and name of the repository, which the runner
+     *                 keeps its state of the repository under
+     * @param clean    true to run {@code clean} first, false to build
+     *                 incrementally
+     */
+    public BuildPipeline(BuildRunner runner, String repoName, String repoKey, boolean clean) {
+        this.runner = runner;
+        this.repoKey = repoKey;
+        this.clean = clean;
+        this.supervisor = ProcessSupervisor.forRepo(repoName);
+    }
+
+    /**
+     * Creates the pipeline configured for a repository. Builds are incremental
+     * unless {@code ci.repo.<name>.clean} is true.
+     *
+     * @param repoName the name of the repository
+     * @param repoKey  the owner and name of the repository
+     * @return the pipeline
+     */
+    public static BuildPipeline forRepo(String repoName, String repoKey) {
+        BuildPipeline pipeline = new BuildPipeline(BuildRunner.forRepo(repoName), repoName, repoKey,
+                Config.getRepoBoolean(repoName, "clean", false));
+        int shards = Config.getRepoInt(repoName, "shards", 1);
+        if (shards > 1) {
+            String argLine = "";
+            String heap = Config.getRepo(repoName, "shard.heap", "");
+            if (!heap.isEmpty()) {
+                argLine += " -Xmx" + heap;
+            }
+            int cpus = Config.getRepoInt(repoName, "shard.cpus", 0);
+            if (cpus > 0) {
+                argLine += " -XX:ActiveProcessorCount=" + cpus;
+            }
+            pipeline.setSharding(shards, TestShards.forRepo(repoName, repoKey), argLine.trim());
+        }
+        return pipeline;
+    }
+
+    /**
+     * Runs the tests in several Maven processes at once. The project is
+     * compiled first, then the test classes are split by their earlier run
+     * times and every shard runs the {@code test} phase on its own classes,
+     * in its own copy of the compiled project so that the shards never write
+     * to the same {@code target} directory. The Surefire reports of the
+     * copies are collected in the project afterwards. The shards skip the
+     * main compiler and the resources, which the first run already handled,
+     * but still go through the compile phase, because Maven only resolves a
+     * module to the classes of a sibling module in the same reactor when
+     * that phase ran in the build.
+     *
+     * @param shards    the number of processes
+     * @param durations the run times of earlier builds
+     * @param argLine   JVM options of the test JVMs of every shard, such as
+     *                  heap and processor limits, which replace the
+     *                  {@code argLine} of the project, or empty for the
+     *                  options of the project
+     */
+    public void setSharding(int shards, TestShards durations, String argLine) {
+        this.shards = shards;
+        this.durations = durations;
+        this.shardArgLine = argLine;
+    }
+
+    /**
+     * Limits the build to some test classes. An empty list compiles the
+     * project without running tests.
+     *
+     * @param tests the fully qualified names of the test classes, or null to
+     *              run all tests
+     * @see TestImpact
+     */
+    public void setTests(List<String> tests) {
+        this.tests = tests;
+    }
+
+    /**
+     * Limits the build to some modules of the reactor and the modules they
+     * depend on, with {@code -pl <modules> -am}.
+     *
+     * @param modules the paths of the modules, or null to build the whole
+     *                reactor
+     * @see ReactorModules
+     */
+    public void setModules(List<String> modules) {
+        this.modules = modules;
+    }
+
+    /**
+     * Returns the Maven goals run by the pipeline.
+     *
+     * @return the goals
+     */
+    public String getGoals() {
+        String goals = (clean ? "clean test" : "test") + projects();
+        if (tests == null) {
+            return goals;
+        }
+        if (tests.isEmpty()) {
+            return goals + " -DskipTests";
+        }
+        // modules without any of the tests must not fail the build
+        return goals + " -Dtest=" + String.join(",", tests)
+                + " -Dsurefire.failIfNoSpecifiedTests=false -DfailIfNoTests=false";
+    }
+
+    /**
+     * Sets options put in front of the goals of every Maven command, such as
+     * the local repository of an {@link ArtifactCache.Overlay}.
+     *
+     * @param options the options
+     */
+    public void setMavenOptions(String options) {
+        this.mavenOptions = options;
+    }
+
+    /**
+     * Sets the supervisor starting the Maven processes, which by default has
+     * the limits configured for the repository.
+     *
+     * @param supervisor the supervisor
+     */
+    public void setSupervisor(ProcessSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    /**
+     * Returns why the build was stopped when its outcome is
+     * {@link Outcome#TIMED_OUT}.
+     *
+     * @return the exceeded limit, or null
+     */
+    public String getTimeout() {
+        return timeout;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public BuildRunner getRunner() {
+        return runner;
+    }
+
+    /**
+     * Builds the project in a directory.
+     *
+     * @param directory      the directory of the Maven project
+     * @param processBuilder the process builder that starts Maven
+     * @param listener       receives the stages of the build
+     * @return the outcome of the build
+     */
+    public Outcome run(File directory, ProcessBuilder processBuilder, Listener listener) {
+        if (shards > 1) {
+            return runSharded(directory, processBuilder, listener);
+        }
+        OutputState state = new OutputState(listener);
+        try {
+            processBuilder.directory(directory);
+            processBuilder.command(command(directory, getGoals()));
+            listener.onStage(Stage.COMPILE, System.currentTimeMillis());
+            ProcessSupervisor.Supervised process = start(processBuilder);
+            ProcessOutput.drain(process, state::accept);
+            int exitCode = process.waitFor();
+            timeout = process.getTimeout();
+            runner.finished(repoKey, exitCode, timeout != null);
+            state.reportDownloads();
+            listener.onStage(Stage.DONE, System.currentTimeMillis());
+            return timeout != null ? Outcome.TIMED_OUT : state.outcome(exitCode);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            listener.onStage(Stage.DONE, System.currentTimeMillis());
+            return Outcome.ERROR;
+        }
+    }
+
+    private String projects() {
+        return modules == null ? "" : " -pl " + String.join(",", modules) + " -am";
+    }
+
+    private List<String> command(File directory, String goals) {
+        return runner.command(directory, repoKey, mavenOptions.isEmpty() ? goals : mavenOptions + " " + goals);
+    }
+
+    /**
+     * Starts the command set by {@link #command(File, String)}, telling the
+     * runner if it could not be started.
+     */
+    private ProcessSupervisor.Supervised start(ProcessBuilder processBuilder) throws IOException {
+        try {
+            return supervisor.start(processBuilder);
+        } catch (IOException | RuntimeException e) {
+            runner.finished(repoKey, -1, false);
+            throw e;
+        }
+    }
+
+    private Outcome runSharded(File directory, ProcessBuilder processBuilder, Listener listener) {
+        List<ProcessSupervisor.Supervised> processes = new ArrayList<>();
+        List<File> copies = new ArrayList<>();
+        int finished = 0;
+        try {
+            processBuilder.directory(directory);
+            listener.onStage(Stage.COMPILE, System.currentTimeMillis());
+            processBuilder.command(command(directory, (clean ? "clean test-compile" : "test-compile") + projects()));
+            ProcessSupervisor.Supervised compile = start(processBuilder);
+            // the test runs only resolve Surefire's providers, so only the
+            // compile run is followed for downloads
+            OutputState state = new OutputState(listener);
+            ProcessOutput.drain(compile, state::accept);
+            int exitCode = compile.waitFor();
+            timeout = compile.getTimeout();
+            runner.finished(repoKey, exitCode, timeout != null);
+            state.reportDownloads();
+            if (exitCode != 0) {
+                listener.onStage(Stage.DONE, System.currentTimeMillis());
+                return timeout != null ? Outcome.TIMED_OUT : Outcome.COMPILE_FAILED;
+            }
+
+            List<String> selected = tests != null ? tests : TestShards.findTestClasses(directory);
+            List<List<String>> plan = TestShards.plan(selected, durations.getDurations(), shards);
+            listener.onStage(Stage.TEST, System.currentTimeMillis());
+            // every shard but the first runs in a copy of the compiled project,
+            // so no two Maven processes write to the same target directory
+            List<File> directories = new ArrayList<>();
+            directories.add(directory);
+            for (int i = 1; i < plan.size(); i++) {
+                File copy = new File(directory.getParentFile(), directory.getName() + ".shard-" + i);
+                copies.add(copy);
+                copyTree(directory, copy);
+                directories.add(copy);
+            }
+            List<Thread[]> outputs = new ArrayList<>();
+            for (int i = 0; i < plan.size(); i++) {
+                String goals = "test" + projects() + " -Dmaven.main.skip=true -Dmaven.resources.skip=true"
+                        + " -Dtest=" + String.join(",", plan.get(i))
+                        + " -Dsurefire.failIfNoSpecifiedTests=false -DfailIfNoTests=false";
+                if (!shardArgLine.isEmpty()) {
+                    goals += " \"-DargLine=" + shardArgLine + "\"";
+                }
+                processBuilder.directory(directories.get(i));
+                processBuilder.command(command(directories.get(i), goals));
+                ProcessSupervisor.Supervised process = start(processBuilder);
+                processes.add(process);
+                outputs.add(ProcessOutput.start(process, "[shard " + i + "] ", null));
+            }
+            boolean passed = true;
+            for (int i = 0; i < processes.size(); i++) {
+                ProcessOutput.join(outputs.get(i));
+                int shardExit = processes.get(i).waitFor();
+                String shardTimeout = processes.get(i).getTimeout();
+                finished++;
+                runner.finished(repoKey, shardExit, shardTimeout != null);
+                passed &= shardExit == 0;
+                if (timeout == null) {
+                    timeout = shardTimeout;
+                }
+            }
+            for (File copy : copies) {
+                copyReports(copy, directory);
+            }
+            listener.onStage(Stage.DONE, System.currentTimeMillis());
+            if (timeout != null) {
+                return Outcome.TIMED_OUT;
+            }
+            return passed ? Outcome.SUCCESS : Outcome.TESTS_FAILED;
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            // the shards still running would outlive the build and write to
+            // copies that are about to be deleted
+            for (int i = finished; i < processes.size(); i++) {
+                processes.get(i).destroyForcibly();
+                runner.finished(repoKey, -1, false);
+            }
+            listener.onStage(Stage.DONE, System.currentTimeMillis());
+            return Outcome.ERROR;
+        } finally {
+            processBuilder.directory(directory);
+            for (File copy : copies) {
+                WorkspaceManager.delete(copy);
+            }
+        }
+    }
+
+    /**
+     * Copies a project with its compiled classes, keeping the modification
+     * times so that Maven finds the classes up to date.
+     */
+    private static void copyTree(File from, File to) throws IOException {
+        WorkspaceManager.delete(to);
+        Path source = from.toPath();
+        Path target = to.toPath();
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path copy = target.resolve(source.relativize(path));
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(path, copy, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the Surefire reports of a shard back to the project, where the
+     * reports of the build are read.
+     */
+    private static void copyReports(File from, File to) throws IOException {
+        Path source = from.toPath();
+        List<Path> reports;
+        try (Stream<Path> paths = Files.walk(source)) {
+            reports = paths.filter(path -> path.getParent() != null
+                    && path.getParent().getFileName().toString().equals("surefire-reports")
+                    && Files.isRegularFile(path)).collect(Collectors.toList());
+        }
+        for (Path report : reports) {
+            Path copy = to.toPath().resolve(source.relativize(report));
+            Files.createDirectories(copy.getParent());
+            Files.copy(report, copy, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Follows the Maven output of one build.
+     */
+    static final class OutputState {
+        private final Listener listener;
+        private boolean testing = false;
+        private Outcome failure = null;
+        private int downloads = 0;
+        private long downloadedBytes = 0;
+        private long firstDownload = 0;
+        private long lastDownload = 0;
+
+        OutputState(Listener listener) {
+            this.listener = listener;
+        }
+
+        void accept(String line) {
+            if (line.contains("Download")) {
+                acceptDownload(line);
+                return;
+            }
+            // cheap checks first, most lines are neither mojo headers nor errors
+            if (!testing && line.contains("--- ")) {
+                Matcher start = MOJO_START.matcher(line);
+                if (start.find() && start.group(1).contains("surefire") && "test".equals(start.group(2))) {
+                    testing = true;
+                    listener.onStage(Stage.TEST, System.currentTimeMillis());
+                }
+            } else if (failure == null && line.startsWith("[ERROR] Failed to execute goal")) {
+                Matcher failed = FAILED_GOAL.matcher(line);
+                if (failed.find()) {
+                    boolean testGoal = failed.group(1).contains("surefire") || failed.group(1).contains("failsafe");
+                    failure = testGoal ? Outcome.TESTS_FAILED : Outcome.COMPILE_FAILED;
+                }
+            }
+        }
+
+        private void acceptDownload(String line) {
+            long now = System.currentTimeMillis();
+            if (line.contains("Downloading from ")) {
+                if (firstDownload == 0) {
+                    firstDownload = now;
+                }
+                return;
+            }
+            Matcher downloaded = DOWNLOADED.matcher(line);
+            if (downloaded.find()) {
+                double size = Double.parseDouble(downloaded.group(1).replace(",", ""));
+                switch (downloaded.group(2)) {
+                    case "kB":
+                        size *= 1e3;
+                        break;
+                    case "MB":
+                        size *= 1e6;
+                        break;
+                    case "GB":
+                        size *= 1e9;
+                        break;
+                    default:
+                        break;
+                }
+                downloads++;
+                downloadedBytes += (long) size;
+                lastDownload = now;
+            }
+        }
+
+        void reportDownloads() {
+            long millis = firstDownload > 0 && lastDownload >= firstDownload ? lastDownload - firstDownload : 0;
+            listener.onDownloads(downloads, downloadedBytes, millis);
+        }
+
+        Outcome outcome(int exitCode) {
+            if (exitCode == 0) {
+                return Outcome.SUCCESS;
+            }
+            if (failure != null) {
+                return failure;
+            }
+            // Maven died without naming the failing goal
+            return testing ? Outcome.TESTS_FAILED : Outcome.COMPILE_FAILED;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs Maven for a build. {@link ContinuousIntegrationServer#compileCode} and
+ * {@link ContinuousIntegrationServer#runTests} ask the runner for the command
+ * line of the goals they need and start it themselves, so every runner gets
+ * the same output handling.
+ * <p>
+ * The runner of a repository is chosen with the "runner" setting:
+ * {@code mvn} starts a new Maven JVM for every command, {@code mvnd} reuses
+ * warm Maven daemons across jobs of the same repository.
+ */
+public interface BuildRunner {
+
+    /**
+     * Returns the command line that runs Maven goals in a project.
+     *
+     * @param directory the directory of the Maven project
+     * @param repoKey   the owner and name of the repository being built, as
+     *                  returned by {@link MirrorCache#repoKey(String)}
+     * @param goals     the goals and options, for example "clean compile"
+     * @return the command line
+     */
+    List<String> command(File directory, String repoKey, String goals);
+
+    /**
+     * Called when a command of this runner has exited, or could not be
+     * started, once for every command line returned by
+     * {@link #command(File, String, String)}.
+     *
+     * @param repoKey  the owner and name of the repository that was built
+     * @param exitCode the exit code of the command, or -1 if it is unknown
+     * @param killed   true if the command was killed for running too long
+     *                 or staying silent
+     */
+    default void finished(String repoKey, int exitCode, boolean killed) {
+    }
+
+    /**
+     * Returns the name of the runner, as used in the "runner" setting.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Returns the runner configured for a repository. The daemon runner falls
+     * back to plain Maven processes when mvnd is not installed.
+     *
+     * @param repoName the name of the repository
+     * @return the runner
+     */
+    static BuildRunner forRepo(String repoName) {
+        String name = Config.getRepo(repoName, "runner", "mvn");
+        if (MavenDaemonRunner.NAME.equals(name)) {
+            MavenDaemonRunner daemons = MavenDaemonRunner.getShared();
+            if (daemons.isAvailable()) {
+                return daemons;
+            }
+        }
+        return MavenProcessRunner.INSTANCE;
+    }
+}
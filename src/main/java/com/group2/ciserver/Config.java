@@ -0,0 +1,86 @@
+package com.group2.ciserver;
+
+/**
+ * Reads the settings of the CI server. A setting named {@code key} is looked up
+ * as the system property {@code ci.key} first and then as the environment
+ * variable {@code CI_KEY}, so both {@code -Dci.workers=4} and
+ * {@code CI_WORKERS=4} configure the number of workers.
+ * Settings for a single repository use the key {@code repo.<name>.<key>}.
+ */
+public final class Config {
+
+    private Config() {
+    }
+
+    /**
+     * Returns the value of a setting.
+     *
+     * @param key          the name of the setting without the "ci." prefix
+     * @param defaultValue the value to use if the setting is missing
+     * @return the configured value, or defaultValue if it is not set
+     */
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty("ci." + key);
+        if (value == null) {
+            String envKey = "CI_" + key.toUpperCase().replace('.', '_').replace('-', '_');
+            value = System.getenv(envKey);
+        }
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Returns the value of an integer setting.
+     *
+     * @param key          the name of the setting without the "ci." prefix
+     * @param defaultValue the value to use if the setting is missing or invalid
+     * @return the configured value, or defaultValue
+     */
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value for ci." + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of a setting for a single repository, falling back to
+     * the server wide setting with the same key.
+     *
+     * @param repoName     the name of the repository
+     * @param key          the name of the setting
+     * @param defaultValue the value to use if neither setting exists
+     * @return the configured value, or defaultValue
+     */
+    public static String getRepo(String repoName, String key, String defaultValue) {
+        return get("repo." + repoName + "." + key, get(key, defaultValue));
+    }
+
+    /**
+     * Returns the value of an integer setting for a single repository, falling
+     * back to the server wide setting with the same key.
+     *
+     * @param repoName     the name of the repository
+     * @param key          the name of the setting
+     * @param defaultValue the value to use if neither setting exists
+     * @return the configured value, or defaultValue
+     */
+    public static int getRepoInt(String repoName, String key, int defaultValue) {
+        return getInt("repo." + repoName + "." + key, getInt(key, defaultValue));
+    }
+
+    /**
+     * Returns the value of a boolean setting for a single repository, falling
+     * back to the server wide setting with the same key.
+     *
+     * @param repoName     the name of the repository
+     * @param key          the name of the setting
+     * @param defaultValue the value to use if neither setting exists
+     * @return true if the setting is "true", false if it is set to anything
+     *         else, or defaultValue
+     */
+    public static boolean getRepoBoolean(String repoName, String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getRepo(repoName, key, Boolean.toString(defaultValue)));
+    }
+}
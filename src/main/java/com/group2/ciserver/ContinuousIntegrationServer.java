@@ -6,12 +6,18 @@ import javax.servlet.ServletException;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
-import java.util.concurrent.CompletableFuture;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 
 import org.eclipse.jetty.server.Server;
@@ -33,11 +39,238 @@ import java.io.File;
  */
 public class ContinuousIntegrationServer extends AbstractHandler {
 
+    static final String COMPILE_GOALS = "clean compile";
+    static final String TEST_GOALS = "test";
+
+    private final JobQueue jobQueue;
+    private final WorkspaceManager workspaces;
+    private final BuildHistory history;
+    private final ResultCache resultCache;
+    private final ArtifactCache artifacts;
+    private final StatusPublisher statuses;
+    private final IntakeJournal intake;
+    private final BuildFarm farm;
+    private final EventBus events = new EventBus();
+    private final Metrics metrics = new Metrics();
+    private final Histogram webhookLatency = metrics.histogram("ci_webhook_duration_seconds",
+            "Time to handle a webhook request", 1e9, 14, 34).labels();
+    private final LongAdder[] webhookResponses = new LongAdder[6];
+    private final Histogram queueWait = metrics.histogram("ci_queue_wait_seconds",
+            "Time jobs waited in the queue", 1000, 4, 22).labels();
+    private final Metrics.Family<Histogram> stageDurations = metrics.histogram("ci_stage_duration_seconds",
+            "Time of each stage of a build", 1000, 4, 22, "stage");
+    private final Histogram buildCpu = metrics.histogram("ci_build_cpu_seconds",
+            "CPU time of the build processes of a job", 1000, 4, 24).labels();
+    private final Histogram buildMemory = metrics.histogram("ci_build_peak_rss_bytes",
+            "Peak resident memory of the build processes of a job", 1, 20, 36).labels();
+    private final Metrics.Family<LongAdder> builds = metrics.counter("ci_builds_total",
+            "Finished builds by repository and outcome", "repo", "outcome");
+    private final long maxPayloadBytes = Config.getInt("webhook.max-bytes", 25 * 1024 * 1024);
+    private final WebhookSignature signature = WebhookSignature.fromConfig();
+    // set when a shutdown gave up waiting, the jobs still running are replayed on the next start
+    private volatile boolean stopping = false;
+    // jobs whose result was reported, only touched by the event thread
+    private final Set<Long> reported = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > 1000;
+        }
+    });
+    // jobs a worker already took, only touched by the event thread
+    private final Set<Long> started = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > 1000;
+        }
+    });
+
+    /**
+     * Creates a server whose job queue, workspaces, build history, caches,
+     * status publisher and intake journal are configured from {@link Config}.
+     *
+     * @throws IOException if the build history or the intake journal could
+     *                     not be opened
+     */
+    public ContinuousIntegrationServer() throws IOException {
+        this(JobQueue.fromConfig(), WorkspaceManager.fromConfig(), BuildHistory.fromConfig(),
+                ResultCache.fromConfig(), ArtifactCache.fromConfig(), StatusPublisher.fromConfig(),
+                IntakeJournal.fromConfig());
+    }
+
+    /**
+     * Creates a server that runs its CI jobs on the given queue.
+     * <p>
+     * The status publisher and the intake journal are null in the pipeline
+     * of a {@link BuildAgent}, which does not answer webhooks and sends the
+     * events of its jobs to the coordinator instead of GitHub.
+     *
+     * @param jobQueue    the queue the webhook jobs are submitted to
+     * @param workspaces  the manager handing out the workspaces of the jobs
+     * @param history     the store the finished builds are recorded in
+     * @param resultCache the cache of source trees that passed the build
+     * @param artifacts   the shared Maven repository, or null to let builds
+     *                    use the local repository of the user
+     * @param statuses    the publisher posting the commit statuses, or null
+     * @param intake      the journal of accepted jobs, whose unfinished jobs
+     *                    are queued again, or null
+     */
+    public ContinuousIntegrationServer(JobQueue jobQueue, WorkspaceManager workspaces, BuildHistory history,
+            ResultCache resultCache, ArtifactCache artifacts, StatusPublisher statuses, IntakeJournal intake) {
+        this(jobQueue, workspaces, history, resultCache, artifacts, statuses, intake, null);
+    }
+
+    /**
+     * Creates a server that runs its CI jobs on the given queue, building
+     * them on the agents of a build farm when one is given.
+     *
+     * @param jobQueue    the queue the webhook jobs are submitted to
+     * @param workspaces  the manager handing out the workspaces of the jobs
+     * @param history     the store the finished builds are recorded in
+     * @param resultCache the cache of source trees that passed the build
+     * @param artifacts   the shared Maven repository, or null
+     * @param statuses    the publisher posting the commit statuses, or null
+     * @param intake      the journal of accepted jobs, or null
+     * @param farm        the farm whose agents build the jobs, or null to
+     *                    build them on this machine
+     */
+    public ContinuousIntegrationServer(JobQueue jobQueue, WorkspaceManager workspaces, BuildHistory history,
+            ResultCache resultCache, ArtifactCache artifacts, StatusPublisher statuses, IntakeJournal intake,
+            BuildFarm farm) {
+        this.jobQueue = jobQueue;
+        this.workspaces = workspaces;
+        this.history = history;
+        this.resultCache = resultCache;
+        this.artifacts = artifacts;
+        this.statuses = statuses;
+        this.intake = intake;
+        this.farm = farm;
+        if (statuses != null) {
+            events.subscribe(this::reportProgress);
+        }
+        if (signature == null && intake != null) {
+            System.out.println("No ci.webhook.secret set, webhooks are accepted without a signature");
+        }
+        // job ids name the log files, so they must not restart at 1
+        BuildJob.advanceSequence(Math.max(history.getLastJobId(), intake == null ? 0 : intake.getLastJobId()));
+        registerMetrics();
+        if (intake != null) {
+            replayIntake();
+        }
+    }
+
+    /**
+     * Registers the metrics kept by the queue, the status publisher and the
+     * intake journal, and the resources used by the build processes.
+     */
+    private void registerMetrics() {
+        Metrics.Family<LongAdder> responses = metrics.counter("ci_webhook_requests_total",
+                "Webhook requests by class of response status", "code");
+        for (int i = 1; i < webhookResponses.length; i++) {
+            webhookResponses[i] = responses.labels(i + "xx");
+        }
+        metrics.gauge("ci_queue_depth", "Jobs waiting in the queue", jobQueue::getQueueDepth);
+        metrics.gauge("ci_queue_capacity", "Jobs that may wait in the queue", jobQueue::getCapacity);
+        metrics.gauge("ci_running_jobs", "Jobs being built", jobQueue::getRunningJobs);
+        metrics.gauge("ci_workers", "Jobs that may be built at the same time", jobQueue::getWorkerCount);
+        metrics.counterFunction("ci_jobs_accepted_total", "Jobs accepted by the queue", jobQueue::getAcceptedJobs);
+        metrics.counterFunction("ci_jobs_rejected_total", "Jobs rejected because the queue was full or shut down",
+                jobQueue::getRejectedJobs);
+        metrics.counterFunction("ci_jobs_superseded_total", "Jobs superseded by a newer push to their branch",
+                jobQueue::getSupersededJobs);
+        metrics.gauge("ci_event_backlog", "Job events waiting to be dispatched", events::getPending);
+        metrics.counterFunction("ci_workspace_branch_hits_total",
+                "Jobs given a released workspace that built their commit or branch", workspaces::getBranchHits);
+        metrics.counterFunction("ci_workspace_repo_hits_total",
+                "Jobs given a released workspace that built another branch", workspaces::getRepoHits);
+        metrics.counterFunction("ci_workspace_misses_total", "Jobs given a new workspace", workspaces::getMisses);
+        metrics.gauge("ci_workspace_disk_bytes", "Disk space used by the mirrors and workspaces",
+                workspaces::getUsedBytes);
+        metrics.gauge("ci_workspace_free_bytes", "Free disk space for the workspaces", workspaces::getFreeBytes);
+        metrics.counterFunction("ci_workspace_evictions_total",
+                "Idle workspaces and unused mirrors deleted to free disk space", workspaces::getEvictions);
+        metrics.counterFunction("ci_workspace_reclaimed_bytes_total",
+                "Disk space freed by deleting workspaces, build output and mirrors", workspaces::getReclaimedBytes);
+        metrics.counterFunction("ci_child_cpu_seconds_total", "CPU time of the finished build processes",
+                () -> ProcessStats.getChildCpuMillis() / 1000.0);
+        metrics.gauge("ci_child_processes", "Running build processes",
+                () -> ProcessHandle.current().descendants().count());
+        metrics.gauge("ci_child_rss_bytes", "Resident memory of the running build processes",
+                ProcessStats::getDescendantsRssBytes);
+        metrics.counterFunction("ci_build_wall_timeouts_total", "Build processes killed for running too long",
+                ProcessSupervisor::getWallTimeouts);
+        metrics.counterFunction("ci_build_idle_timeouts_total", "Build processes killed for printing nothing too long",
+                ProcessSupervisor::getIdleTimeouts);
+        if (intake != null) {
+            metrics.counterFunction("ci_webhook_redeliveries_total",
+                    "Redelivered webhooks that were not built again", intake::getDuplicates);
+            metrics.gauge("ci_intake_open_jobs", "Accepted jobs that have not finished", intake::getOpenJobs);
+            metrics.counterFunction("ci_intake_syncs_total", "Syncs of the intake journal to disk",
+                    intake::getSyncs);
+        }
+        if (farm != null) {
+            metrics.gauge("ci_farm_agents", "Registered build agents", farm::getAgentCount);
+            metrics.gauge("ci_farm_capacity", "Jobs the build agents can build at the same time",
+                    farm::getCapacity);
+            metrics.gauge("ci_farm_pending_jobs", "Jobs waiting for a build agent", farm::getPendingJobs);
+            metrics.gauge("ci_farm_running_jobs", "Jobs being built by agents", farm::getRunningJobs);
+            metrics.counterFunction("ci_farm_reassigned_jobs_total", "Jobs handed to another agent after one was lost",
+                    farm::getReassignedJobs);
+            metrics.counterFunction("ci_farm_lost_agents_total", "Agents forgotten after missing their heartbeats",
+                    farm::getLostAgents);
+            metrics.counterFunction("ci_farm_affinity_hits_total",
+                    "Jobs given to an agent that had built their repository", farm::getAffinityHits);
+            metrics.counterFunction("ci_farm_affinity_misses_total",
+                    "Jobs given to an agent while no agent had built their repository", farm::getAffinityMisses);
+            metrics.counterFunction("ci_farm_stolen_jobs_total",
+                    "Jobs taken from saturated or slow agents that had built their repository",
+                    farm::getStolenJobs);
+        }
+        if (statuses == null) {
+            return;
+        }
+        metrics.histogram("ci_github_request_duration_seconds", "Time GitHub took to answer a status request",
+                1000, statuses.getLatency());
+        metrics.counterFunction("ci_github_statuses_sent_total", "Commit statuses sent to GitHub",
+                statuses::getSent);
+        metrics.counterFunction("ci_github_statuses_dropped_total", "Commit statuses GitHub rejected",
+                statuses::getDropped);
+        metrics.gauge("ci_github_statuses_pending", "Commit statuses waiting to be sent", statuses::getPending);
+        metrics.gauge("ci_github_rate_limit_remaining", "Requests left in the GitHub rate limit, -1 if unknown",
+                statuses::getRateLimitRemaining);
+        metrics.gauge("ci_github_rate_limit", "Requests per hour allowed by GitHub, -1 if unknown",
+                statuses::getRateLimitLimit);
+    }
+
+    /**
+     * Queues the jobs that were accepted before the last shutdown but did
+     * not finish, under new job ids.
+     */
+    private void replayIntake() {
+        List<IntakeJournal.Entry> replay = intake.getReplay();
+        if (!replay.isEmpty()) {
+            System.out.println("Queueing " + replay.size() + " jobs accepted before the restart");
+        }
+        String accessToken = Config.get("github.token", "");
+        for (IntakeJournal.Entry entry : replay) {
+            BuildJob job = createJob(entry.getPush(), accessToken);
+            try {
+                JobQueue.SubmitResult result = enqueue(job, entry.getPush(), entry.getDeliveryId(), accessToken);
+                System.out.println("Job " + entry.getJobId() + " queued again as job " + job.getId() + ": "
+                        + result);
+                if (result == JobQueue.SubmitResult.ACCEPTED) {
+                    intake.done(entry.getJobId());
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to queue job " + entry.getJobId() + " again: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Runs the tests for the CI server. This is accomplished by executing tests in
      * a Maven environment
-     * via command line through the ProcessBuilder class and checking if all tests
-     * pass.
+     * via command line through the ProcessBuilder class and checking the exit
+     * code of Maven, which is only 0 if every test of every module passed.
      *
      * @param directory      the directory containing the Maven environment
      * @param processBuilder the process builder instance that runs commands
@@ -45,28 +278,42 @@ public class ContinuousIntegrationServer extends AbstractHandler {
      * @see ProcessBuilder
      */
     public static boolean runTests(File directory, ProcessBuilder processBuilder) {
-        boolean testsPassed = false;
+        return runTests(directory, processBuilder, MavenProcessRunner.INSTANCE, directory.getName());
+    }
 
+    /**
+     * Runs the tests with the given build runner.
+     *
+     * @param directory      the directory containing the Maven environment
+     * @param processBuilder the process builder instance that runs commands
+     * @param runner         the runner providing the Maven command line
+     * @param repoName       the name of the repository being built
+     * @return true if all tests are succesful
+     * @see BuildRunner
+     * @see SurefireReports
+     */
+    public static boolean runTests(File directory, ProcessBuilder processBuilder, BuildRunner runner,
+            String repoName) {
         try {
             processBuilder.directory(directory);
 
-            processBuilder.command("bash", "-c", "mvn test");
-
-            Process process = processBuilder.start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-            String line;
+            processBuilder.command(runner.command(directory, repoName, TEST_GOALS));
 
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
-                if (line.contains("Failures: 0, Errors: 0, Skipped: 0")) {
-                    testsPassed = true;
-                }
+            ProcessSupervisor.Supervised process;
+            try {
+                process = ProcessSupervisor.forRepo(repoName).start(processBuilder);
+            } catch (IOException e) {
+                runner.finished(repoName, -1, false);
+                throw e;
             }
-            return testsPassed;
+            ProcessOutput.drain(process, line -> {
+            });
+            int exitCode = process.waitFor();
+            runner.finished(repoName, exitCode, process.getTimeout() != null);
+            return exitCode == 0;
         } catch (Exception e) {
             System.out.println(e.getMessage());
-            return testsPassed;
+            return false;
         }
     }
 
@@ -122,7 +369,7 @@ public class ContinuousIntegrationServer extends AbstractHandler {
      * Compiles the source code in the specified directory using Maven.
      * This is accomplished by executing the "mvn clean compile" command in a Bash
      * enviroment
-     * via the ProcessBuilder class and checking if the build is successful.
+     * via the ProcessBuilder class and checking that Maven exits with 0.
      *
      * @param directory      the directory containing the Maven project to be
      *                       compiled
@@ -132,23 +379,39 @@ public class ContinuousIntegrationServer extends AbstractHandler {
      * @see ProcessBuilder
      */
     public static boolean compileCode(File directory, ProcessBuilder processBuilder) {
+        return compileCode(directory, processBuilder, MavenProcessRunner.INSTANCE, directory.getName());
+    }
+
+    /**
+     * Compiles the source code with the given build runner.
+     *
+     * @param directory      the directory containing the Maven project to be
+     *                       compiled
+     * @param processBuilder the process builder instance that runs the compilation
+     *                       command
+     * @param runner         the runner providing the Maven command line
+     * @param repoName       the name of the repository being built
+     * @return true if the compilation is successful, false otherwise
+     * @see BuildRunner
+     */
+    public static boolean compileCode(File directory, ProcessBuilder processBuilder, BuildRunner runner,
+            String repoName) {
 
         try {
             processBuilder.directory(directory);
-            processBuilder.command("bash", "-c", "mvn clean compile");
-            Process process = processBuilder.start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-            String line;
-            Boolean compiled = false;
-
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
-                if (line.contains("BUILD SUCCESS")) {
-                    compiled = true;
-                }
+            processBuilder.command(runner.command(directory, repoName, COMPILE_GOALS));
+            ProcessSupervisor.Supervised process;
+            try {
+                process = ProcessSupervisor.forRepo(repoName).start(processBuilder);
+            } catch (IOException e) {
+                runner.finished(repoName, -1, false);
+                throw e;
             }
-            return compiled;
+            ProcessOutput.drain(process, line -> {
+            });
+            int exitCode = process.waitFor();
+            runner.finished(repoName, exitCode, process.getTimeout() != null);
+            return exitCode == 0;
         } catch (Exception e) {
             System.out.println(e.getMessage());
             return false;
@@ -290,10 +553,11 @@ public class ContinuousIntegrationServer extends AbstractHandler {
     /**
      * Handles incoming HTTP requests for the CI server. This method processes
      * webhook payloads,
-     * sets response headers, and asynchronously executes continuous integration
-     * tasks.
+     * sets response headers, and queues the continuous integration tasks on the
+     * {@link JobQueue}.
      * The CI tasks may include cloning the repository, compiling the code, and
-     * running tests.
+     * running tests. If the queue is full the request is answered with 429 Too
+     * Many Requests, and with 503 Service Unavailable while shutting down.
      *
      * @param target      the request target (URL path)
      * @param baseRequest the original Jetty request
@@ -309,132 +573,738 @@ public class ContinuousIntegrationServer extends AbstractHandler {
             HttpServletRequest request,
             HttpServletResponse response)
             throws IOException, ServletException {
-        response.setContentType("text/html;charset=utf-8");
-        response.setStatus(HttpServletResponse.SC_OK);
         baseRequest.setHandled(true);
 
         System.out.println(target);
 
-        String accessToken = "to be changed";
-        if (accessToken == "to be changed") {
+        if ("GET".equals(request.getMethod()) && target.startsWith("/logs/")) {
+            serveLog(target.substring("/logs/".length()), request, response);
+            return;
+        }
+        if ("GET".equals(request.getMethod()) && (target.equals("/builds") || target.startsWith("/builds/"))) {
+            serveBuilds(target, request, response);
+            return;
+        }
+        if ("GET".equals(request.getMethod()) && target.equals("/metrics")) {
+            serveMetrics(response);
+            return;
+        }
+        if (farm != null && (target.equals("/agents") || target.startsWith("/agents/"))) {
+            farm.handle(target, request, response);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            handleWebhook(request, response);
+        } finally {
+            webhookLatency.record(System.nanoTime() - start);
+            webhookResponses[Math.max(1, Math.min(response.getStatus() / 100, 5))].increment();
+        }
+    }
+
+    /**
+     * Handles a webhook: checks and reads the push payload and queues the
+     * job building it.
+     *
+     * @param request  the HTTP servlet request containing the webhook payload
+     * @param response the HTTP servlet response
+     * @throws IOException if the request could not be read or answered
+     */
+    private void handleWebhook(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/html;charset=utf-8");
+
+        String accessToken = Config.get("github.token", "");
+        if (accessToken.isEmpty()) {
             System.out.println("Failed to insert access token in handle()");
         }
 
-        BufferedReader reader = request.getReader();
-        JSONObject json = getPayload(reader);
-        CompletableFuture.runAsync(() -> processCIJob(json, accessToken));
+        String eventType = request.getHeader("X-GitHub-Event");
+        if (eventType != null && !"push".equals(eventType)) {
+            // pings and other events do not build anything, so their body is not read
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println("Ignored " + eventType + " event");
+            return;
+        }
+        if (request.getContentLengthLong() > maxPayloadBytes) {
+            response.setStatus(413);
+            return;
+        }
+        PushEvent push;
+        try {
+            if (signature == null) {
+                push = PushEventParser.parse(request.getInputStream(), maxPayloadBytes);
+            } else {
+                // the HMAC is computed while the parser reads the body
+                WebhookSignature.SignedBody body = signature.open(request.getInputStream(),
+                        request.getHeader("X-Hub-Signature-256"));
+                push = PushEventParser.parse(body, maxPayloadBytes);
+                if (!body.isValid()) {
+                    throw new PayloadException(HttpServletResponse.SC_UNAUTHORIZED, "Invalid signature");
+                }
+            }
+        } catch (PayloadException e) {
+            System.out.println("Rejected webhook: " + e.getMessage());
+            response.setStatus(e.getStatus());
+            response.getWriter().println(e.getMessage());
+            return;
+        }
+        if (push == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            return;
+        }
+        if (push.isDeletion()) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println("Ignored deletion of " + push.getRef());
+            return;
+        }
+
+        // GitHub sends the same delivery id again when it redelivers a webhook
+        String deliveryId = request.getHeader("X-GitHub-Delivery");
+        if (deliveryId != null && !intake.claim(deliveryId)) {
+            System.out.println("Ignored redelivery " + deliveryId);
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println("Delivery " + deliveryId + " was already received");
+            return;
+        }
+        BuildJob job = createJob(push, accessToken);
+        JobQueue.SubmitResult result;
+        try {
+            result = enqueue(job, push, deliveryId, accessToken);
+        } catch (IOException e) {
+            System.out.println("Failed to record job " + job.getId() + ": " + e.getMessage());
+            intake.done(job.getId());
+            result = JobQueue.SubmitResult.SHUT_DOWN;
+        }
+        if (result != JobQueue.SubmitResult.ACCEPTED && deliveryId != null) {
+            intake.forget(deliveryId);
+        }
+        if (result == JobQueue.SubmitResult.ACCEPTED) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        } else if (result == JobQueue.SubmitResult.QUEUE_FULL) {
+            response.setStatus(429);
+            response.setHeader("Retry-After", "30");
+        } else {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        System.out.println("Job " + job.getId() + " " + result + " (" + jobQueue + ")");
+        if (result == JobQueue.SubmitResult.ACCEPTED) {
+            response.getWriter().println("Queued job " + job.getId() + ", log at /logs/" + job.getId());
+        }
+    }
+
+    /**
+     * Stops taking jobs and waits for the queued and running ones, for a
+     * shutdown after the HTTP server stopped. Jobs that do not finish in time
+     * have their build processes destroyed and stay open in the intake
+     * journal, so they run again after the restart. Commit statuses still
+     * queued get a few seconds to be sent.
+     *
+     * @param timeoutMillis the longest time to wait for the jobs
+     * @return true if every job finished
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        System.out.println("Waiting up to " + timeoutMillis + " ms for " + jobQueue);
+        boolean finished = jobQueue.shutdown(timeoutMillis);
+        if (!finished) {
+            stopping = true;
+            int running = jobQueue.getRunningJobs();
+            int queued = jobQueue.abort();
+            System.out.println("Stopped " + running + " running jobs, they and " + queued
+                    + " queued jobs run again after the restart");
+        }
+        if (farm != null) {
+            farm.close();
+        }
+        events.close();
+        if (statuses != null) {
+            if (!statuses.awaitEmpty(5000)) {
+                System.out.println(statuses.getPending() + " commit statuses are left in the outbox");
+            }
+            statuses.close();
+        }
+        if (intake != null) {
+            try {
+                intake.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close the intake journal: " + e.getMessage());
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * Creates the job building a push. The job is marked done in the intake
+     * journal when it finishes or is superseded.
+     *
+     * @param push        the push
+     * @param accessToken the GitHub access token
+     * @return the job
+     */
+    private BuildJob createJob(PushEvent push, String accessToken) {
+        String repoName = push.getRepoName();
+        String commitSHA = push.getAfter();
+        String owner = push.getOwner();
+        int priority = Config.getRepoInt(repoName, "priority", 0);
+        String coalesceKey = push.getRef() != null
+                ? BuildJob.coalesceKey(push.getCloneUrl() != null ? push.getCloneUrl() : repoName, push.getRef())
+                : null;
+        BuildJob job = new BuildJob(repoName, priority, coalesceKey, commitSHA, () -> {
+            try {
+                if (farm != null) {
+                    buildOnAgent(push, accessToken);
+                } else {
+                    processCIJob(push, accessToken);
+                }
+            } finally {
+                if (!stopping) {
+                    intake.done(BuildJob.current().getId());
+                }
+            }
+        });
+        job.setOnSuperseded(() -> {
+            intake.done(job.getId());
+            if (commitSHA != null && owner != null) {
+                events.post(new JobEvent(JobEvent.Type.DONE, job.getId(), owner, repoName, commitSHA,
+                        accessToken, "error", "Superseded by a newer commit on the same branch"));
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Records a job in the intake journal and queues it. A job the queue
+     * does not accept is marked done again right away.
+     *
+     * @param job         the job
+     * @param push        the push the job builds
+     * @param deliveryId  the {@code X-GitHub-Delivery} id, or null
+     * @param accessToken the GitHub access token
+     * @return whether the queue accepted the job
+     * @throws IOException if the job could not be recorded, it is not queued
+     *                     then
+     */
+    private JobQueue.SubmitResult enqueue(BuildJob job, PushEvent push, String deliveryId, String accessToken)
+            throws IOException {
+        // on disk before the webhook is answered, so a restart does not lose the job
+        intake.accept(job.getId(), deliveryId, push);
+        JobQueue.SubmitResult result = jobQueue.submit(job);
+        if (result != JobQueue.SubmitResult.ACCEPTED) {
+            intake.done(job.getId());
+            return result;
+        }
+        String cloneUrl = push.getCloneUrl();
+        String commitSHA = push.getAfter();
+        if (farm == null && artifacts != null && cloneUrl != null && commitSHA != null
+                && !workspaces.getMirrors().getMirror(MirrorCache.repoKey(cloneUrl)).exists()) {
+            // first push of the repository, resolve its dependencies while the job waits
+            artifacts.warmUp(workspaces, cloneUrl, push.getRef(), commitSHA);
+        }
+        if (commitSHA != null && push.getOwner() != null) {
+            events.post(new JobEvent(JobEvent.Type.QUEUED, job.getId(), push.getOwner(), push.getRepoName(),
+                    commitSHA, accessToken, null, null));
+        }
+        return result;
+    }
+
+    /**
+     * Serves the metrics of the server in the Prometheus text format.
+     *
+     * @param response the HTTP servlet response
+     * @throws IOException if the metrics could not be sent
+     * @see Metrics
+     */
+    private void serveMetrics(HttpServletResponse response) throws IOException {
+        StringBuilder text = new StringBuilder(16384);
+        metrics.write(text);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain;version=0.0.4;charset=utf-8");
+        response.getWriter().print(text);
+    }
+
+    /**
+     * Streams the log of a job to the client and keeps following it while the
+     * job is running. Clients asking for {@code text/event-stream} get every
+     * line as a server-sent event, others get the plain log.
+     *
+     * @param jobId    the id of the job, taken from the request path
+     * @param request  the HTTP servlet request
+     * @param response the HTTP servlet response
+     * @throws IOException if the log could not be sent
+     * @see BuildLog#tail(File, long, java.io.OutputStream, boolean)
+     */
+    private static void serveLog(String jobId, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long id;
+        try {
+            id = Long.parseLong(jobId);
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        File file = BuildLog.getFile(BuildLog.getLogDir(), id);
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String accept = request.getHeader("Accept");
+        boolean sse = accept != null && accept.contains("text/event-stream");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(sse ? "text/event-stream;charset=utf-8" : "text/plain;charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        BuildLog.tail(BuildLog.getLogDir(), id, response.getOutputStream(), sse);
+    }
+
+    /**
+     * Serves the build history. {@code /builds/<id>} returns one build and
+     * {@code /builds} returns the builds, newest first, filtered by the
+     * optional "repo" ("owner/name"), "branch" and "sha" parameters. The
+     * response is a JSON object with the "builds" of the page and the "next"
+     * id to pass as "before" to get the following page, 0 on the last page.
+     * Pages hold "limit" builds, at most 500, and every build is written to
+     * the client as soon as it has been read.
+     *
+     * @param target   the request path
+     * @param request  the HTTP servlet request
+     * @param response the HTTP servlet response
+     * @throws IOException if the history could not be read or sent
+     * @see BuildHistory
+     */
+    private void serveBuilds(String target, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        response.setContentType("application/json;charset=utf-8");
+        try {
+            if (target.startsWith("/builds/")) {
+                JSONObject build = history.get(Long.parseLong(target.substring("/builds/".length())));
+                if (build == null) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.getWriter().print(build.toString());
+                return;
+            }
+            String limitParam = request.getParameter("limit");
+            String beforeParam = request.getParameter("before");
+            int limit = limitParam == null ? 50 : Math.max(1, Math.min(500, Integer.parseInt(limitParam)));
+            long before = beforeParam == null ? 0 : Long.parseLong(beforeParam);
+
+            response.setStatus(HttpServletResponse.SC_OK);
+            PrintWriter writer = response.getWriter();
+            writer.print("{\"builds\":[");
+            AtomicBoolean first = new AtomicBoolean(true);
+            long next = history.list(request.getParameter("repo"), request.getParameter("branch"),
+                    request.getParameter("sha"), before, limit, build -> {
+                        if (!first.getAndSet(false)) {
+                            writer.print(',');
+                        }
+                        writer.print(build.toString());
+                        writer.flush();
+                    });
+            writer.print("],\"next\":" + next + "}");
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        }
     }
 
     /**
      * Processes a continuous integration (CI) job based on the webhook payload.
      * This method performs the following steps:
      * <ol>
-     * <li>Clones the repository if it does not already exist.</li>
-     * <li>If cloning fails, attempts to pull the latest changes from the pushed
-     * branch.</li>
-     * <li>Compiles the code using Maven.</li>
-     * <li>Runs the test suite if compilation is successful.</li>
+     * <li>Reports the cached result if the source tree of the commit has
+     * already passed the build.</li>
+     * <li>Acquires a workspace of its own with the pushed commit checked
+     * out.</li>
+     * <li>Compiles the code and runs the test suite in one Maven
+     * invocation.</li>
      * <li>Updates the commit status on GitHub based on the results.</li>
+     * <li>Records the build, with its stage timings and log file, in the
+     * build history.</li>
      * </ol>
      *
      * @param json        the JSON payload received from the webhook, containing
      *                    repository and commit details
      * @param accessToken the GitHub access token used for authentication in API
      *                    requests
-     * @see #cloneRepo(String, File)
-     * @see #pullBranch(File, ProcessBuilder, String)
-     * @see #compileCode(File, ProcessBuilder)
-     * @see #runTests(File, ProcessBuilder)
+     * @see WorkspaceManager#acquire(String, String, String)
+     * @see BuildPipeline
      * @see #setCommitStatus(String, String, String, String, String, String)
+     * @see BuildHistory#append(JSONObject)
+     * @see ResultCache
+     */
+    public void processCIJob(JSONObject json, String accessToken) {
+        PushEvent push = PushEvent.fromJSON(json);
+        if (push != null) {
+            processCIJob(push, accessToken);
+        }
+    }
+
+    /**
+     * Builds a pushed commit, see {@link #processCIJob(JSONObject, String)}.
+     *
+     * @param push        the fields of the push webhook
+     * @param accessToken the GitHub access token used for authentication in API
+     *                    requests
+     * @return the build record stored in the history, or null if the push
+     *         has no clone URL
      */
-    public static void processCIJob(JSONObject json, String accessToken) {
+    public JSONObject processCIJob(PushEvent push, String accessToken) {
+        if (push.getCloneUrl() == null) {
+            return null;
+        }
+        JSONObject record = new JSONObject();
+        JSONObject stages = new JSONObject();
+        BuildJob job = BuildJob.current();
+        long jobId = job != null ? job.getId() : System.currentTimeMillis();
+        record.put("jobId", jobId);
+        record.put("queuedAt", job != null ? job.getEnqueuedAt() : System.currentTimeMillis());
+        record.put("startedAt", System.currentTimeMillis());
+        record.put("stages", stages);
+        record.put("outcome", "error");
+        String treeId = null;
+        String fingerprint = null;
+        String owner = null;
+        String repo = null;
+        String commitSHA = null;
+
         try {
-            if (json.has("repository")) {
-
-                if (json.getJSONObject("repository").has("clone_url")) {
-                    String repoUrl = json.getJSONObject("repository").getString("clone_url");
-                    String repoName = getRepoName(repoUrl);
-                    File dir = new File(System.getProperty("user.home") + "/Github/"+ repoName);
-                    System.out.println("Cloning from: " + repoUrl);
-                    boolean cloned = cloneRepo(json.getJSONObject("repository").getString("clone_url"),
-                            dir);
-                    ProcessBuilder processBuilder = new ProcessBuilder();
-                    if (cloned) {
-                        // compile the code
-                        System.out.println("compiling the code");
-
-                        Boolean compiled = compileCode(dir, processBuilder);
-                        if (compiled) {
-                            System.out.println("compiled!");
-                            // test the code
-                            boolean passedTests = runTests(dir, processBuilder);
-
-                            if (passedTests) {
-                                System.out.println("Passed test!");
-                            } else {
-                                System.out.println("Failed to set commit status");
-                            }
-                        } else {
-                            System.out.println("not compiled!");
-                        }
+            String repoUrl = push.getCloneUrl();
+            if (push.getOwner() == null || push.getAfter() == null) {
+                throw new IllegalArgumentException("The payload has no repository owner or commit");
+            }
+            owner = push.getOwner();
+            repo = push.getRepoName();
+            commitSHA = push.getAfter();
+            String ref = push.getRef();
+            record.put("repo", owner + "/" + repo);
+            record.put("sha", commitSHA);
+            if (ref != null) {
+                record.put("branch", ref.replaceFirst("refs/heads/", ""));
+            }
+            System.out.println("Building " + commitSHA + " of " + repoUrl);
 
-                    } else {
-
-                        // pull the code from the branch that the code was pushed to
-                        String owner = json.getJSONObject("repository").getJSONObject("owner").getString("name");
-                        String repo = json.getJSONObject("repository").getString("name");
-                        String commitSHA = json.getString("after");
-                        System.out.println("Clone exists, trying pull");
-                        String branchName = json.getString("ref").replaceFirst("refs/heads/", "");
-
-                        Boolean pulled = pullBranch(dir, branchName);
-                        if (pulled) {
-                            Boolean compiled = compileCode(dir, processBuilder);
-                            // notify the status
-                            if (compiled) {
-                                System.out.println("compiled!");
-                                // test the code
-                                boolean passedTests = runTests(dir, processBuilder);
-                                if (passedTests) {
-                                    String status = "success";
-                                    String desc = "All tests passed and the code compiled!";
-                                    System.out.println(desc);
-                                    boolean setStatus = setCommitStatus(owner, repo, commitSHA, status, desc,
-                                            accessToken);
-                                    if (!setStatus) {
-                                        System.out.println("Test Success butFailed to set commit status");
-                                    }
-                                } else {
-                                    String status = "failure";
-                                    String desc = "One or more tests failed but the code compiled!";
-                                    System.out.println(desc);
-                                    boolean setStatus = setCommitStatus(owner, repo, commitSHA, status, desc,
-                                            accessToken);
-                                    if (!setStatus) {
-                                        System.out.println("Failed to set commit status");
-                                    }
-                                }
-                            } else {
-                                System.out.println("not compiled!");
-                                String status = "failure";
-                                String desc = "Failed to compile the code!";
-                                System.out.println(desc);
-                                boolean setStatus = setCommitStatus(owner, repo, commitSHA, status, desc,
-                                        accessToken);
-                                if (!setStatus) {
-                                    System.out.println("Failed to set commit status");
-                                }
-                            }
-                        } else {
-                            System.out.println("Pull failed!");
-                        }
-                    }
+            File logDir = BuildLog.getLogDir();
+            record.put("log", BuildLog.getFile(logDir, jobId).getPath());
+            try (BuildLog log = BuildLog.open(logDir, jobId)) {
+                events.post(new JobEvent(JobEvent.Type.FETCHING, jobId, owner, repo, commitSHA, accessToken,
+                        null, null));
+                long fetchStart = System.currentTimeMillis();
+                File mirror = workspaces.getMirrors().ensureCommit(repoUrl, ref, commitSHA);
+                stages.put("fetch", System.currentTimeMillis() - fetchStart);
+                treeId = MirrorCache.treeOf(mirror, commitSHA);
+                record.put("tree", treeId);
+                fingerprint = ResultCache.fingerprint(
+                        List.of(BuildPipeline.forRepo(repo, MirrorCache.repoKey(repoUrl)).getGoals()));
+                JSONObject cached = resultCache.get(treeId, fingerprint);
+                if (cached != null) {
+                    String desc = "Same source tree already passed in build " + cached.getLong("buildId")
+                            + " of " + cached.getString("sha");
+                    System.out.println(desc);
+                    log.println(desc);
+                    record.put("outcome", "cached");
+                    record.put("cachedFrom", cached.getLong("buildId"));
+                    events.post(new JobEvent(JobEvent.Type.DONE, jobId, owner, repo, commitSHA, accessToken,
+                            "success", desc));
+                    return record;
                 }
+                buildInWorkspace(repoUrl, owner, repo, ref, commitSHA, push.getBefore(), accessToken, log, record);
             }
         } catch (Exception e) {
             System.err.println("Error processing CI job: " + e.getMessage());
+            record.put("error", String.valueOf(e.getMessage()));
+            if (commitSHA != null) {
+                // replace the pending status posted when the job was queued
+                events.post(new JobEvent(JobEvent.Type.DONE, jobId, owner, repo, commitSHA, accessToken, "error",
+                        "The CI job failed: " + e.getMessage()));
+            }
+        } finally {
+            record.put("finishedAt", System.currentTimeMillis());
+            if (job != null && job.getCpuMillis() + job.getPeakRssBytes() > 0) {
+                record.put("cpuMillis", job.getCpuMillis());
+                record.put("peakRssBytes", job.getPeakRssBytes());
+            }
+            recordBuild(record, fingerprint);
         }
+        return record;
+    }
 
+    /**
+     * Builds a pushed commit on an agent of the build farm. The events and
+     * log lines the agent sends are posted and written here, and its build
+     * record is stored in the history.
+     *
+     * @param push        the fields of the push webhook
+     * @param accessToken the GitHub access token used for the commit statuses
+     */
+    private void buildOnAgent(PushEvent push, String accessToken) {
+        BuildJob job = BuildJob.current();
+        long jobId = job.getId();
+        String owner = push.getOwner();
+        String repo = push.getRepoName();
+        String commitSHA = push.getAfter();
+        File logFile = BuildLog.getFile(BuildLog.getLogDir(), jobId);
+        long startedAt = System.currentTimeMillis();
+        JSONObject record;
+        try (BuildLog log = BuildLog.open(BuildLog.getLogDir(), jobId)) {
+            record = farm.run(job, push, log, event -> {
+                if (owner != null && commitSHA != null) {
+                    events.post(new JobEvent(JobEvent.Type.valueOf(event.getString("type").toUpperCase()), jobId,
+                            owner, repo, commitSHA, accessToken, event.optString("state", null),
+                            event.optString("description", null)));
+                }
+            });
+        } catch (IOException e) {
+            if (stopping) {
+                // the job stays open in the intake journal and is built after the restart
+                return;
+            }
+            System.err.println("Error processing CI job: " + e.getMessage());
+            record = new JSONObject().put("outcome", "error").put("error", String.valueOf(e.getMessage()))
+                    .put("stages", new JSONObject()).put("startedAt", startedAt);
+            if (owner != null && commitSHA != null) {
+                record.put("repo", owner + "/" + repo).put("sha", commitSHA);
+                events.post(new JobEvent(JobEvent.Type.DONE, jobId, owner, repo, commitSHA, accessToken, "error",
+                        "The CI job failed: " + e.getMessage()));
+            }
+            if (push.getRef() != null) {
+                record.put("branch", push.getRef().replaceFirst("refs/heads/", ""));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (record == null) {
+            // superseded, the newer job reports the status of the branch
+            return;
+        }
+        // the record of the agent has its own job id, queue time and log file
+        record.put("jobId", jobId);
+        record.put("queuedAt", job.getEnqueuedAt());
+        record.put("log", logFile.getPath());
+        if (!record.has("finishedAt")) {
+            record.put("finishedAt", System.currentTimeMillis());
+        }
+        recordBuild(record, null);
+    }
+
+    /**
+     * Fills in the times of a finished build, updates the metrics and
+     * stores the build in the history and, if it passed, in the result
+     * cache.
+     *
+     * @param record      the build record
+     * @param fingerprint the fingerprint of the build goals, or null to leave
+     *                    the result cache alone
+     */
+    private void recordBuild(JSONObject record, String fingerprint) {
+        JSONObject stages = record.getJSONObject("stages");
+        record.put("queueMillis", record.getLong("startedAt") - record.getLong("queuedAt"));
+        record.put("runMillis", record.getLong("finishedAt") - record.getLong("startedAt"));
+        queueWait.record(record.getLong("queueMillis"));
+        for (String stage : stages.keySet()) {
+            stageDurations.labels(stage).record(stages.getLong(stage));
+        }
+        if (record.has("cpuMillis")) {
+            buildCpu.record(record.getLong("cpuMillis"));
+            buildMemory.record(record.getLong("peakRssBytes"));
+        }
+        builds.labels(record.optString("repo", "unknown"), record.getString("outcome")).increment();
+        try {
+            long buildId = history.append(record);
+            String treeId = record.optString("tree", null);
+            // a build of some modules or tests does not vouch for the whole tree
+            boolean partial = isPartial(record, "moduleSelection") || isPartial(record, "testSelection");
+            if (treeId != null && fingerprint != null && !partial && "success".equals(record.getString("outcome"))) {
+                resultCache.put(treeId, fingerprint, record.getString("sha"), buildId);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to record build of job " + record.getLong("jobId") + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean isPartial(JSONObject record, String selection) {
+        return record.has(selection) && !record.getJSONObject(selection).getBoolean("full");
+    }
+
+    /**
+     * Compiles and tests a commit in a workspace of its own and reports the
+     * result as the commit status. The outcome and stage timings are stored
+     * in the build record.
+     *
+     * @param repoUrl     the clone URL of the repository
+     * @param owner       the owner of the repository
+     * @param repo        the name of the repository
+     * @param ref         the pushed ref
+     * @param commitSHA   the commit to build
+     * @param before      the commit the ref pointed to before the push, or
+     *                    null
+     * @param accessToken the GitHub access token
+     * @param log         the log of the job
+     * @param record      the build record to fill in
+     * @throws IOException     if the workspace could not be created
+     * @throws GitAPIException if the commit could not be checked out
+     */
+    private void buildInWorkspace(String repoUrl, String owner, String repo, String ref, String commitSHA,
+            String before, String accessToken, BuildLog log, JSONObject record) throws IOException, GitAPIException {
+        JSONObject stages = record.getJSONObject("stages");
+        long jobId = record.getLong("jobId");
+        ReactorModules.Selection modules = null;
+        if ("sparse".equals(Config.getRepo(repo, "checkout", "full"))) {
+            modules = ReactorModules.select(workspaces.getMirrors().getMirror(MirrorCache.repoKey(repoUrl)), before,
+                    commitSHA);
+            record.put("moduleSelection", modules.toJSON());
+            log.println(modules.describe());
+        }
+        try (WorkspaceManager.Workspace workspace = workspaces.acquire(repoUrl, ref, commitSHA,
+                modules == null || modules.isFull() ? null : modules::includes);
+                ArtifactCache.Overlay overlay = artifacts == null ? null
+                        : artifacts.open(String.valueOf(jobId))) {
+            log.println("Building " + commitSHA + " of " + repoUrl + " in " + workspace.getDirectory());
+            stages.put("checkout", workspace.getCheckoutMillis());
+            File dir = workspace.getDirectory();
+            String repoKey = MirrorCache.repoKey(repoUrl);
+            BuildPipeline pipeline = BuildPipeline.forRepo(repo, repoKey);
+            TestImpact impact = TestImpact.forRepo(repo, repoKey);
+            TestImpact.Selection selection = null;
+            if (impact != null) {
+                selection = impact.select(dir, commitSHA);
+                record.put("testSelection", selection.toJSON());
+                log.println(selection.describe());
+                pipeline.setTests(selection.getTests());
+            }
+            if (overlay != null) {
+                pipeline.setMavenOptions(overlay.getOptions());
+            }
+            if (modules != null && !modules.isFull()) {
+                pipeline.setModules(modules.getModules());
+            }
+            record.put("runner", pipeline.getRunner().getName());
+            record.put("goals", pipeline.getGoals());
+            if (pipeline.getShards() > 1) {
+                record.put("shards", pipeline.getShards());
+            }
+
+            long[] stageStart = new long[BuildPipeline.Stage.values().length];
+            BuildPipeline.Outcome outcome = pipeline.run(dir, new ProcessBuilder(), new BuildPipeline.Listener() {
+                @Override
+                public void onStage(BuildPipeline.Stage stage, long time) {
+                    stageStart[stage.ordinal()] = time;
+                    if (stage == BuildPipeline.Stage.COMPILE) {
+                        events.post(new JobEvent(JobEvent.Type.COMPILING, jobId, owner, repo, commitSHA,
+                                accessToken, null, null));
+                    } else if (stage == BuildPipeline.Stage.TEST) {
+                        log.println("Compiled, running tests");
+                        events.post(new JobEvent(JobEvent.Type.TESTING, jobId, owner, repo, commitSHA,
+                                accessToken, null, null));
+                    }
+                }
+
+                @Override
+                public void onDownloads(int artifacts, long bytes, long millis) {
+                    stages.put("resolve", millis);
+                    record.put("downloads", new JSONObject().put("artifacts", artifacts).put("bytes", bytes));
+                    log.println("Downloaded " + artifacts + " artifacts (" + bytes / 1024 + " KiB) in "
+                            + millis + " ms");
+                }
+            });
+            long compileStart = stageStart[BuildPipeline.Stage.COMPILE.ordinal()];
+            long testStart = stageStart[BuildPipeline.Stage.TEST.ordinal()];
+            long done = stageStart[BuildPipeline.Stage.DONE.ordinal()];
+            stages.put("compile", (testStart > 0 ? testStart : done) - compileStart);
+            if (testStart > 0) {
+                stages.put("test", done - testStart);
+            }
+            if (BuildJob.isCurrentSuperseded()) {
+                // the superseding job reports the status of the branch
+                System.out.println("Build of " + commitSHA + " was superseded");
+                record.put("outcome", "superseded");
+                return;
+            }
+            SurefireReports.Summary tests = SurefireReports.read(dir, compileStart);
+            record.put("tests", tests.toJSON());
+            TestShards.forRepo(repo, repoKey).record(tests.getClassSeconds());
+            String status;
+            String desc;
+            if (outcome == BuildPipeline.Outcome.SUCCESS) {
+                status = "success";
+                desc = tests.getTests() > 0 ? "Compiled, " + tests.describe()
+                        : "All tests passed and the code compiled!";
+                if (selection != null && !selection.isFull()) {
+                    desc += " (" + selection.getTests().size() + " affected test classes)";
+                }
+                // the index must see the classes of every module
+                if (impact != null && (modules == null || modules.isFull())) {
+                    try {
+                        impact.update(dir, commitSHA, selection.isFull());
+                    } catch (IOException e) {
+                        System.out.println("Failed to update the test index: " + e.getMessage());
+                    }
+                }
+            } else if (outcome == BuildPipeline.Outcome.TESTS_FAILED) {
+                status = "failure";
+                desc = tests.getTests() > 0 ? "Compiled, but " + tests.describe()
+                        : "One or more tests failed but the code compiled!";
+            } else if (outcome == BuildPipeline.Outcome.COMPILE_FAILED) {
+                status = "failure";
+                desc = "Failed to compile the code!";
+            } else if (outcome == BuildPipeline.Outcome.TIMED_OUT) {
+                status = "failure";
+                desc = "The build was stopped: " + pipeline.getTimeout();
+            } else {
+                status = "error";
+                desc = "Maven could not be run";
+            }
+            record.put("outcome", outcome.name().toLowerCase());
+            System.out.println(desc);
+            log.println(desc);
+            events.post(new JobEvent(JobEvent.Type.DONE, jobId, owner, repo, commitSHA, accessToken, status, desc));
+        }
+    }
+
+    /**
+     * Turns the events of a job into commit statuses: "pending" with the
+     * current step while the job runs, then the result. Steps of a job that
+     * already has a result, such as a superseded job, are not reported. The
+     * job is queued before its QUEUED event is posted, so a worker may post
+     * the next step first; the QUEUED event is then dropped.
+     *
+     * @param event the event
+     */
+    private void reportProgress(JobEvent event) {
+        if (reported.contains(event.getJobId())) {
+            return;
+        }
+        if (event.getType() != JobEvent.Type.QUEUED) {
+            started.add(event.getJobId());
+        } else if (started.contains(event.getJobId())) {
+            return;
+        }
+        String description;
+        switch (event.getType()) {
+            case QUEUED:
+                description = "Queued as job " + event.getJobId();
+                break;
+            case FETCHING:
+                description = "Fetching the commit";
+                break;
+            case COMPILING:
+                description = "Compiling";
+                break;
+            case TESTING:
+                description = "Running tests";
+                break;
+            default:
+                reported.add(event.getJobId());
+                statuses.publish(event.getOwner(), event.getRepo(), event.getSha(), event.getState(),
+                        event.getDescription(), event.getAccessToken());
+                return;
+        }
+        statuses.publish(event.getOwner(), event.getRepo(), event.getSha(), "pending", description,
+                event.getAccessToken());
+    }
+
+    public EventBus getEvents() {
+        return events;
     }
 
     /**
@@ -442,6 +1312,9 @@ public class ContinuousIntegrationServer extends AbstractHandler {
      * This method initializes a Jetty server on port 8080, sets the request
      * handler,
      * and starts the server to listen for incoming webhook events.
+     * With {@code ci.mode=coordinator} the jobs are built by the agents of a
+     * {@link BuildFarm}, and {@code ci.mode=agent} runs a {@link BuildAgent}
+     * instead of a server.
      *
      * @param args command-line arguments
      * @throws Exception if the server fails to start or encounters an error
@@ -449,8 +1322,42 @@ public class ContinuousIntegrationServer extends AbstractHandler {
      * @see ContinuousIntegrationServer
      */
     public static void main(String[] args) throws Exception {
-        Server server = new Server(8080);
-        server.setHandler(new ContinuousIntegrationServer());
+        String mode = Config.get("mode", "standalone");
+        if ("agent".equals(mode)) {
+            BuildAgent agent = BuildAgent.fromConfig();
+            Runtime.getRuntime().addShutdownHook(new Thread(agent::close, "ci-shutdown"));
+            agent.run();
+            return;
+        }
+        ServerConfig config = ServerConfig.fromConfig();
+        WorkspaceManager workspaces = WorkspaceManager.fromConfig();
+        BuildFarm farm = null;
+        ArtifactCache artifacts = null;
+        JobQueue jobQueue;
+        if ("coordinator".equals(mode)) {
+            // the agents build, so the coordinator keeps no workspaces or
+            // Maven repository that could be collected or warmed up
+            farm = BuildFarm.fromConfig();
+            // the workers only wait for the agents, so they bound the jobs out on agents
+            jobQueue = JobQueue.fromConfig(64);
+        } else {
+            workspaces.startCollector(10);
+            artifacts = ArtifactCache.fromConfig();
+            jobQueue = JobQueue.fromConfig();
+        }
+        ContinuousIntegrationServer ci = new ContinuousIntegrationServer(jobQueue, workspaces,
+                BuildHistory.fromConfig(), ResultCache.fromConfig(), artifacts,
+                StatusPublisher.fromConfig(), IntakeJournal.fromConfig(), farm);
+        Server server = config.createServer(ci);
+        // SIGTERM: stop accepting webhooks, then let the builds finish
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+                ci.drain(config.getDrainMillis());
+            } catch (Exception e) {
+                System.out.println("Failed to shut down cleanly: " + e.getMessage());
+            }
+        }, "ci-shutdown"));
         server.start();
         server.join();
     }
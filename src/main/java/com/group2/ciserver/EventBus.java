@@ -0,0 +1,131 @@
+package com.group2.ciserver;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Delivers {@link JobEvent}s to subscribers on a thread of its own.
+ * <p>
+ * Posting never blocks the webhook or build thread that posts, and every
+ * subscriber sees the events in the order they were posted, so a progress
+ * update can never overtake the final result of the same job. A subscriber
+ * that throws does not affect the others.
+ */
+public class EventBus implements Closeable {
+
+    private static final JobEvent STOP = new JobEvent(JobEvent.Type.DONE, -1, null, null, null, null, null, null);
+
+    private final BlockingQueue<JobEvent> queue = new LinkedBlockingQueue<>();
+    private final List<Consumer<JobEvent>> subscribers = new CopyOnWriteArrayList<>();
+    private final Thread dispatcher;
+    private volatile boolean closed = false;
+    private final AtomicLong posted = new AtomicLong();
+    // guarded by this
+    private long delivered = 0;
+
+    /**
+     * Creates a bus and starts its dispatcher thread.
+     */
+    public EventBus() {
+        dispatcher = new Thread(this::dispatch, "ci-events");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Adds a subscriber for all events posted from now on.
+     *
+     * @param subscriber called with every event on the dispatcher thread
+     */
+    public void subscribe(Consumer<JobEvent> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Posts an event and returns without waiting for the subscribers.
+     *
+     * @param event the event
+     * @return false if the bus is closed and the event was dropped
+     */
+    public boolean post(JobEvent event) {
+        if (closed) {
+            return false;
+        }
+        if (!queue.offer(event)) {
+            return false;
+        }
+        posted.incrementAndGet();
+        return true;
+    }
+
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * Waits until the subscribers have seen the events posted so far, for
+     * example before a build agent reports a job finished.
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if the events were delivered in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long target = posted.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (delivered < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !dispatcher.isAlive()) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delivers the events posted so far and stops the dispatcher.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.offer(STOP);
+        try {
+            dispatcher.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            JobEvent event;
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (event == STOP) {
+                return;
+            }
+            for (Consumer<JobEvent> subscriber : subscribers) {
+                try {
+                    subscriber.accept(event);
+                } catch (RuntimeException e) {
+                    System.out.println("Subscriber failed on " + event + ": " + e.getMessage());
+                }
+            }
+            synchronized (this) {
+                delivered++;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.group2.ciserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values with one bucket per power of two.
+ * <p>
+ * Recording a value finds its bucket from the number of leading zero bits and
+ * increments three counters, so it neither allocates nor locks and can be
+ * called on every request. The buckets cover values up to
+ * 2<sup>maxExponent</sup>; larger values are only counted in the total.
+ */
+public class Histogram {
+
+    private final int minExponent;
+    private final int maxExponent;
+    // bucket i holds the values in (2^(i-1), 2^i], bucket 0 the values up to 1
+    private final AtomicLongArray buckets;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Creates a histogram.
+     *
+     * @param minExponent the exponent of the smallest reported bucket bound
+     * @param maxExponent the exponent of the largest bucket bound
+     */
+    public Histogram(int minExponent, int maxExponent) {
+        if (minExponent < 0 || maxExponent < minExponent || maxExponent > 62) {
+            throw new IllegalArgumentException("Invalid exponents " + minExponent + ", " + maxExponent);
+        }
+        this.minExponent = minExponent;
+        this.maxExponent = maxExponent;
+        this.buckets = new AtomicLongArray(maxExponent + 2);
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+        buckets.incrementAndGet(Math.min(bucket, maxExponent + 1));
+        count.increment();
+        sum.add(Math.max(0, value));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public int getMinExponent() {
+        return minExponent;
+    }
+
+    public int getMaxExponent() {
+        return maxExponent;
+    }
+
+    /**
+     * Returns the number of recorded values up to a power of two.
+     *
+     * @param exponent the exponent of the bound
+     * @return the number of values of at most 2<sup>exponent</sup>
+     */
+    public long getCountAtMost(int exponent) {
+        long total = 0;
+        for (int i = 0; i <= Math.min(exponent, maxExponent); i++) {
+            total += buckets.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns an upper bound of a percentile, the bound of the bucket that
+     * holds it.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the bound, Long.MAX_VALUE if the percentile is above the
+     *         largest bucket, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i <= maxExponent; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,367 @@
+package com.group2.ciserver;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The webhook deliveries the server accepted, kept on local disk so that
+ * jobs survive a restart and redelivered webhooks are not built twice.
+ * <p>
+ * Every accepted job is appended to {@code intake.jsonl} and forced to disk
+ * before the webhook is answered. Requests arriving while another request
+ * waits for the disk are written behind it and forced together with the
+ * next call, so the cost of a sync is shared by all requests of a burst.
+ * When a job finishes, a "done" line is appended without waiting for the
+ * disk; if it is lost the job is only built once more.
+ * <p>
+ * The {@code X-GitHub-Delivery} ids of the last hours are kept in memory, in
+ * the order they arrived, and are rebuilt from the journal on start. The
+ * journal is rewritten with only the open jobs and the remembered ids when
+ * it grows past a few megabytes.
+ */
+public class IntakeJournal implements Closeable {
+
+    private static final long COMPACT_BYTES = 4 * 1024 * 1024;
+
+    private final File file;
+    private final long windowMillis;
+    private final int maxDeliveries;
+    private FileChannel channel;
+    private final LinkedHashMap<String, Long> deliveries = new LinkedHashMap<>();
+    private final Map<Long, JSONObject> open = new LinkedHashMap<>();
+    private final List<Entry> replay = new ArrayList<>();
+    private long lastJobId = 0;
+    // records are numbered to tell which ones a sync covered, across compactions
+    private long appended = 0;
+    private long synced = 0;
+    private boolean syncing = false;
+    private long syncs = 0;
+    private long duplicates = 0;
+
+    /**
+     * A job accepted before the server restarted, which has not finished.
+     */
+    public static final class Entry {
+        private final long jobId;
+        private final String deliveryId;
+        private final PushEvent push;
+
+        Entry(long jobId, String deliveryId, PushEvent push) {
+            this.jobId = jobId;
+            this.deliveryId = deliveryId;
+            this.push = push;
+        }
+
+        public long getJobId() {
+            return jobId;
+        }
+
+        public String getDeliveryId() {
+            return deliveryId;
+        }
+
+        public PushEvent getPush() {
+            return push;
+        }
+    }
+
+    /**
+     * Opens the journal in a directory and reads the jobs and deliveries it
+     * holds.
+     *
+     * @param directory     the directory of the journal
+     * @param windowMillis  how long a delivery id is remembered
+     * @param maxDeliveries the most delivery ids remembered, the oldest are
+     *                      forgotten first
+     * @throws IOException if the journal could not be read or opened
+     */
+    public IntakeJournal(File directory, long windowMillis, int maxDeliveries) throws IOException {
+        directory.mkdirs();
+        this.file = new File(directory, "intake.jsonl");
+        this.windowMillis = windowMillis;
+        this.maxDeliveries = maxDeliveries;
+        load();
+        compact();
+    }
+
+    /**
+     * Opens the journal configured by {@code ci.intake.dir},
+     * {@code ci.intake.dedup-hours} and {@code ci.intake.dedup-max}.
+     *
+     * @return the journal
+     * @throws IOException if the journal could not be opened
+     */
+    public static IntakeJournal fromConfig() throws IOException {
+        return new IntakeJournal(new File(Config.get("intake.dir", System.getProperty("user.home") + "/Github/intake")),
+                TimeUnit.HOURS.toMillis(Config.getInt("intake.dedup-hours", 24)),
+                Config.getInt("intake.dedup-max", 100000));
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JSONObject record = new JSONObject(line);
+                    String op = record.getString("op");
+                    if (!"done".equals(op) && record.has("delivery")) {
+                        remember(record.getString("delivery"), record.getLong("at"));
+                    }
+                    if ("accept".equals(op)) {
+                        lastJobId = Math.max(lastJobId, record.getLong("job"));
+                        open.put(record.getLong("job"), record);
+                    } else if ("done".equals(op)) {
+                        open.remove(record.getLong("job"));
+                    }
+                } catch (JSONException e) {
+                    // the last line is cut off if the server died while writing it
+                    System.out.println("Skipping damaged intake record: " + e.getMessage());
+                }
+            }
+        }
+        for (JSONObject record : open.values()) {
+            PushEvent push = PushEvent.fromJSON(record.getJSONObject("push"));
+            if (push != null) {
+                replay.add(new Entry(record.getLong("job"), record.optString("delivery", null), push));
+            }
+        }
+    }
+
+    /**
+     * Returns the jobs that were accepted but had not finished when the
+     * journal was last closed, oldest first. They stay open until they are
+     * marked {@link #done}.
+     *
+     * @return the jobs to run again
+     */
+    public synchronized List<Entry> getReplay() {
+        return new ArrayList<>(replay);
+    }
+
+    /**
+     * Returns the highest job id in the journal, so job ids are not reused
+     * for jobs that were accepted but never recorded in the build history.
+     *
+     * @return the highest job id, 0 if there is none
+     */
+    public synchronized long getLastJobId() {
+        return lastJobId;
+    }
+
+    /**
+     * Remembers a delivery unless it was seen in the window.
+     *
+     * @param deliveryId the {@code X-GitHub-Delivery} id
+     * @return true if the delivery is new, false if it is a redelivery
+     */
+    public synchronized boolean claim(String deliveryId) {
+        expire(System.currentTimeMillis());
+        if (deliveries.containsKey(deliveryId)) {
+            duplicates++;
+            return false;
+        }
+        remember(deliveryId, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Forgets a delivery, so that a redelivery is accepted again. Used when
+     * the delivery could not be queued.
+     *
+     * @param deliveryId the {@code X-GitHub-Delivery} id
+     */
+    public synchronized void forget(String deliveryId) {
+        deliveries.remove(deliveryId);
+    }
+
+    /**
+     * Records an accepted job and waits until it is on disk.
+     *
+     * @param jobId      the id of the job
+     * @param deliveryId the {@code X-GitHub-Delivery} id, or null
+     * @param push       the push the job builds
+     * @throws IOException if the record could not be written
+     */
+    public void accept(long jobId, String deliveryId, PushEvent push) throws IOException {
+        JSONObject record = new JSONObject().put("op", "accept").put("job", jobId)
+                .put("at", System.currentTimeMillis()).put("push", push.toJSON());
+        if (deliveryId != null) {
+            record.put("delivery", deliveryId);
+        }
+        long number;
+        synchronized (this) {
+            number = write(record);
+            open.put(jobId, record);
+            lastJobId = Math.max(lastJobId, jobId);
+        }
+        sync(number);
+    }
+
+    /**
+     * Records that a job finished, or will never run. Calling it again for
+     * the same job has no effect.
+     *
+     * @param jobId the id of the job
+     */
+    public synchronized void done(long jobId) {
+        if (open.remove(jobId) == null) {
+            return;
+        }
+        replay.removeIf(entry -> entry.jobId == jobId);
+        try {
+            write(new JSONObject().put("op", "done").put("job", jobId));
+            if (channel.size() > COMPACT_BYTES && !syncing) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to record the end of job " + jobId + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized int getOpenJobs() {
+        return open.size();
+    }
+
+    public synchronized int getRememberedDeliveries() {
+        return deliveries.size();
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Returns how often the journal was forced to disk, lower than the number
+     * of accepted jobs when requests arrive together.
+     *
+     * @return the number of syncs
+     */
+    public synchronized long getSyncs() {
+        return syncs;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    private void remember(String deliveryId, long at) {
+        deliveries.remove(deliveryId);
+        deliveries.put(deliveryId, at);
+        while (deliveries.size() > maxDeliveries) {
+            Iterator<String> oldest = deliveries.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Long> times = deliveries.values().iterator();
+        while (times.hasNext() && times.next() < now - windowMillis) {
+            times.remove();
+        }
+    }
+
+    private long write(JSONObject record) throws IOException {
+        ByteBuffer line = ByteBuffer.wrap((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            channel.write(line);
+        }
+        return ++appended;
+    }
+
+    /**
+     * Waits until a record is on disk. One caller at a time forces the
+     * channel, and every record written before it started is covered.
+     */
+    private void sync(long number) throws IOException {
+        long target;
+        FileChannel journal;
+        synchronized (this) {
+            while (syncing && synced < number) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while syncing the intake journal");
+                }
+            }
+            if (synced >= number) {
+                return;
+            }
+            syncing = true;
+            target = appended;
+            // no compaction starts during a sync, so the channel stays open
+            journal = channel;
+        }
+        boolean done = false;
+        try {
+            journal.force(false);
+            done = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (done) {
+                    synced = Math.max(synced, target);
+                    syncs++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with the open jobs and the remembered deliveries.
+     */
+    private void compact() throws IOException {
+        expire(System.currentTimeMillis());
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, Long> delivery : deliveries.entrySet()) {
+                text.append(new JSONObject().put("op", "delivery").put("delivery", delivery.getKey())
+                        .put("at", delivery.getValue())).append('\n');
+            }
+            for (JSONObject record : open.values()) {
+                text.append(record).append('\n');
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(false);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        synced = appended;
+    }
+}
@@ -0,0 +1,109 @@
+package com.group2.ciserver;
+
+import org.json.JSONObject;
+
+/**
+ * A step in the life of a CI job, posted on the {@link EventBus}.
+ */
+public final class JobEvent {
+
+    /**
+     * The steps of a job, in the order they happen. A job that fails early
+     * skips to {@link #DONE}.
+     */
+    public enum Type {
+        QUEUED, FETCHING, COMPILING, TESTING, DONE
+    }
+
+    private final Type type;
+    private final long jobId;
+    private final long time;
+    private final String owner;
+    private final String repo;
+    private final String sha;
+    private final String accessToken;
+    private final String state;
+    private final String description;
+
+    /**
+     * Creates an event that happened now.
+     *
+     * @param type        the step
+     * @param jobId       the id of the job
+     * @param owner       the owner of the repository
+     * @param repo        the name of the repository
+     * @param sha         the commit being built
+     * @param accessToken the GitHub access token of the job, never included
+     *                    in {@link #toJSON()}
+     * @param state       the commit status state of a {@link Type#DONE} event,
+     *                    or null
+     * @param description the commit status description of a
+     *                    {@link Type#DONE} event, or null
+     */
+    public JobEvent(Type type, long jobId, String owner, String repo, String sha, String accessToken,
+            String state, String description) {
+        this.type = type;
+        this.jobId = jobId;
+        this.time = System.currentTimeMillis();
+        this.owner = owner;
+        this.repo = repo;
+        this.sha = sha;
+        this.accessToken = accessToken;
+        this.state = state;
+        this.description = description;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getJobId() {
+        return jobId;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public String getSha() {
+        return sha;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject()
+                .put("type", type.name().toLowerCase())
+                .put("jobId", jobId)
+                .put("time", time)
+                .put("repo", owner + "/" + repo)
+                .put("sha", sha);
+        if (state != null) {
+            json.put("state", state).put("description", description);
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return "job " + jobId + " " + type.name().toLowerCase();
+    }
+}
@@ -0,0 +1,284 @@
+package com.group2.ciserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, prioritized queue of build jobs served by a fixed number of
+ * dedicated worker threads. Builds block for minutes on Maven processes, so
+ * they are kept off the common ForkJoinPool. When the queue is full new jobs
+ * are rejected instead of piling up, which lets the webhook answer quickly
+ * with a status telling GitHub to back off.
+ * <p>
+ * Only the newest push to a branch matters, so a submitted job supersedes the
+ * queued and running jobs that share its coalescing key.
+ */
+public class JobQueue {
+
+    /**
+     * The outcome of {@link JobQueue#submit(BuildJob)}.
+     */
+    public enum SubmitResult {
+        ACCEPTED, QUEUE_FULL, SHUT_DOWN
+    }
+
+    private final PriorityBlockingQueue<BuildJob> queue = new PriorityBlockingQueue<>();
+    private final int capacity;
+    private final List<Thread> workers = new ArrayList<>();
+    private final Set<BuildJob> running = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Long> latestByKey = new ConcurrentHashMap<>();
+    private volatile boolean shutdown = false;
+
+    private final LongAdder acceptedJobs = new LongAdder();
+    private final LongAdder rejectedJobs = new LongAdder();
+    private final LongAdder supersededJobs = new LongAdder();
+    private final LongAdder startedJobs = new LongAdder();
+    private final LongAdder totalWaitMillis = new LongAdder();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    /**
+     * Creates a queue and starts its workers.
+     *
+     * @param workerCount the number of jobs that may run at the same time
+     * @param capacity    the number of jobs that may wait in the queue
+     */
+    public JobQueue(int workerCount, int capacity) {
+        this(workerCount, capacity, null);
+    }
+
+    /**
+     * Creates a queue whose workers are made by a thread factory, for example
+     * to run the jobs on virtual threads.
+     *
+     * @param workerCount the number of jobs that may run at the same time
+     * @param capacity    the number of jobs that may wait in the queue
+     * @param threads     the factory of the worker threads, or null for
+     *                    platform threads
+     */
+    public JobQueue(int workerCount, int capacity, ThreadFactory threads) {
+        if (workerCount < 1 || capacity < 1) {
+            throw new IllegalArgumentException("workerCount and capacity must be positive");
+        }
+        this.capacity = capacity;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = threads == null ? new Thread(this::work) : threads.newThread(this::work);
+            worker.setName("ci-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Creates a queue sized by the "workers" and "queue.capacity" settings,
+     * whose workers are virtual threads if "virtual-threads" is true and the
+     * JDK has them.
+     *
+     * @return the new queue
+     * @see Config
+     */
+    public static JobQueue fromConfig() {
+        return fromConfig(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Creates a queue from the settings, with a default number of workers
+     * for when "workers" is not set.
+     *
+     * @param defaultWorkers the number of workers if "workers" is not set
+     * @return the new queue
+     */
+    public static JobQueue fromConfig(int defaultWorkers) {
+        int workerCount = Config.getInt("workers", defaultWorkers);
+        int capacity = Config.getInt("queue.capacity", 100);
+        ThreadFactory threads = null;
+        if (Boolean.parseBoolean(Config.get("virtual-threads", "false"))) {
+            threads = VirtualThreads.factory("ci-worker-");
+        }
+        return new JobQueue(workerCount, capacity, threads);
+    }
+
+    /**
+     * Adds a job to the queue unless the queue is full or shut down. Queued
+     * jobs with the same coalescing key are dropped and running ones are
+     * superseded.
+     *
+     * @param job the job to add
+     * @return whether the job was accepted
+     */
+    public SubmitResult submit(BuildJob job) {
+        List<BuildJob> superseded = new ArrayList<>();
+        synchronized (this) {
+            if (shutdown) {
+                rejectedJobs.increment();
+                return SubmitResult.SHUT_DOWN;
+            }
+            if (job.getCoalesceKey() != null) {
+                for (BuildJob queued : queue) {
+                    if (job.getCoalesceKey().equals(queued.getCoalesceKey()) && queue.remove(queued)) {
+                        superseded.add(queued);
+                    }
+                }
+            }
+            if (queue.size() >= capacity) {
+                rejectedJobs.increment();
+                return SubmitResult.QUEUE_FULL;
+            }
+            if (job.getCoalesceKey() != null) {
+                latestByKey.put(job.getCoalesceKey(), job.getId());
+                for (BuildJob runningJob : running) {
+                    if (job.getCoalesceKey().equals(runningJob.getCoalesceKey()) && !runningJob.isSuperseded()) {
+                        superseded.add(runningJob);
+                    }
+                }
+            }
+            queue.add(job);
+            acceptedJobs.increment();
+        }
+        for (BuildJob old : superseded) {
+            System.out.println("Job " + old.getId() + " (" + old.getCommitSHA() + ") superseded by job "
+                    + job.getId() + " (" + job.getCommitSHA() + ")");
+            supersededJobs.increment();
+            old.supersede();
+        }
+        return SubmitResult.ACCEPTED;
+    }
+
+    private void work() {
+        while (!shutdown || !queue.isEmpty()) {
+            BuildJob job;
+            try {
+                job = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) {
+                continue;
+            }
+            long waited = System.currentTimeMillis() - job.getEnqueuedAt();
+            startedJobs.increment();
+            totalWaitMillis.add(waited);
+            maxWaitMillis.accumulateAndGet(waited, Math::max);
+            boolean stale;
+            synchronized (this) {
+                running.add(job);
+                String key = job.getCoalesceKey();
+                stale = key != null && latestByKey.getOrDefault(key, job.getId()) != job.getId();
+            }
+            if (stale) {
+                // a newer job was submitted while this one was being taken from the queue
+                supersededJobs.increment();
+                job.supersede();
+            }
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                System.err.println("Job " + job.getId() + " failed: " + e.getMessage());
+            } finally {
+                running.remove(job);
+                if (job.getCoalesceKey() != null) {
+                    latestByKey.remove(job.getCoalesceKey(), job.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting jobs and waits for the queued and running jobs to finish.
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if all jobs finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        synchronized (this) {
+            shutdown = true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread worker : workers) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                worker.join(remaining);
+            }
+        }
+        return getQueueDepth() == 0 && getRunningJobs() == 0;
+    }
+
+    /**
+     * Drops the queued jobs and destroys the build processes of the running
+     * ones, for a shutdown that cannot wait for them any longer. No job is
+     * superseded.
+     *
+     * @return the number of queued jobs dropped
+     */
+    public int abort() {
+        int dropped;
+        synchronized (this) {
+            shutdown = true;
+            dropped = queue.size();
+            queue.clear();
+        }
+        for (BuildJob job : running) {
+            job.destroyProcesses();
+        }
+        return dropped;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    public int getRunningJobs() {
+        return running.size();
+    }
+
+    public long getAcceptedJobs() {
+        return acceptedJobs.sum();
+    }
+
+    public long getRejectedJobs() {
+        return rejectedJobs.sum();
+    }
+
+    public long getSupersededJobs() {
+        return supersededJobs.sum();
+    }
+
+    /**
+     * Returns the average time jobs waited in the queue before a worker
+     * started them.
+     *
+     * @return the average wait in milliseconds, 0 if no job has started yet
+     */
+    public long getAverageWaitMillis() {
+        long started = startedJobs.sum();
+        return started == 0 ? 0 : totalWaitMillis.sum() / started;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "queued=" + getQueueDepth() + "/" + capacity + " running=" + getRunningJobs() + "/"
+                + getWorkerCount() + " rejected=" + getRejectedJobs()
+                + " superseded=" + getSupersededJobs() + " avgWaitMs=" + getAverageWaitMillis()
+                + " maxWaitMs=" + getMaxWaitMillis();
+    }
+}
@@ -0,0 +1,239 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs Maven through the Maven daemon (mvnd), which keeps built JVMs with a
+ * loaded Maven, JIT-compiled code and cached plugin class loaders alive
+ * between builds.
+ * <p>
+ * Every repository, told apart by its owner and name, gets a pool of daemons
+ * of its own by giving mvnd a separate daemon storage directory, so warm daemons are reused by later jobs of the
+ * same repository and never share state with other repositories. A pool is
+ * recycled, that is its daemons are stopped and replaced by fresh ones on the
+ * next build, after a configured number of builds and when a daemon looks
+ * broken: a build was killed by its {@link ProcessSupervisor}, or a build
+ * failed and the daemons do not answer a status request. A failing test or
+ * compile error is no reason to recycle. Recycling waits until no build of
+ * the repository is running, so it never stops a daemon under a build. Pools
+ * that stay idle are stopped to give the memory back.
+ */
+public class MavenDaemonRunner implements BuildRunner {
+
+    public static final String NAME = "mvnd";
+
+    private static MavenDaemonRunner shared;
+
+    private final File storageRoot;
+    private final int maxBuilds;
+    private final long maxIdleMillis;
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+    private volatile Boolean available;
+
+    /**
+     * The daemons of one repository.
+     */
+    private static final class Pool {
+        private int builds = 0;
+        private int running = 0;
+        private boolean recycle = false;
+        private long lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates a runner.
+     *
+     * @param storageRoot   the directory of the daemon storage of every
+     *                      repository
+     * @param maxBuilds     the number of builds after which the daemons of a
+     *                      repository are recycled
+     * @param maxIdleMillis how long daemons may stay unused before they are
+     *                      stopped
+     */
+    public MavenDaemonRunner(File storageRoot, int maxBuilds, long maxIdleMillis) {
+        this.storageRoot = storageRoot;
+        this.maxBuilds = maxBuilds;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Returns the runner shared by all jobs, configured by "mvnd.dir",
+     * "mvnd.max-builds" and "mvnd.idle-minutes". Its health checks start when
+     * it is first used.
+     *
+     * @return the shared runner
+     */
+    public static synchronized MavenDaemonRunner getShared() {
+        if (shared == null) {
+            File root = new File(Config.get("mvnd.dir", System.getProperty("user.home") + "/Github/mvnd"));
+            int maxBuilds = Config.getInt("mvnd.max-builds", 50);
+            long maxIdleMillis = TimeUnit.MINUTES.toMillis(Config.getInt("mvnd.idle-minutes", 30));
+            shared = new MavenDaemonRunner(root, maxBuilds, maxIdleMillis);
+            shared.startHealthChecks(5);
+        }
+        return shared;
+    }
+
+    /**
+     * Checks once whether mvnd is installed.
+     *
+     * @return true if mvnd can be run
+     */
+    public boolean isAvailable() {
+        if (available == null) {
+            available = run("mvnd --version") == 0;
+            if (!available) {
+                System.out.println("mvnd is not installed, falling back to plain Maven processes");
+            }
+        }
+        return available;
+    }
+
+    File getStorage(String repoKey) {
+        return new File(storageRoot, repoKey);
+    }
+
+    @Override
+    public List<String> command(File directory, String repoKey, String goals) {
+        pools.compute(repoKey, (k, existing) -> {
+            Pool started = existing != null ? existing : new Pool();
+            synchronized (started) {
+                started.running++;
+                started.lastUsed = System.currentTimeMillis();
+            }
+            return started;
+        });
+        return List.of("bash", "-c", "mvnd -Dmvnd.daemonStorage=" + getStorage(repoKey).getAbsolutePath()
+                + " --batch-mode " + goals);
+    }
+
+    @Override
+    public void finished(String repoKey, int exitCode, boolean killed) {
+        Pool pool = pools.get(repoKey);
+        if (pool == null) {
+            return;
+        }
+        // a red build is normal, only a daemon that stopped answering is broken
+        boolean broken = killed || exitCode != 0 && !isHealthy(repoKey);
+        boolean recycle;
+        synchronized (pool) {
+            pool.running = Math.max(0, pool.running - 1);
+            pool.builds++;
+            pool.lastUsed = System.currentTimeMillis();
+            pool.recycle |= broken || pool.builds >= maxBuilds;
+            recycle = pool.recycle && pool.running == 0;
+            if (recycle) {
+                pool.builds = 0;
+                pool.recycle = false;
+            }
+        }
+        if (recycle) {
+            stop(repoKey);
+        }
+    }
+
+    /**
+     * Returns the number of commands of a repository that have not finished.
+     *
+     * @param repoKey the owner and name of the repository
+     * @return the number of running builds, 0 if the repository has no pool
+     */
+    int getRunning(String repoKey) {
+        Pool pool = pools.get(repoKey);
+        if (pool == null) {
+            return 0;
+        }
+        synchronized (pool) {
+            return pool.running;
+        }
+    }
+
+    private boolean isHealthy(String repoKey) {
+        return run("mvnd --status -Dmvnd.daemonStorage=" + getStorage(repoKey).getAbsolutePath()) == 0;
+    }
+
+    /**
+     * Stops the daemons of a repository. The next build starts fresh ones.
+     *
+     * @param repoKey the owner and name of the repository
+     */
+    public void stop(String repoKey) {
+        System.out.println("Recycling Maven daemons of " + repoKey);
+        run("mvnd --stop -Dmvnd.daemonStorage=" + getStorage(repoKey).getAbsolutePath());
+    }
+
+    /**
+     * Checks the daemons of every repository without a running build: the
+     * pools of repositories that were idle for too long are stopped, and
+     * pools whose daemons do not answer a status request are recycled.
+     */
+    public void checkHealth() {
+        for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+            String repoKey = entry.getKey();
+            Pool pool = entry.getValue();
+            boolean idle;
+            synchronized (pool) {
+                if (pool.running > 0) {
+                    continue;
+                }
+                idle = System.currentTimeMillis() - pool.lastUsed > maxIdleMillis;
+            }
+            // removing the pool under the map lock keeps a build starting
+            // meanwhile from getting a pool that is about to be stopped
+            if (idle && pools.computeIfPresent(repoKey, (k, current) -> {
+                synchronized (current) {
+                    return current == pool && current.running == 0 ? null : current;
+                }
+            }) == null) {
+                stop(repoKey);
+            } else if (!idle && !isHealthy(repoKey)) {
+                synchronized (pool) {
+                    if (pool.running > 0) {
+                        continue;
+                    }
+                }
+                stop(repoKey);
+            }
+        }
+    }
+
+    private void startHealthChecks(long periodMinutes) {
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ci-mvnd-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::checkHealth, periodMinutes, periodMinutes, TimeUnit.MINUTES);
+    }
+
+    private static int run(String command) {
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder("bash", "-c", command);
+            processBuilder.redirectErrorStream(true);
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            Process process = processBuilder.start();
+            if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return -1;
+            }
+            return process.exitValue();
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
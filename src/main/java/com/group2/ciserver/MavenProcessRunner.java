@@ -0,0 +1,23 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs every Maven command in a new JVM through bash. This is the original
+ * way the server built code and is the fallback of the other runners.
+ */
+public class MavenProcessRunner implements BuildRunner {
+
+    public static final MavenProcessRunner INSTANCE = new MavenProcessRunner();
+
+    @Override
+    public List<String> command(File directory, String repoKey, String goals) {
+        return List.of("bash", "-c", "mvn " + goals);
+    }
+
+    @Override
+    public String getName() {
+        return "mvn";
+    }
+}
@@ -0,0 +1,225 @@
+package com.group2.ciserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of the server, written in the Prometheus text format by
+ * {@code GET /metrics}.
+ * <p>
+ * Counters are {@link LongAdder}s and distributions are {@link Histogram}s,
+ * so recording takes no lock and allocates nothing. Metrics with labels
+ * create the child of a new combination of label values once; code on a hot
+ * path keeps the child it records to. Values kept by other parts of the
+ * server, such as the depth of the job queue, are registered as functions
+ * and read when the metrics are written.
+ */
+public class Metrics {
+
+    private final Map<String, Family<?>> families = new ConcurrentHashMap<>();
+    private final List<String> order = new ArrayList<>();
+    private final Map<String, Double> scales = new ConcurrentHashMap<>();
+
+    /**
+     * A metric with a child per combination of label values.
+     *
+     * @param <T> the type of the children
+     */
+    public static final class Family<T> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+        private final Supplier<T> factory;
+        private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String[] labelNames, Supplier<T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+            this.factory = factory;
+        }
+
+        /**
+         * Returns the child of label values, creating it on first use.
+         *
+         * @param labelValues the values, in the order of the label names
+         * @return the child
+         */
+        public T labels(String... labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " has the labels " + Arrays.toString(labelNames));
+            }
+            return children.computeIfAbsent(Arrays.asList(labelValues), values -> factory.get());
+        }
+    }
+
+    /**
+     * Registers a counter.
+     *
+     * @param name       the name, ending in "_total"
+     * @param help       the description
+     * @param labelNames the names of the labels
+     * @return the counter family
+     */
+    public Family<LongAdder> counter(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "counter", labelNames, LongAdder::new));
+    }
+
+    /**
+     * Registers a histogram. Values are recorded in a unit such as
+     * milliseconds and written in the base unit of the name.
+     *
+     * @param name         the name, ending in the base unit such as "_seconds"
+     * @param help         the description
+     * @param unitsPerBase the recorded units in one base unit, such as 1000
+     *                     for milliseconds written as seconds
+     * @param minExponent  the exponent of the smallest bucket bound, in the
+     *                     recorded unit
+     * @param maxExponent  the exponent of the largest bucket bound
+     * @param labelNames   the names of the labels
+     * @return the histogram family
+     */
+    public Family<Histogram> histogram(String name, String help, double unitsPerBase, int minExponent,
+            int maxExponent, String... labelNames) {
+        Family<Histogram> family = new Family<>(name, help, "histogram", labelNames,
+                () -> new Histogram(minExponent, maxExponent));
+        scales.put(name, unitsPerBase);
+        return register(family);
+    }
+
+    /**
+     * Registers a gauge read when the metrics are written.
+     *
+     * @param name  the name
+     * @param help  the description
+     * @param value the function returning the current value
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        register(new Family<>(name, help, "gauge", new String[0], () -> value)).labels();
+    }
+
+    /**
+     * Registers a counter kept elsewhere, read when the metrics are written.
+     *
+     * @param name  the name, ending in "_total"
+     * @param help  the description
+     * @param value the function returning the current count
+     */
+    public void counterFunction(String name, String help, DoubleSupplier value) {
+        register(new Family<>(name, help, "counter", new String[0], () -> value)).labels();
+    }
+
+    /**
+     * Registers a histogram kept elsewhere, such as by a component that is
+     * created before the metrics.
+     *
+     * @param name         the name
+     * @param help         the description
+     * @param unitsPerBase the recorded units in one base unit
+     * @param histogram    the histogram
+     */
+    public void histogram(String name, String help, double unitsPerBase, Histogram histogram) {
+        scales.put(name, unitsPerBase);
+        register(new Family<>(name, help, "histogram", new String[0], () -> histogram)).labels();
+    }
+
+    private synchronized <T> Family<T> register(Family<T> family) {
+        if (families.putIfAbsent(family.name, family) != null) {
+            throw new IllegalArgumentException("Metric " + family.name + " is already registered");
+        }
+        order.add(family.name);
+        return family;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     *
+     * @param out the text to append to
+     */
+    public void write(StringBuilder out) {
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<>(order);
+        }
+        for (String name : names) {
+            Family<?> family = families.get(name);
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<List<String>, ?> child : family.children.entrySet()) {
+                String labels = labels(family.labelNames, child.getKey());
+                Object metric = child.getValue();
+                if (metric instanceof Histogram) {
+                    writeHistogram(out, name, labels, (Histogram) metric, scales.get(name));
+                } else {
+                    double value = metric instanceof LongAdder ? ((LongAdder) metric).sum()
+                            : ((DoubleSupplier) metric).getAsDouble();
+                    sample(out, name, labels, null, value);
+                }
+            }
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram,
+            double unitsPerBase) {
+        // the total is read after the buckets, so it is never below the last bucket
+        long buckets = histogram.getCountAtMost(histogram.getMaxExponent());
+        for (int exponent = histogram.getMinExponent(); exponent <= histogram.getMaxExponent(); exponent++) {
+            sample(out, name + "_bucket", labels, format((1L << exponent) / unitsPerBase),
+                    histogram.getCountAtMost(exponent));
+        }
+        long count = Math.max(buckets, histogram.getCount());
+        sample(out, name + "_bucket", labels, "+Inf", count);
+        sample(out, name + "_sum", labels, null, histogram.getSum() / unitsPerBase);
+        sample(out, name + "_count", labels, null, count);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String le, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || le != null) {
+            out.append('{').append(labels);
+            if (le != null) {
+                out.append(labels.isEmpty() ? "" : ",").append("le=\"").append(le).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String labels(String[] names, List<String> values) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(names[i]).append("=\"");
+            String value = values.get(i) == null ? "" : values.get(i);
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    labels.append('\\').append(c);
+                } else if (c == '\n') {
+                    labels.append("\\n");
+                } else {
+                    labels.append(c);
+                }
+            }
+            labels.append('"');
+        }
+        return labels.toString();
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,226 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.RefSpec;
+
+/**
+ * Keeps one bare mirror per remote repository and updates it incrementally.
+ * <p>
+ * A push only needs the pushed ref, so {@link #ensureCommit(String, String, String)}
+ * fetches just that ref in a single round trip, and skips the network
+ * entirely when the commit is already in the mirror. Repositories can be
+ * fetched with limited history by setting {@code ci.repo.<name>.depth}.
+ * JGit does not support partial (blobless) clones, so a depth limit is the
+ * way to keep very large repositories small.
+ * <p>
+ * Mirrors are kept per owner and repository, in {@code <owner>/<repo>.git},
+ * so repositories with the same name from different owners do not share a
+ * mirror. Mirrors can be garbage collected and evicted by the
+ * {@link WorkspaceManager} that owns them.
+ */
+public class MirrorCache {
+
+    private final File root;
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache that keeps its mirrors in root.
+     *
+     * @param root the directory of the mirrors
+     */
+    public MirrorCache(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the key of a repository, its owner and name, such as
+     * "jolinefrisk/ci-server".
+     *
+     * @param url the clone URL of the repository
+     * @return the key, safe to use as a relative path
+     */
+    public static String repoKey(String url) {
+        String path = url.replaceAll("[/\\\\]+$", "");
+        if (path.endsWith(".git")) {
+            path = path.substring(0, path.length() - 4);
+        }
+        String[] segments = path.split("[/:\\\\]");
+        String name = segments[segments.length - 1];
+        String owner = segments.length > 1 ? segments[segments.length - 2] : "";
+        return safe(owner) + "/" + safe(name);
+    }
+
+    private static String safe(String segment) {
+        return segment.isEmpty() || segment.equals(".") || segment.equals("..") ? "_" : segment;
+    }
+
+    /**
+     * Returns the directory of the mirror of a repository.
+     *
+     * @param repoKey the key of the repository, see {@link #repoKey(String)}
+     * @return the bare repository directory, which may not exist yet
+     */
+    public File getMirror(String repoKey) {
+        return new File(root, repoKey + ".git");
+    }
+
+    /**
+     * Returns the keys of the repositories that have a mirror.
+     *
+     * @return the keys
+     */
+    public List<String> getRepoKeys() {
+        List<String> keys = new ArrayList<>();
+        File[] owners = root.listFiles(File::isDirectory);
+        for (File owner : owners == null ? new File[0] : owners) {
+            File[] mirrors = owner.listFiles(file -> file.isDirectory() && file.getName().endsWith(".git"));
+            for (File mirror : mirrors == null ? new File[0] : mirrors) {
+                String name = mirror.getName();
+                keys.add(owner.getName() + "/" + name.substring(0, name.length() - 4));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns when a mirror was last used by a job.
+     *
+     * @param repoKey the key of the repository
+     * @return the time in milliseconds since the epoch, the time the mirror
+     *         was last written to if it was not used since the server started
+     */
+    public long getLastUsed(String repoKey) {
+        Long used = lastUsed.get(repoKey);
+        return used != null ? used : getMirror(repoKey).lastModified();
+    }
+
+    /**
+     * Repacks the objects of a mirror and prunes unreachable objects older
+     * than two weeks, while no job fetches into it.
+     *
+     * @param repoKey the key of the repository
+     * @throws IOException     if the mirror could not be opened
+     * @throws GitAPIException if the garbage collection failed
+     */
+    public void gc(String repoKey) throws IOException, GitAPIException {
+        synchronized (locks.computeIfAbsent(repoKey, k -> new Object())) {
+            File mirror = getMirror(repoKey);
+            if (!mirror.exists()) {
+                return;
+            }
+            try (Git git = Git.open(mirror)) {
+                git.gc().call();
+            }
+        }
+    }
+
+    /**
+     * Deletes a mirror if it is unused, while no job fetches into it.
+     *
+     * @param repoKey the key of the repository
+     * @param unused  checked while the mirror is locked, returns true if no
+     *                workspace borrows objects from the mirror
+     * @return true if the mirror was deleted
+     */
+    public boolean evict(String repoKey, BooleanSupplier unused) {
+        synchronized (locks.computeIfAbsent(repoKey, k -> new Object())) {
+            if (!unused.getAsBoolean()) {
+                return false;
+            }
+            WorkspaceManager.delete(getMirror(repoKey));
+            lastUsed.remove(repoKey);
+            return true;
+        }
+    }
+
+    /**
+     * Makes sure the mirror of a repository contains a commit. The mirror is
+     * created on first use. Otherwise only the pushed ref is fetched, and
+     * nothing is fetched if the commit is already present.
+     *
+     * @param url       the clone URL of the repository
+     * @param ref       the pushed ref, for example "refs/heads/main", or null
+     *                  to fetch all branches
+     * @param commitSHA the commit that must be present
+     * @return the directory of the mirror
+     * @throws IOException     if the mirror could not be read
+     * @throws GitAPIException if cloning or fetching failed
+     */
+    public File ensureCommit(String url, String ref, String commitSHA) throws IOException, GitAPIException {
+        String repoName = ContinuousIntegrationServer.getRepoName(url);
+        String repoKey = repoKey(url);
+        File mirror = getMirror(repoKey);
+        int depth = Config.getRepoInt(repoName, "depth", 0);
+
+        synchronized (locks.computeIfAbsent(repoKey, k -> new Object())) {
+            lastUsed.put(repoKey, System.currentTimeMillis());
+            if (!mirror.exists()) {
+                System.out.println("Creating mirror of " + url);
+                if (depth > 0 && ref != null) {
+                    // a shallow mirror only needs the pushed branch
+                    try (Git git = Git.init().setBare(true).setDirectory(mirror).call()) {
+                        fetch(git, url, ref, depth);
+                    }
+                } else {
+                    Git.cloneRepository().setURI(url).setBare(true).setDirectory(mirror).call().close();
+                }
+                return mirror;
+            }
+            try (Git git = Git.open(mirror)) {
+                if (contains(git.getRepository(), commitSHA)) {
+                    return mirror;
+                }
+                fetch(git, url, ref, depth);
+            }
+        }
+        return mirror;
+    }
+
+    /**
+     * Returns the id of the source tree of a commit in a mirror. Commits with
+     * the same tree have exactly the same content.
+     *
+     * @param mirror    the directory of the mirror
+     * @param commitSHA the commit
+     * @return the tree id
+     * @throws IOException if the commit could not be read
+     */
+    public static String treeOf(File mirror, String commitSHA) throws IOException {
+        try (Repository repository = Git.open(mirror).getRepository();
+                RevWalk walk = new RevWalk(repository)) {
+            return walk.parseCommit(ObjectId.fromString(commitSHA)).getTree().getName();
+        }
+    }
+
+    private static void fetch(Git git, String url, String ref, int depth) throws GitAPIException {
+        RefSpec refSpec = ref == null
+                ? new RefSpec("+refs/heads/*:refs/heads/*")
+                : new RefSpec("+" + ref + ":" + ref);
+        FetchCommand fetch = git.fetch().setRemote(url).setRefSpecs(refSpec);
+        if (depth > 0) {
+            fetch.setDepth(depth);
+        }
+        fetch.call();
+    }
+
+    private static boolean contains(Repository repository, String commitSHA) throws IOException {
+        if (commitSHA == null || !ObjectId.isId(commitSHA)) {
+            return false;
+        }
+        return repository.getObjectDatabase().has(ObjectId.fromString(commitSHA));
+    }
+}
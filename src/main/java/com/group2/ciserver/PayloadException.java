@@ -0,0 +1,22 @@
+package com.group2.ciserver;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a webhook request is rejected, with the HTTP status to answer.
+ */
+public class PayloadException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public PayloadException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
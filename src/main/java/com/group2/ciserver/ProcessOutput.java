@@ -0,0 +1,91 @@
+package com.group2.ciserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Drains the output of a build process. Standard output and standard error
+ * are read on threads of their own, so neither pipe can fill up and block the
+ * process, and every line is written to the log of the current job.
+ *
+ * @see BuildLog
+ */
+public final class ProcessOutput {
+
+    private ProcessOutput() {
+    }
+
+    /**
+     * Reads standard output and standard error of a process until both are
+     * closed. Lines are written to the log of the calling thread.
+     *
+     * @param process the process to drain
+     * @param onLine  called with every line of standard output, on the
+     *                draining thread
+     * @throws InterruptedException if interrupted while waiting for the output
+     */
+    public static void drain(Process process, Consumer<String> onLine) throws InterruptedException {
+        join(start(process, "", onLine));
+    }
+
+    /**
+     * Starts reading standard output and standard error of a process without
+     * waiting for them to close, so that several processes can be drained at
+     * once. Lines are written to the log of the calling thread.
+     *
+     * @param process the process to drain
+     * @param prefix  put in front of every line in the log
+     * @param onLine  called with every line of standard output, or null
+     * @return the draining threads, to be passed to {@link #join(Thread[])}
+     */
+    public static Thread[] start(Process process, String prefix, Consumer<String> onLine) {
+        BuildLog log = BuildLog.current();
+        return new Thread[] {
+                pump(process.getInputStream(), log, prefix, onLine),
+                pump(process.getErrorStream(), log, prefix + "[stderr] ", null) };
+    }
+
+    /**
+     * Waits until the output of a process has been read.
+     *
+     * @param threads the threads returned by {@link #start(Process, String, Consumer)}
+     * @throws InterruptedException if interrupted while waiting for the output
+     */
+    public static void join(Thread[] threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            if (thread != null) {
+                thread.join();
+            }
+        }
+    }
+
+    private static Thread pump(InputStream stream, BuildLog log, String prefix, Consumer<String> onLine) {
+        if (stream == null) {
+            return null;
+        }
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (log == null) {
+                        System.out.println(prefix + line);
+                    } else {
+                        log.println(prefix + line);
+                    }
+                    if (onLine != null) {
+                        onLine.accept(line);
+                    }
+                }
+            } catch (IOException e) {
+                // the stream is closed when the process is destroyed
+            }
+        }, "ci-output");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,122 @@
+package com.group2.ciserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Reads the CPU time and memory of processes from {@code /proc}. On systems
+ * without {@code /proc} every value is 0.
+ */
+public final class ProcessStats {
+
+    // USER_HZ, the unit of the times in /proc/<pid>/stat, on every Linux architecture the server runs on
+    private static final long TICKS_PER_SECOND = 100;
+
+    private ProcessStats() {
+    }
+
+    /**
+     * Returns the CPU time used by the finished child processes of the
+     * server and, recursively, their own finished children.
+     *
+     * @return the user and system time in milliseconds
+     */
+    public static long getChildCpuMillis() {
+        String[] fields = stat(Paths.get("/proc/self/stat"));
+        if (fields == null) {
+            return 0;
+        }
+        // cutime and cstime, counting from the state field that follows the command
+        return ticksToMillis(parse(fields, 13) + parse(fields, 14));
+    }
+
+    /**
+     * Returns the CPU time used so far by a running process.
+     *
+     * @param pid the process id
+     * @return the user and system time in milliseconds, 0 if unknown
+     */
+    public static long getCpuMillis(long pid) {
+        String[] fields = stat(Paths.get("/proc", Long.toString(pid), "stat"));
+        if (fields == null) {
+            return 0;
+        }
+        // utime and stime
+        return ticksToMillis(parse(fields, 11) + parse(fields, 12));
+    }
+
+    /**
+     * Returns the resident memory of a running process.
+     *
+     * @param pid the process id
+     * @return the resident set size in bytes, 0 if unknown
+     */
+    public static long getRssBytes(long pid) {
+        return status(pid, "VmRSS:");
+    }
+
+    /**
+     * Returns the largest resident memory a running process had so far.
+     *
+     * @param pid the process id
+     * @return the peak resident set size in bytes, 0 if unknown
+     */
+    public static long getPeakRssBytes(long pid) {
+        return status(pid, "VmHWM:");
+    }
+
+    /**
+     * Returns the resident memory of all running descendants of the server,
+     * such as Maven and the test JVMs it forked.
+     *
+     * @return the summed resident set size in bytes
+     */
+    public static long getDescendantsRssBytes() {
+        return ProcessHandle.current().descendants().mapToLong(process -> getRssBytes(process.pid())).sum();
+    }
+
+    private static long ticksToMillis(long ticks) {
+        return ticks * 1000 / TICKS_PER_SECOND;
+    }
+
+    /**
+     * Returns the fields of a stat file after the command, which may contain
+     * spaces and is the only field in parentheses.
+     */
+    private static String[] stat(Path file) {
+        try {
+            String text = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+            int end = text.lastIndexOf(')');
+            return end < 0 ? null : text.substring(end + 2).trim().split(" ");
+        } catch (IOException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static long parse(String[] fields, int index) {
+        try {
+            return index < fields.length ? Long.parseLong(fields[index]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long status(long pid, String key) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"),
+                    StandardCharsets.US_ASCII)) {
+                if (line.startsWith(key)) {
+                    // "VmRSS:	  123456 kB"
+                    String value = line.substring(key.length()).trim();
+                    return Long.parseLong(value.substring(0, value.indexOf(' '))) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the process ended or there is no /proc
+        }
+        return 0;
+    }
+}
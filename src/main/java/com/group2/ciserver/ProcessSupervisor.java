@@ -0,0 +1,520 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Starts build processes and watches them until they exit.
+ * <p>
+ * A process that runs longer than its time limit, or prints nothing for
+ * longer than its idle limit, is killed together with every process it
+ * started, so a hung test cannot hold a worker forever and forked test JVMs
+ * do not outlive Maven. When a cgroup v2 directory is delegated to the
+ * server, every process runs in a cgroup of its own whose memory and CPU are
+ * capped; the JVMs of the build see the limits and size their heaps to fit.
+ * Without one nothing is capped, only the heap of the Maven JVM is sized to
+ * the memory limit through {@code -XX:MaxRAM} in {@code MAVEN_OPTS}. Capping
+ * the address space instead would keep JVMs from starting at all, since
+ * they reserve far more than they use.
+ * <p>
+ * The CPU time and peak resident memory of every process are added to the
+ * {@link BuildJob} that started it. They are read from the cgroup, or else
+ * sampled from {@code /proc} while the process runs.
+ */
+public class ProcessSupervisor {
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ci-supervisor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final AtomicBoolean CONTROLLERS_ENABLED = new AtomicBoolean();
+    private static final LongAdder WALL_TIMEOUTS = new LongAdder();
+    private static final LongAdder IDLE_TIMEOUTS = new LongAdder();
+
+    private final long timeoutMillis;
+    private final long idleMillis;
+    private final long memoryBytes;
+    private final int cpus;
+    private final File cgroupRoot;
+    private final boolean reapOrphans;
+
+    /**
+     * Creates a supervisor.
+     *
+     * @param timeoutMillis the longest time a process may run, or 0 for no
+     *                      limit
+     * @param idleMillis    the longest time a process may print nothing, or 0
+     *                      for no limit
+     * @param memoryBytes   the memory a process may use, or 0 for no limit;
+     *                      without a cgroup only the heap of the Maven JVM
+     *                      is sized to it
+     * @param cpus          the processors a process may keep busy, or 0 for
+     *                      no limit; only applied in a cgroup
+     * @param cgroupRoot    the cgroup v2 directory delegated to the server,
+     *                      below which every process gets a cgroup of its
+     *                      own, or null
+     * @param reapOrphans   true to kill the processes a process started
+     *                      once it exited, false if they may keep running,
+     *                      such as Maven daemons
+     */
+    public ProcessSupervisor(long timeoutMillis, long idleMillis, long memoryBytes, int cpus, File cgroupRoot,
+            boolean reapOrphans) {
+        this.timeoutMillis = timeoutMillis;
+        this.idleMillis = idleMillis;
+        this.memoryBytes = memoryBytes;
+        this.cpus = cpus;
+        this.cgroupRoot = cgroupRoot;
+        this.reapOrphans = reapOrphans;
+    }
+
+    /**
+     * Creates the supervisor configured for a repository from
+     * {@code ci.build.timeout-minutes}, {@code ci.build.idle-minutes},
+     * {@code ci.build.memory-mb}, {@code ci.build.cpus} and
+     * {@code ci.build.cgroup}. All but the cgroup can be set per repository.
+     * The daemons of a repository built with mvnd outlive its builds, so
+     * those builds get no cgroup and their orphans are not killed.
+     *
+     * @param repoName the name of the repository
+     * @return the supervisor
+     */
+    public static ProcessSupervisor forRepo(String repoName) {
+        String cgroup = Config.get("build.cgroup", "");
+        boolean daemons = MavenDaemonRunner.NAME.equals(BuildRunner.forRepo(repoName).getName());
+        return new ProcessSupervisor(
+                Config.getRepoInt(repoName, "build.timeout-minutes", 60) * 60_000L,
+                Config.getRepoInt(repoName, "build.idle-minutes", 15) * 60_000L,
+                Config.getRepoInt(repoName, "build.memory-mb", 0) * 1024L * 1024L,
+                Config.getRepoInt(repoName, "build.cpus", 0),
+                cgroup.isEmpty() || daemons ? null : new File(cgroup), !daemons);
+    }
+
+    public static long getWallTimeouts() {
+        return WALL_TIMEOUTS.sum();
+    }
+
+    public static long getIdleTimeouts() {
+        return IDLE_TIMEOUTS.sum();
+    }
+
+    /**
+     * Starts a process under the limits of the supervisor and registers it
+     * with the job running on the current thread. The command of the process
+     * builder is left as it was.
+     *
+     * @param processBuilder the process builder, with command and directory
+     *                       set
+     * @return the started process
+     * @throws IOException if the process could not be started
+     */
+    public Supervised start(ProcessBuilder processBuilder) throws IOException {
+        File cgroup = cgroupRoot == null ? null : createCgroup();
+        List<String> wrapper = wrapper(cgroup);
+        Process process;
+        if (cgroup == null && memoryBytes > 0 && processBuilder.environment() != null) {
+            Map<String, String> environment = processBuilder.environment();
+            String options = environment.get("MAVEN_OPTS");
+            // the JVM sizes its heap as if the machine had this much memory
+            environment.put("MAVEN_OPTS", (options == null ? "" : options + " ") + "-XX:MaxRAM=" + memoryBytes);
+            try {
+                process = processBuilder.start();
+            } finally {
+                if (options == null) {
+                    environment.remove("MAVEN_OPTS");
+                } else {
+                    environment.put("MAVEN_OPTS", options);
+                }
+            }
+        } else if (wrapper.isEmpty()) {
+            process = processBuilder.start();
+        } else {
+            List<String> command = processBuilder.command();
+            List<String> wrapped = new ArrayList<>(wrapper);
+            wrapped.addAll(command);
+            processBuilder.command(wrapped);
+            try {
+                process = processBuilder.start();
+            } catch (IOException e) {
+                removeCgroup(cgroup, 0);
+                throw e;
+            } finally {
+                processBuilder.command(command);
+            }
+        }
+        Supervised supervised = new Supervised(process, cgroup, BuildJob.current(), BuildLog.current());
+        BuildJob.track(supervised);
+        long limit = Math.min(timeoutMillis > 0 ? timeoutMillis : Long.MAX_VALUE,
+                idleMillis > 0 ? idleMillis : Long.MAX_VALUE);
+        long period = Math.max(50, Math.min(1000, limit / 4));
+        supervised.check = WATCHDOG.scheduleWithFixedDelay(supervised::check, period, period, TimeUnit.MILLISECONDS);
+        return supervised;
+    }
+
+    /**
+     * Returns the command put in front of the build command to move it into
+     * its cgroup, or an empty list if it has none.
+     */
+    private static List<String> wrapper(File cgroup) {
+        if (cgroup != null) {
+            // the shell moves itself into the cgroup before it becomes the
+            // build command, so every process the build forks is inside
+            return List.of("sh", "-c", "echo $$ > \"$0\" && exec \"$@\"",
+                    new File(cgroup, "cgroup.procs").getPath());
+        }
+        return List.of();
+    }
+
+    /**
+     * Creates the cgroup of a new process and writes its limits.
+     *
+     * @return the directory of the cgroup, or null if it could not be created
+     */
+    private File createCgroup() {
+        if (CONTROLLERS_ENABLED.compareAndSet(false, true)) {
+            // the children of the delegated cgroup can only be limited once
+            // the controllers are enabled for them
+            write(new File(cgroupRoot, "cgroup.subtree_control"), "+cpu +memory");
+        }
+        BuildJob job = BuildJob.current();
+        String name = (job != null ? "job-" + job.getId() : "process") + "-" + SEQUENCE.incrementAndGet();
+        File cgroup = new File(cgroupRoot, name);
+        if (!cgroup.mkdir()) {
+            System.out.println("Failed to create the cgroup " + cgroup + ", the build runs without limits");
+            return null;
+        }
+        if (memoryBytes > 0) {
+            write(new File(cgroup, "memory.max"), Long.toString(memoryBytes));
+            write(new File(cgroup, "memory.swap.max"), "0");
+        }
+        if (cpus > 0) {
+            write(new File(cgroup, "cpu.max"), cpus * 100_000 + " 100000");
+        }
+        return cgroup;
+    }
+
+    /**
+     * Removes the cgroup of a finished process, trying again while the
+     * killed processes in it are still exiting.
+     */
+    private static void removeCgroup(File cgroup, int attempt) {
+        if (cgroup == null || cgroup.delete() || !cgroup.exists()) {
+            return;
+        }
+        if (attempt < 10) {
+            WATCHDOG.schedule(() -> removeCgroup(cgroup, attempt + 1), 500, TimeUnit.MILLISECONDS);
+        } else {
+            System.out.println("Failed to remove the cgroup " + cgroup);
+        }
+    }
+
+    private static boolean write(File file, String value) {
+        try {
+            Files.write(file.toPath(), value.getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch (IOException e) {
+            System.out.println("Failed to write " + value + " to " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns a value of a cgroup file such as {@code cpu.stat}, which has
+     * one "key value" pair per line, or of a file holding a single number
+     * when the key is null.
+     *
+     * @return the value, or -1 if the file or key does not exist
+     */
+    private static long read(File file, String key) {
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII)) {
+                if (key == null) {
+                    return Long.parseLong(line.trim());
+                }
+                if (line.startsWith(key + " ")) {
+                    return Long.parseLong(line.substring(key.length() + 1).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // an older kernel without the file
+        }
+        return -1;
+    }
+
+    /**
+     * A process started by the supervisor. Reading its output counts as
+     * activity, and waiting for it to exit adds its resource use to its job.
+     */
+    public final class Supervised extends Process {
+        private final Process process;
+        private final File cgroup;
+        private final BuildJob job;
+        private final BuildLog log;
+        private final long startedAt = System.currentTimeMillis();
+        private volatile long lastOutput = startedAt;
+        private volatile String timeout = null;
+        private volatile ScheduledFuture<?> check;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        // sampled by the watchdog when there is no cgroup
+        private final Set<ProcessHandle> seen = ConcurrentHashMap.newKeySet();
+        private final Map<Long, Long> cpuByPid = new ConcurrentHashMap<>();
+        private volatile long peakRssBytes = 0;
+
+        private Supervised(Process process, File cgroup, BuildJob job, BuildLog log) {
+            this.process = process;
+            this.cgroup = cgroup;
+            this.job = job;
+            this.log = log;
+        }
+
+        /**
+         * Returns why the supervisor killed the process.
+         *
+         * @return the exceeded limit, such as "no output for 15 minutes", or
+         *         null if the process was not killed for a timeout
+         */
+        public String getTimeout() {
+            return timeout;
+        }
+
+        private void check() {
+            if (!process.isAlive()) {
+                finish();
+                return;
+            }
+            if (cgroup == null) {
+                sample();
+            }
+            long now = System.currentTimeMillis();
+            if (timeoutMillis > 0 && now - startedAt > timeoutMillis) {
+                WALL_TIMEOUTS.increment();
+                kill("running for more than " + describe(timeoutMillis));
+            } else if (idleMillis > 0 && now - lastOutput > idleMillis) {
+                IDLE_TIMEOUTS.increment();
+                kill("no output for " + describe(idleMillis));
+            }
+        }
+
+        private String describe(long millis) {
+            return millis % 60_000 == 0 ? millis / 60_000 + " minutes" : millis + " ms";
+        }
+
+        private void kill(String reason) {
+            timeout = reason;
+            String message = "Killing the build process " + process.pid() + " and its children: " + reason;
+            if (log == null) {
+                System.out.println(message);
+            } else {
+                log.println(message);
+            }
+            destroyForcibly();
+        }
+
+        /**
+         * Adds the CPU time of every process in the tree and its current
+         * memory, and remembers the processes so that they can be killed
+         * after their parent exited.
+         */
+        private void sample() {
+            long rss = 0;
+            List<ProcessHandle> tree = new ArrayList<>();
+            tree.add(process.toHandle());
+            try (Stream<ProcessHandle> descendants = process.descendants()) {
+                if (descendants != null) {
+                    descendants.forEach(tree::add);
+                }
+            }
+            for (ProcessHandle handle : tree) {
+                seen.add(handle);
+                cpuByPid.merge(handle.pid(), ProcessStats.getCpuMillis(handle.pid()), Math::max);
+                rss += ProcessStats.getRssBytes(handle.pid());
+            }
+            peakRssBytes = Math.max(peakRssBytes, rss);
+        }
+
+        /**
+         * Stops watching the process, kills what is left of its tree and
+         * adds its resource use to its job. Only the first call has an
+         * effect.
+         */
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            ScheduledFuture<?> task = check;
+            if (task != null) {
+                task.cancel(false);
+            }
+            long cpuMillis;
+            long peak;
+            if (cgroup != null) {
+                cpuMillis = Math.max(0, read(new File(cgroup, "cpu.stat"), "usage_usec") / 1000);
+                peak = Math.max(0, read(new File(cgroup, "memory.peak"), null));
+                killCgroup();
+                removeCgroup(cgroup, 0);
+            } else {
+                cpuMillis = cpuByPid.values().stream().mapToLong(Long::longValue).sum();
+                peak = peakRssBytes;
+                if (reapOrphans) {
+                    seen.forEach(ProcessHandle::destroyForcibly);
+                }
+            }
+            if (job != null) {
+                job.addUsage(cpuMillis, peak);
+            }
+        }
+
+        private void killCgroup() {
+            if (cgroup == null) {
+                return;
+            }
+            File kill = new File(cgroup, "cgroup.kill");
+            if (kill.exists() && write(kill, "1")) {
+                return;
+            }
+            // kernels before 5.14 have no cgroup.kill
+            try {
+                for (String pid : Files.readAllLines(new File(cgroup, "cgroup.procs").toPath())) {
+                    ProcessHandle.of(Long.parseLong(pid.trim())).ifPresent(ProcessHandle::destroyForcibly);
+                }
+            } catch (IOException | NumberFormatException e) {
+                // the cgroup is gone
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return process.getOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return watch(process.getInputStream());
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return watch(process.getErrorStream());
+        }
+
+        private InputStream watch(InputStream stream) {
+            if (stream == null) {
+                return null;
+            }
+            return new FilterInputStream(stream) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    lastOutput = System.currentTimeMillis();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int n = super.read(buffer, offset, length);
+                    lastOutput = System.currentTimeMillis();
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            int exitCode = process.waitFor();
+            finish();
+            return exitCode;
+        }
+
+        @Override
+        public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+            if (!process.waitFor(timeout, unit)) {
+                return false;
+            }
+            finish();
+            return true;
+        }
+
+        @Override
+        public int exitValue() {
+            return process.exitValue();
+        }
+
+        @Override
+        public void destroy() {
+            process.destroy();
+        }
+
+        @Override
+        public Process destroyForcibly() {
+            killCgroup();
+            try (Stream<ProcessHandle> descendants = process.descendants()) {
+                if (descendants != null) {
+                    descendants.forEach(ProcessHandle::destroyForcibly);
+                }
+            }
+            seen.forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+            return this;
+        }
+
+        @Override
+        public boolean supportsNormalTermination() {
+            return process.supportsNormalTermination();
+        }
+
+        @Override
+        public boolean isAlive() {
+            return process.isAlive();
+        }
+
+        @Override
+        public long pid() {
+            return process.pid();
+        }
+
+        @Override
+        public CompletableFuture<Process> onExit() {
+            return process.onExit().thenApply(exited -> this);
+        }
+
+        @Override
+        public ProcessHandle toHandle() {
+            return process.toHandle();
+        }
+
+        @Override
+        public ProcessHandle.Info info() {
+            return process.info();
+        }
+
+        @Override
+        public Stream<ProcessHandle> children() {
+            return process.children();
+        }
+
+        @Override
+        public Stream<ProcessHandle> descendants() {
+            return process.descendants();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.group2.ciserver;
+
+import org.json.JSONObject;
+
+/**
+ * The fields of a GitHub push webhook that a CI job needs.
+ *
+ * @see PushEventParser
+ */
+public final class PushEvent {
+
+    private final String cloneUrl;
+    private final String owner;
+    private final String repoName;
+    private final String ref;
+    private final String after;
+    private final String before;
+
+    /**
+     * Creates an event.
+     *
+     * @param cloneUrl the clone URL of the repository
+     * @param owner    the owner of the repository
+     * @param repoName the name of the repository
+     * @param ref      the pushed ref, or null
+     * @param after    the pushed commit, or null
+     */
+    public PushEvent(String cloneUrl, String owner, String repoName, String ref, String after) {
+        this(cloneUrl, owner, repoName, ref, after, null);
+    }
+
+    /**
+     * Creates an event.
+     *
+     * @param cloneUrl the clone URL of the repository
+     * @param owner    the owner of the repository
+     * @param repoName the name of the repository
+     * @param ref      the pushed ref, or null
+     * @param after    the pushed commit, or null
+     * @param before   the commit the ref pointed to before the push, or null
+     */
+    public PushEvent(String cloneUrl, String owner, String repoName, String ref, String after, String before) {
+        this.cloneUrl = cloneUrl;
+        this.owner = owner;
+        this.repoName = repoName;
+        this.ref = ref;
+        this.after = after;
+        this.before = before;
+    }
+
+    /**
+     * Reads an event from a payload parsed into a {@link JSONObject}.
+     *
+     * @param json the payload
+     * @return the event, or null if the payload has no repository
+     */
+    public static PushEvent fromJSON(JSONObject json) {
+        JSONObject repository = json.optJSONObject("repository");
+        if (repository == null) {
+            return null;
+        }
+        JSONObject owner = repository.optJSONObject("owner");
+        String ownerName = owner == null ? null : owner.optString("name", owner.optString("login", null));
+        return new PushEvent(repository.optString("clone_url", null), ownerName,
+                repository.optString("name", ""), json.optString("ref", null), json.optString("after", null),
+                json.optString("before", null));
+    }
+
+    public String getCloneUrl() {
+        return cloneUrl;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getRepoName() {
+        return repoName;
+    }
+
+    public String getRef() {
+        return ref;
+    }
+
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * Returns the commit the ref pointed to before the push. GitHub sends
+     * forty zeros when the push created the ref.
+     *
+     * @return the commit, or null if the payload had none
+     */
+    public String getBefore() {
+        return before;
+    }
+
+    /**
+     * Returns whether the push deleted its ref, for which GitHub sends forty
+     * zeros as the new commit. There is nothing to build.
+     *
+     * @return true if the ref was deleted
+     */
+    public boolean isDeletion() {
+        return after != null && after.length() == 40 && after.chars().allMatch(c -> c == '0');
+    }
+
+    /**
+     * Returns the event in the shape of the webhook payload, with only the
+     * fields of the event.
+     *
+     * @return the payload
+     */
+    public JSONObject toJSON() {
+        JSONObject repository = new JSONObject().put("name", repoName);
+        if (cloneUrl != null) {
+            repository.put("clone_url", cloneUrl);
+        }
+        if (owner != null) {
+            repository.put("owner", new JSONObject().put("name", owner));
+        }
+        JSONObject json = new JSONObject().put("repository", repository);
+        if (ref != null) {
+            json.put("ref", ref);
+        }
+        if (after != null) {
+            json.put("after", after);
+        }
+        if (before != null) {
+            json.put("before", before);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,390 @@
+package com.group2.ciserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Reads a {@link PushEvent} from a webhook body in a single pass.
+ * <p>
+ * Push payloads carry every commit of the push, but a job only needs six
+ * fields. The parser pulls JSON tokens straight from the request stream,
+ * keeps the strings of {@code ref}, {@code after}, {@code before},
+ * {@code repository.clone_url}, {@code repository.name} and
+ * {@code repository.owner.name}, and skips everything else without creating
+ * objects for it. The whole body is still checked to be valid JSON, and a
+ * body larger than the limit is rejected as soon as the limit is passed.
+ */
+public final class PushEventParser {
+
+    private static final int MAX_DEPTH = 64;
+    private static final int MAX_KEY = 16;
+
+    private static final byte[] REF = bytes("ref");
+    private static final byte[] AFTER = bytes("after");
+    private static final byte[] BEFORE = bytes("before");
+    private static final byte[] REPOSITORY = bytes("repository");
+    private static final byte[] CLONE_URL = bytes("clone_url");
+    private static final byte[] NAME = bytes("name");
+    private static final byte[] OWNER = bytes("owner");
+    private static final byte[] LOGIN = bytes("login");
+
+    // the objects whose fields are kept
+    private static final int ROOT = 0;
+    private static final int IN_REPOSITORY = 1;
+    private static final int IN_OWNER = 2;
+
+    private final InputStream in;
+    private final long maxBytes;
+    private final byte[] buffer = new byte[8192];
+    private int position = 0;
+    private int limit = 0;
+    private long read = 0;
+    private final byte[] key = new byte[MAX_KEY];
+    private int keyLength;
+    private byte[] string = new byte[256];
+
+    private boolean hasRepository = false;
+    private String ref;
+    private String after;
+    private String before;
+    private String cloneUrl;
+    private String repoName;
+    private String ownerName;
+    private String ownerLogin;
+
+    private PushEventParser(InputStream in, long maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads the push event from a webhook body. The body is read to its end.
+     *
+     * @param in       the body
+     * @param maxBytes the largest accepted body
+     * @return the event, or null if the body has no repository
+     * @throws PayloadException with status 413 if the body is too large, or
+     *                          400 if it is not a JSON object
+     * @throws IOException      if the body could not be read
+     */
+    public static PushEvent parse(InputStream in, long maxBytes) throws IOException {
+        return new PushEventParser(in, maxBytes).parse();
+    }
+
+    private PushEvent parse() throws IOException {
+        if (nextToken() != '{') {
+            throw malformed("the body is not a JSON object");
+        }
+        readObject(ROOT, 1);
+        if (nextToken() != -1) {
+            throw malformed("data after the JSON object");
+        }
+        if (!hasRepository) {
+            return null;
+        }
+        return new PushEvent(cloneUrl, ownerName != null ? ownerName : ownerLogin,
+                repoName == null ? "" : repoName, ref, after, before);
+    }
+
+    /**
+     * Reads the members of an object whose opening brace was read, keeping
+     * the fields wanted in the given object.
+     */
+    private void readObject(int object, int depth) throws IOException {
+        int c = nextToken();
+        if (c == '}') {
+            return;
+        }
+        while (true) {
+            if (c != '"') {
+                throw malformed("expected a member name");
+            }
+            readKey();
+            if (nextToken() != ':') {
+                throw malformed("expected ':'");
+            }
+            c = nextToken();
+            if (object == ROOT && isKey(REPOSITORY) && c == '{') {
+                hasRepository = true;
+                readObject(IN_REPOSITORY, depth + 1);
+            } else if (object == IN_REPOSITORY && isKey(OWNER) && c == '{') {
+                readObject(IN_OWNER, depth + 1);
+            } else if (c == '"' && (object == ROOT && (isKey(REF) || isKey(AFTER) || isKey(BEFORE))
+                    || object == IN_REPOSITORY && (isKey(CLONE_URL) || isKey(NAME))
+                    || object == IN_OWNER && (isKey(NAME) || isKey(LOGIN)))) {
+                keep(object, readString());
+            } else {
+                skipValue(c, depth);
+            }
+            c = nextToken();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw malformed("expected ',' or '}'");
+            }
+            c = nextToken();
+        }
+    }
+
+    private void keep(int object, String value) {
+        if (object == ROOT) {
+            if (isKey(REF)) {
+                ref = value;
+            } else if (isKey(AFTER)) {
+                after = value;
+            } else {
+                before = value;
+            }
+        } else if (object == IN_REPOSITORY) {
+            if (isKey(CLONE_URL)) {
+                cloneUrl = value;
+            } else {
+                repoName = value;
+            }
+        } else if (isKey(NAME)) {
+            ownerName = value;
+        } else {
+            ownerLogin = value;
+        }
+    }
+
+    private void skipValue(int c, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw malformed("nested too deeply");
+        }
+        if (c == '"') {
+            skipString();
+        } else if (c == '{') {
+            c = nextToken();
+            if (c == '}') {
+                return;
+            }
+            while (true) {
+                if (c != '"') {
+                    throw malformed("expected a member name");
+                }
+                skipString();
+                if (nextToken() != ':') {
+                    throw malformed("expected ':'");
+                }
+                skipValue(nextToken(), depth + 1);
+                c = nextToken();
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    throw malformed("expected ',' or '}'");
+                }
+                c = nextToken();
+            }
+        } else if (c == '[') {
+            c = nextToken();
+            if (c == ']') {
+                return;
+            }
+            while (true) {
+                skipValue(c, depth + 1);
+                c = nextToken();
+                if (c == ']') {
+                    return;
+                }
+                if (c != ',') {
+                    throw malformed("expected ',' or ']'");
+                }
+                c = nextToken();
+            }
+        } else if (c == '-' || c >= '0' && c <= '9') {
+            skipNumber(c);
+        } else if (c == 't') {
+            skipLiteral("rue");
+        } else if (c == 'f') {
+            skipLiteral("alse");
+        } else if (c == 'n') {
+            skipLiteral("ull");
+        } else {
+            throw malformed("unexpected character");
+        }
+    }
+
+    private void skipNumber(int c) throws IOException {
+        if (c == '-') {
+            c = read();
+        }
+        if (c < '0' || c > '9') {
+            throw malformed("invalid number");
+        }
+        if (c != '0') {
+            skipDigits();
+        }
+        if (peek() == '.') {
+            position++;
+            if (!isDigit(read())) {
+                throw malformed("invalid number");
+            }
+            skipDigits();
+        }
+        if (peek() == 'e' || peek() == 'E') {
+            position++;
+            if (peek() == '+' || peek() == '-') {
+                position++;
+            }
+            if (!isDigit(read())) {
+                throw malformed("invalid number");
+            }
+            skipDigits();
+        }
+    }
+
+    private void skipDigits() throws IOException {
+        while (isDigit(peek())) {
+            position++;
+        }
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Reads the rest of true, false or null. A literal running on, like
+     * {@code nullx}, is rejected by the caller expecting a separator.
+     */
+    private void skipLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) {
+                throw malformed("invalid literal");
+            }
+        }
+    }
+
+    private void readKey() throws IOException {
+        keyLength = 0;
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                // escaped names are never among the wanted ones
+                keyLength = MAX_KEY + 1;
+                read();
+            } else if (c < 0x20) {
+                throw malformed(c < 0 ? "unterminated string" : "control character in string");
+            } else if (keyLength < MAX_KEY) {
+                key[keyLength++] = (byte) c;
+            } else {
+                keyLength = MAX_KEY + 1;
+            }
+        }
+    }
+
+    private boolean isKey(byte[] name) {
+        return keyLength == name.length && Arrays.equals(key, 0, keyLength, name, 0, name.length);
+    }
+
+    private String readString() throws IOException {
+        int length = 0;
+        boolean escaped = false;
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                break;
+            }
+            if (c < 0x20) {
+                throw malformed(c < 0 ? "unterminated string" : "control character in string");
+            }
+            if (length + 2 > string.length) {
+                string = Arrays.copyOf(string, string.length * 2);
+            }
+            string[length++] = (byte) c;
+            if (c == '\\') {
+                escaped = true;
+                c = read();
+                if (c < 0) {
+                    throw malformed("unterminated string");
+                }
+                string[length++] = (byte) c;
+            }
+        }
+        String raw = new String(string, 0, length, StandardCharsets.UTF_8);
+        if (!escaped) {
+            return raw;
+        }
+        // the wanted fields are rarely escaped, leave the decoding to org.json
+        try {
+            return (String) new JSONTokener("\"" + raw + "\"").nextValue();
+        } catch (JSONException e) {
+            throw malformed("invalid escape in string");
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                throw malformed("unterminated string");
+            }
+            byte c = buffer[position++];
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                if (read() < 0) {
+                    throw malformed("unterminated string");
+                }
+            } else if (c >= 0 && c < 0x20) {
+                throw malformed("control character in string");
+            }
+        }
+    }
+
+    private int nextToken() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer);
+        if (n <= 0) {
+            return false;
+        }
+        read += n;
+        if (read > maxBytes) {
+            throw new PayloadException(413, "The payload is larger than " + maxBytes + " bytes");
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private static PayloadException malformed(String reason) {
+        return new PayloadException(400, "Malformed payload: " + reason);
+    }
+}
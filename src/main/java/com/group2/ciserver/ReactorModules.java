@@ -0,0 +1,438 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The modules of a Maven reactor, read from the POMs of a commit in a bare
+ * repository without checking it out.
+ * <p>
+ * A push to a large multi-module repository usually touches a few modules.
+ * {@link #select(File, String, String)} maps the files changed by the push
+ * to the modules they belong to and adds the modules that depend on them or
+ * inherit from them, which are the modules whose build can be affected. Those
+ * are built with {@code -pl <modules> -am}, and only their files, the files
+ * of the modules they depend on, the files of the root project and the POM of
+ * every module are checked out, which is enough for Maven to read the whole
+ * reactor. Any change outside a module, a reactor that cannot be read, or
+ * one with modules that only some profiles add, builds and checks out
+ * everything.
+ * <p>
+ * Sparse builds are opt-in per repository with
+ * {@code ci.repo.<name>.checkout=sparse}.
+ */
+public class ReactorModules {
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    private static final String NO_COMMIT = "0000000000000000000000000000000000000000";
+    // the elements of a POM that refer to another artifact by its coordinates
+    private static final Set<String> REFERENCES = Set.of("dependency", "plugin", "extension");
+
+    static {
+        // POMs come from the pushed repository, which must not make the
+        // server read other files
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * A module of the reactor.
+     */
+    private static final class Module {
+        private final String path;
+        private String groupId;
+        private String artifactId;
+        private String parent;
+        private final Set<String> dependencies = new HashSet<>();
+        private final List<String> modules = new ArrayList<>();
+        private final List<String> profileModules = new ArrayList<>();
+
+        private Module(String path) {
+            this.path = path;
+        }
+
+        private String getKey() {
+            return groupId + ":" + artifactId;
+        }
+    }
+
+    /**
+     * The modules to build for a push.
+     */
+    public static final class Selection {
+        private final ReactorModules reactor;
+        private final List<String> modules;
+        private final Set<String> checkout;
+        private final String reason;
+
+        private Selection(ReactorModules reactor, List<String> modules, Set<String> checkout, String reason) {
+            this.reactor = reactor;
+            this.modules = modules;
+            this.checkout = checkout;
+            this.reason = reason;
+        }
+
+        /**
+         * Returns whether the whole reactor is built and checked out.
+         *
+         * @return true if no modules were selected
+         */
+        public boolean isFull() {
+            return modules == null;
+        }
+
+        /**
+         * Returns the paths of the selected modules, to be passed to
+         * {@code -pl}.
+         *
+         * @return the module paths, or null for a full build
+         */
+        public List<String> getModules() {
+            return modules;
+        }
+
+        /**
+         * Checks whether a file of the commit is needed to build the selected
+         * modules.
+         *
+         * @param path the path of the file in the repository
+         * @return true if the file must be checked out
+         */
+        public boolean includes(String path) {
+            if (modules == null) {
+                return true;
+            }
+            String dir = parentOf(path);
+            if (path.substring(dir.isEmpty() ? 0 : dir.length() + 1).equals("pom.xml")
+                    && reactor.modules.containsKey(dir)) {
+                return true;
+            }
+            return checkout.contains(reactor.ownerOf(dir));
+        }
+
+        /**
+         * Returns a line for the build log describing the selection.
+         *
+         * @return the description
+         */
+        public String describe() {
+            if (modules == null) {
+                return "Building all modules: " + reason;
+            }
+            return "Building " + modules.size() + " of " + reactor.modules.size() + " modules " + reason + ": "
+                    + String.join(", ", modules);
+        }
+
+        /**
+         * Returns the selection as it is stored in the build record.
+         *
+         * @return the selection
+         */
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject().put("full", isFull()).put("reason", reason);
+            if (modules != null) {
+                json.put("modules", new JSONArray(modules));
+                json.put("checkedOutModules", checkout.size());
+            }
+            return json;
+        }
+    }
+
+    // by path relative to the repository root, "" for the root project
+    private final Map<String, Module> modules = new LinkedHashMap<>();
+
+    private ReactorModules() {
+    }
+
+    /**
+     * Selects the modules affected by a push.
+     *
+     * @param gitDir a repository containing both commits
+     * @param before the commit the ref pointed to before the push, or null
+     * @param after  the pushed commit
+     * @return the selection, which is the whole reactor whenever the affected
+     *         modules cannot be determined
+     */
+    public static Selection select(File gitDir, String before, String after) {
+        if (before == null || before.equals(NO_COMMIT) || !ObjectId.isId(before)) {
+            return new Selection(null, null, null, "the push created the branch");
+        }
+        List<String> paths;
+        try {
+            paths = TestImpact.changedPaths(gitDir, before, after);
+        } catch (IOException e) {
+            return new Selection(null, null, null, "could not diff against " + before + ": " + e.getMessage());
+        }
+        ReactorModules reactor;
+        try {
+            reactor = read(gitDir, after);
+        } catch (IOException e) {
+            return new Selection(null, null, null, "could not read the reactor: " + e.getMessage());
+        }
+        return reactor.select(paths);
+    }
+
+    /**
+     * Reads the reactor of a commit, starting from the root {@code pom.xml}.
+     *
+     * @param gitDir    the repository
+     * @param commitSHA the commit
+     * @return the modules
+     * @throws IOException if a POM is missing or invalid
+     */
+    static ReactorModules read(File gitDir, String commitSHA) throws IOException {
+        try (Repository repository = Git.open(gitDir).getRepository();
+                RevWalk walk = new RevWalk(repository)) {
+            RevTree tree = walk.parseCommit(ObjectId.fromString(commitSHA)).getTree();
+            ReactorModules reactor = new ReactorModules();
+            Deque<Module> pending = new ArrayDeque<>();
+            pending.add(new Module(""));
+            while (!pending.isEmpty()) {
+                Module module = pending.poll();
+                if (reactor.modules.containsKey(module.path)) {
+                    continue;
+                }
+                String pom = module.path.isEmpty() ? "pom.xml" : module.path + "/pom.xml";
+                try (TreeWalk file = TreeWalk.forPath(repository, pom, tree)) {
+                    if (file == null) {
+                        throw new IOException(pom + " does not exist");
+                    }
+                    try (InputStream in = repository.open(file.getObjectId(0)).openStream()) {
+                        parse(in, module);
+                    } catch (XMLStreamException e) {
+                        throw new IOException(pom + " is not valid XML: " + e.getMessage(), e);
+                    }
+                }
+                reactor.modules.put(module.path, module);
+                for (String child : module.modules) {
+                    String path = resolve(module.path, child);
+                    if (path == null) {
+                        throw new IOException("module " + child + " of " + pom + " is outside the repository");
+                    }
+                    pending.add(new Module(path));
+                }
+            }
+            return reactor;
+        }
+    }
+
+    /**
+     * Selects the modules owning the changed files and the modules that
+     * depend on them or inherit from them.
+     *
+     * @param changedPaths the paths changed by the push
+     * @return the selection
+     */
+    Selection select(Collection<String> changedPaths) {
+        Set<String> touched = new TreeSet<>();
+        for (String path : changedPaths) {
+            String owner = ownerOf(parentOf(path));
+            if (owner.isEmpty()) {
+                return new Selection(this, null, null, path + " is not in a module");
+            }
+            touched.add(owner);
+        }
+        if (touched.isEmpty()) {
+            return new Selection(this, null, null, "the push changed no files");
+        }
+        for (Module module : modules.values()) {
+            // the reactor then depends on the active profiles, which are not known here
+            if (!module.profileModules.isEmpty()) {
+                String pom = module.path.isEmpty() ? "pom.xml" : module.path + "/pom.xml";
+                return new Selection(this, null, null, pom + " declares modules in a profile");
+            }
+        }
+        Map<String, Module> byKey = new HashMap<>();
+        for (Module module : modules.values()) {
+            byKey.put(module.getKey(), module);
+        }
+        Map<String, Set<String>> dependents = new HashMap<>();
+        for (Module module : modules.values()) {
+            for (Module upstream : upstreamOf(module, byKey)) {
+                dependents.computeIfAbsent(upstream.path, k -> new HashSet<>()).add(module.path);
+            }
+        }
+
+        Set<String> build = new TreeSet<>();
+        Deque<String> pending = new ArrayDeque<>(touched);
+        while (!pending.isEmpty()) {
+            String path = pending.poll();
+            if (build.add(path)) {
+                pending.addAll(dependents.getOrDefault(path, Set.of()));
+            }
+        }
+        build.remove("");
+        Set<String> checkout = new HashSet<>();
+        pending.addAll(build);
+        while (!pending.isEmpty()) {
+            String path = pending.poll();
+            if (checkout.add(path)) {
+                for (Module upstream : upstreamOf(modules.get(path), byKey)) {
+                    pending.add(upstream.path);
+                }
+            }
+        }
+        checkout.add("");
+        return new Selection(this, new ArrayList<>(build), checkout,
+                "affected by the changes to " + String.join(", ", touched));
+    }
+
+    /**
+     * Returns the modules of the reactor a module depends on or inherits
+     * from.
+     */
+    private static List<Module> upstreamOf(Module module, Map<String, Module> byKey) {
+        List<Module> upstream = new ArrayList<>();
+        if (module.parent != null && byKey.containsKey(module.parent)) {
+            upstream.add(byKey.get(module.parent));
+        }
+        for (String dependency : module.dependencies) {
+            Module other = byKey.get(dependency);
+            if (other != null && other != module) {
+                upstream.add(other);
+            }
+        }
+        return upstream;
+    }
+
+    /**
+     * Returns the path of the innermost module containing a directory.
+     */
+    private String ownerOf(String dir) {
+        while (!dir.isEmpty() && !modules.containsKey(dir)) {
+            dir = parentOf(dir);
+        }
+        return dir;
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    /**
+     * Resolves a {@code <module>} entry against the directory of its POM.
+     *
+     * @return the path of the module relative to the repository root, or
+     *         null if it is outside the repository
+     */
+    private static String resolve(String dir, String module) {
+        String name = module.trim();
+        if (name.endsWith(".xml")) {
+            name = parentOf(name);
+        }
+        Path path = Paths.get(dir.isEmpty() ? "." : dir).resolve(name).normalize();
+        String resolved = path.toString().replace(File.separatorChar, '/');
+        if (resolved.startsWith("..")) {
+            return null;
+        }
+        return resolved.equals(".") ? "" : resolved;
+    }
+
+    /**
+     * Reads the coordinates, parent, modules and dependencies of a POM. The
+     * dependencies are those of the project, of its profiles and of its
+     * plugins, and its plugins and build extensions themselves, as any of
+     * them may be a module of the reactor. Managed dependencies are only
+     * versions and are left out.
+     */
+    private static void parse(InputStream in, Module module) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            List<String> elements = new ArrayList<>();
+            // the dependencies, plugins and extensions being read, innermost first
+            Deque<String[]> references = new ArrayDeque<>();
+            Deque<Integer> referenceDepths = new ArrayDeque<>();
+            String parentGroup = null;
+            String parentArtifact = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    elements.add(name);
+                    String path = String.join("/", elements);
+                    if (REFERENCES.contains(name) && !path.contains("/dependencyManagement/")) {
+                        references.push(new String[2]);
+                        referenceDepths.push(elements.size());
+                        continue;
+                    }
+                    boolean inReference = !referenceDepths.isEmpty() && referenceDepths.peek() == elements.size() - 1;
+                    if (path.equals("project/groupId")) {
+                        module.groupId = reader.getElementText().trim();
+                    } else if (path.equals("project/artifactId")) {
+                        module.artifactId = reader.getElementText().trim();
+                    } else if (path.equals("project/parent/groupId")) {
+                        parentGroup = reader.getElementText().trim();
+                    } else if (path.equals("project/parent/artifactId")) {
+                        parentArtifact = reader.getElementText().trim();
+                    } else if (path.equals("project/modules/module")) {
+                        module.modules.add(reader.getElementText());
+                    } else if (path.equals("project/profiles/profile/modules/module")) {
+                        module.profileModules.add(reader.getElementText().trim());
+                    } else if (inReference && name.equals("groupId")) {
+                        references.peek()[0] = reader.getElementText().trim();
+                    } else if (inReference && name.equals("artifactId")) {
+                        references.peek()[1] = reader.getElementText().trim();
+                    } else {
+                        continue;
+                    }
+                    // getElementText consumed the end of the element
+                    elements.remove(elements.size() - 1);
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (!referenceDepths.isEmpty() && referenceDepths.peek() == elements.size()) {
+                        referenceDepths.pop();
+                        String[] reference = references.pop();
+                        // plugins without a groupId are Maven's own
+                        if (reference[0] != null && reference[1] != null) {
+                            module.dependencies.add(reference[0] + ":" + reference[1]);
+                        }
+                    }
+                    elements.remove(elements.size() - 1);
+                }
+            }
+            if (module.groupId == null) {
+                module.groupId = parentGroup;
+            }
+            if (parentGroup != null && parentArtifact != null) {
+                module.parent = parentGroup + ":" + parentArtifact;
+            }
+            // the usual way modules of one reactor refer to each other
+            Set<String> dependencies = new HashSet<>();
+            for (String dependency : module.dependencies) {
+                dependencies.add(dependency.replace("${project.groupId}", String.valueOf(module.groupId)));
+            }
+            module.dependencies.clear();
+            module.dependencies.addAll(dependencies);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * Remembers which source trees have already passed the build, so that a
+ * re-push, a force-push of the same content or a merge commit whose tree was
+ * already tested does not run Maven again.
+ * <p>
+ * An entry is keyed by the git tree id of the built commit and a fingerprint
+ * of the build commands and the JDK, so changing either invalidates all
+ * entries. Only successful builds are cached; a failure may be caused by a
+ * flaky test and is worth building again. Entries are evicted when they are
+ * older than the time to live, or as the least recently used entry once the
+ * cache is full. The cache is written to a file after every change and read
+ * back on startup.
+ */
+public class ResultCache {
+
+    private final File file;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, JSONObject> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Opens a cache stored in file, reading the entries stored by an earlier
+     * run.
+     *
+     * @param file       the file the cache is persisted in
+     * @param maxEntries the number of entries kept
+     * @param ttlMillis  how long an entry stays valid
+     */
+    public ResultCache(File file, int maxEntries, long ttlMillis) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        load();
+    }
+
+    /**
+     * Opens the cache configured by "cache.file", "cache.entries" and
+     * "cache.ttl-hours".
+     *
+     * @return the cache
+     */
+    public static ResultCache fromConfig() {
+        File file = new File(Config.get("cache.file",
+                new File(WorkspaceManager.configuredRoot(), "result-cache.json").getPath()));
+        int maxEntries = Config.getInt("cache.entries", 10000);
+        long ttlMillis = TimeUnit.HOURS.toMillis(Config.getInt("cache.ttl-hours", 24 * 7));
+        return new ResultCache(file, maxEntries, ttlMillis);
+    }
+
+    /**
+     * Returns a fingerprint of the build commands and the JDK that runs them.
+     *
+     * @param commands the commands run by a build
+     * @return the fingerprint as a hex string
+     */
+    public static String fingerprint(List<String> commands) {
+        StringBuilder input = new StringBuilder();
+        for (String command : commands) {
+            input.append(command).append('\n');
+        }
+        input.append(System.getProperty("java.version")).append('\n');
+        input.append(System.getenv("JAVA_HOME")).append('\n');
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(input.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String key(String treeId, String fingerprint) {
+        return treeId + ":" + fingerprint;
+    }
+
+    /**
+     * Looks up a successful build of a tree.
+     *
+     * @param treeId      the git tree id of the commit
+     * @param fingerprint the fingerprint of the build
+     * @return the cached entry with the "buildId" and "sha" of the build that
+     *         verified the tree, or null on a miss
+     */
+    public synchronized JSONObject get(String treeId, String fingerprint) {
+        String key = key(treeId, fingerprint);
+        JSONObject entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.getLong("createdAt") > ttlMillis) {
+            entries.remove(key);
+            save();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records that a tree passed the build.
+     *
+     * @param treeId      the git tree id of the commit
+     * @param fingerprint the fingerprint of the build
+     * @param commitSHA   the commit that was built
+     * @param buildId     the id of the build in the build history
+     */
+    public synchronized void put(String treeId, String fingerprint, String commitSHA, long buildId) {
+        JSONObject entry = new JSONObject();
+        entry.put("sha", commitSHA);
+        entry.put("buildId", buildId);
+        entry.put("createdAt", System.currentTimeMillis());
+        entries.put(key(treeId, fingerprint), entry);
+        evict();
+        save();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        for (Iterator<JSONObject> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().getLong("createdAt") < cutoff) {
+                it.remove();
+            }
+        }
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (entries.size() > maxEntries && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            JSONObject stored = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            // entries are stored from least to most recently used
+            for (Object key : stored.getJSONArray("order")) {
+                JSONObject entry = stored.getJSONObject("entries").optJSONObject((String) key);
+                if (entry != null) {
+                    entries.put((String) key, entry);
+                }
+            }
+            evict();
+        } catch (IOException | org.json.JSONException | ClassCastException e) {
+            System.out.println("Ignoring unreadable result cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void save() {
+        JSONObject stored = new JSONObject();
+        JSONObject storedEntries = new JSONObject();
+        for (Map.Entry<String, JSONObject> entry : entries.entrySet()) {
+            storedEntries.put(entry.getKey(), entry.getValue());
+        }
+        stored.put("order", entries.keySet());
+        stored.put("entries", storedEntries);
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            parent.mkdirs();
+            File temp = new File(parent, file.getName() + ".tmp");
+            Files.write(temp.toPath(), stored.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Failed to save result cache: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.group2.ciserver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * The settings of the HTTP server: the port, the acceptor and selector
+ * threads of the connector, the bounds of the request thread pool, timeouts
+ * and the largest request header.
+ * <p>
+ * With {@code ci.virtual-threads}, requests are handled on virtual threads
+ * instead of a bounded pool when the server runs on JDK 21 or later. Older
+ * JDKs fall back to the thread pool.
+ */
+public class ServerConfig {
+
+    // time the requests being handled get to finish when the server stops
+    private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+    private String host = null;
+    private int port = 8080;
+    private int acceptors = -1;
+    private int selectors = -1;
+    private int minThreads = 8;
+    private int maxThreads = 200;
+    private int idleTimeoutMillis = 30000;
+    private int headerBytes = 8192;
+    private boolean virtualThreads = false;
+    private long drainMillis = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * A Jetty thread pool that runs every task on a new virtual thread.
+     */
+    private static final class VirtualThreadPool extends ContainerLifeCycle implements ThreadPool {
+        private final ExecutorService executor;
+        private final AtomicInteger threads = new AtomicInteger();
+
+        VirtualThreadPool(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            executor.execute(() -> {
+                threads.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    threads.decrementAndGet();
+                }
+            });
+        }
+
+        @Override
+        public void join() throws InterruptedException {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int getThreads() {
+            return threads.get();
+        }
+
+        @Override
+        public int getIdleThreads() {
+            return 0;
+        }
+
+        @Override
+        public boolean isLowOnThreads() {
+            return false;
+        }
+
+        @Override
+        protected void doStop() throws Exception {
+            executor.shutdown();
+            super.doStop();
+        }
+    }
+
+    /**
+     * Reads the settings from {@link Config}: {@code ci.host},
+     * {@code ci.port}, {@code ci.http.acceptors}, {@code ci.http.selectors},
+     * {@code ci.http.min-threads}, {@code ci.http.max-threads},
+     * {@code ci.http.idle-timeout-ms}, {@code ci.http.header-bytes},
+     * {@code ci.virtual-threads} and {@code ci.shutdown.drain-seconds}.
+     *
+     * @return the settings
+     */
+    public static ServerConfig fromConfig() {
+        ServerConfig config = new ServerConfig();
+        config.host = Config.get("host", null);
+        config.port = Config.getInt("port", config.port);
+        config.acceptors = Config.getInt("http.acceptors", config.acceptors);
+        config.selectors = Config.getInt("http.selectors", config.selectors);
+        config.minThreads = Config.getInt("http.min-threads", config.minThreads);
+        config.maxThreads = Config.getInt("http.max-threads", config.maxThreads);
+        config.idleTimeoutMillis = Config.getInt("http.idle-timeout-ms", config.idleTimeoutMillis);
+        config.headerBytes = Config.getInt("http.header-bytes", config.headerBytes);
+        config.virtualThreads = Boolean.parseBoolean(Config.get("virtual-threads", "false"));
+        config.drainMillis = TimeUnit.SECONDS.toMillis(Config.getInt("shutdown.drain-seconds", 600));
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port, 0 to pick a free one.
+     *
+     * @param port the port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Sets the bounds of the request thread pool.
+     *
+     * @param minThreads the threads kept when idle
+     * @param maxThreads the most threads handling requests at once
+     */
+    public void setThreads(int minThreads, int maxThreads) {
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns how long a stopping server waits for the queued and running
+     * jobs.
+     *
+     * @return the time in milliseconds
+     */
+    public long getDrainMillis() {
+        return drainMillis;
+    }
+
+    /**
+     * Creates a server with these settings. Requests are counted by a
+     * {@link StatisticsHandler} in front of the handler, so stopping the
+     * server waits for the requests being handled.
+     *
+     * @param handler the handler of the requests
+     * @return the server, not started
+     */
+    public Server createServer(Handler handler) {
+        Server server = new Server(createThreadPool());
+        HttpConfiguration http = new HttpConfiguration();
+        http.setRequestHeaderSize(headerBytes);
+        http.setSendServerVersion(false);
+        ServerConnector connector = new ServerConnector(server, acceptors, selectors,
+                new HttpConnectionFactory(http));
+        connector.setHost(host);
+        connector.setPort(port);
+        connector.setIdleTimeout(idleTimeoutMillis);
+        server.addConnector(connector);
+
+        StatisticsHandler statistics = new StatisticsHandler();
+        statistics.setHandler(handler);
+        server.setHandler(statistics);
+        server.setStopTimeout(STOP_TIMEOUT_MILLIS);
+        return server;
+    }
+
+    private ThreadPool createThreadPool() {
+        if (virtualThreads) {
+            ExecutorService executor = VirtualThreads.executor("ci-http-");
+            if (executor != null) {
+                return new VirtualThreadPool(executor);
+            }
+            System.out.println("Virtual threads need JDK 21 or later, using a pool of " + maxThreads
+                    + " request threads");
+        }
+        QueuedThreadPool pool = new QueuedThreadPool(maxThreads, minThreads);
+        pool.setName("ci-http");
+        return pool;
+    }
+}
@@ -0,0 +1,417 @@
+package com.group2.ciserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Posts commit statuses to GitHub from a thread of its own.
+ * <p>
+ * {@link #publish} only queues a status and returns, so the build threads
+ * never wait for GitHub. Queued statuses of the same commit and context are
+ * collapsed into the latest one. A single {@link HttpClient} keeps its
+ * connection to GitHub open between requests. Failed requests are retried
+ * with exponential backoff, and when GitHub reports that the rate limit is
+ * used up, nothing is sent until the time in {@code X-RateLimit-Reset}.
+ * <p>
+ * Queued statuses are kept in an outbox file so they are still sent after a
+ * restart. Access tokens are not written to the outbox, statuses read back
+ * from it are sent with the token the publisher was created with.
+ */
+public class StatusPublisher implements Closeable {
+
+    private static final int MAX_DESCRIPTION = 140;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final class Status {
+        final String owner;
+        final String repo;
+        final String sha;
+        final String state;
+        final String description;
+        final String token;
+        int attempts = 0;
+        long notBefore = 0;
+
+        Status(String owner, String repo, String sha, String state, String description, String token) {
+            this.owner = owner;
+            this.repo = repo;
+            this.sha = sha;
+            this.state = state;
+            this.description = description;
+            this.token = token;
+        }
+
+        JSONObject toJSON() {
+            return new JSONObject().put("owner", owner).put("repo", repo).put("sha", sha).put("state", state)
+                    .put("description", description);
+        }
+    }
+
+    private final String apiUrl;
+    private final String context;
+    private final String defaultToken;
+    private final File outbox;
+    private final long backoffMillis;
+    private final HttpClient client;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ci-status");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Status> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduled = null;
+    private long pausedUntil = 0;
+    private long sent = 0;
+    private long dropped = 0;
+    private final Histogram latency = new Histogram(4, 16);
+    private volatile long rateLimitRemaining = -1;
+    private volatile long rateLimitLimit = -1;
+
+    /**
+     * Creates a publisher and schedules the statuses left in its outbox.
+     *
+     * @param apiUrl        the base URL of the GitHub API, such as
+     *                      "https://api.github.com"
+     * @param context       the context the statuses are posted under
+     * @param defaultToken  the access token for statuses read from the outbox
+     * @param outbox        the file queued statuses are kept in
+     * @param backoffMillis the delay before the first retry of a failed
+     *                      request, doubled on every further retry
+     */
+    public StatusPublisher(String apiUrl, String context, String defaultToken, File outbox, long backoffMillis) {
+        this.apiUrl = apiUrl.endsWith("/") ? apiUrl.substring(0, apiUrl.length() - 1) : apiUrl;
+        this.context = context;
+        this.defaultToken = defaultToken;
+        this.outbox = outbox;
+        this.backoffMillis = backoffMillis;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        load();
+        schedule(0);
+    }
+
+    /**
+     * Creates the publisher configured by {@code ci.github.api},
+     * {@code ci.github.token}, {@code ci.status.context} and
+     * {@code ci.status.outbox}.
+     *
+     * @return the publisher
+     */
+    public static StatusPublisher fromConfig() {
+        return new StatusPublisher(Config.get("github.api", "https://api.github.com"),
+                Config.get("status.context", "ci-server"),
+                Config.get("github.token", ""),
+                new File(Config.get("status.outbox", System.getProperty("user.home") + "/Github/status-outbox.json")),
+                1000);
+    }
+
+    /**
+     * Queues a commit status. A status of the same commit that has not been
+     * sent yet is replaced.
+     *
+     * @param owner       the owner of the repository
+     * @param repo        the name of the repository
+     * @param sha         the commit
+     * @param state       "error", "failure", "pending" or "success"
+     * @param description a short description, cut to the 140 characters
+     *                    GitHub accepts
+     * @param accessToken the GitHub access token
+     */
+    public void publish(String owner, String repo, String sha, String state, String description,
+            String accessToken) {
+        if (description.length() > MAX_DESCRIPTION) {
+            description = description.substring(0, MAX_DESCRIPTION - 3) + "...";
+        }
+        synchronized (this) {
+            pending.remove(key(owner, repo, sha));
+            pending.put(key(owner, repo, sha), new Status(owner, repo, sha, state, description, accessToken));
+            save();
+        }
+        schedule(0);
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the times GitHub took to answer, in milliseconds.
+     *
+     * @return the histogram of the request times
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the requests left in the rate limit, as reported by GitHub in
+     * the last response.
+     *
+     * @return the requests left, -1 before the first response
+     */
+    public long getRateLimitRemaining() {
+        return rateLimitRemaining;
+    }
+
+    /**
+     * Returns the size of the rate limit, as reported by GitHub in the last
+     * response.
+     *
+     * @return the requests per hour, -1 before the first response
+     */
+    public long getRateLimitLimit() {
+        return rateLimitLimit;
+    }
+
+    /**
+     * Waits until every queued status has been sent or dropped.
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if nothing is left to send
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (!pending.isEmpty()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops sending. Statuses not sent yet stay in the outbox.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static String key(String owner, String repo, String sha) {
+        return owner + "/" + repo + "@" + sha;
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        if (scheduled != null && !scheduled.isDone() && scheduled.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+            return;
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = executor.schedule(this::drain, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Status next = null;
+            long now = System.currentTimeMillis();
+            long wait = Long.MAX_VALUE;
+            synchronized (this) {
+                if (pausedUntil > now) {
+                    wait = pausedUntil - now;
+                } else {
+                    for (Status status : pending.values()) {
+                        if (status.notBefore <= now) {
+                            next = status;
+                            break;
+                        }
+                        wait = Math.min(wait, status.notBefore - now);
+                    }
+                }
+                if (next == null) {
+                    // publish() schedules a new drain once this one is forgotten
+                    scheduled = null;
+                    if (!pending.isEmpty() && !executor.isShutdown()) {
+                        scheduled = executor.schedule(this::drain, wait, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+            }
+            send(next);
+        }
+    }
+
+    private void send(Status status) {
+        JSONObject body = new JSONObject()
+                .put("state", status.state)
+                .put("context", context);
+        if (!status.description.isBlank()) {
+            body.put("description", status.description);
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(
+                apiUrl + "/repos/" + status.owner + "/" + status.repo + "/statuses/" + status.sha))
+                .timeout(Duration.ofSeconds(30))
+                .header("Authorization", "Bearer " + status.token)
+                .header("Accept", "application/vnd.github.v3+json")
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        try {
+            long start = System.nanoTime();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            rateLimitRemaining = header(response, "X-RateLimit-Remaining", rateLimitRemaining);
+            rateLimitLimit = header(response, "X-RateLimit-Limit", rateLimitLimit);
+            int code = response.statusCode();
+            long reset = rateLimitReset(response);
+            if (code == 201) {
+                finished(status, true);
+                if (reset > 0) {
+                    pause(reset);
+                }
+            } else if (reset > 0 || code == 429) {
+                // the rate limit is used up, send this status again when it resets
+                System.out.println("GitHub rate limit reached, pausing statuses");
+                pause(reset > 0 ? reset : System.currentTimeMillis() + retryAfter(response));
+            } else if (code >= 500) {
+                retry(status, "GitHub answered " + code);
+            } else {
+                System.out.println("GitHub rejected status of " + status.sha + " with " + code + ": "
+                        + response.body());
+                finished(status, false);
+            }
+        } catch (IOException e) {
+            retry(status, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns when a used up rate limit resets.
+     *
+     * @return the reset time in milliseconds since the epoch, or 0 if
+     *         requests are left
+     */
+    private static long rateLimitReset(HttpResponse<?> response) {
+        Optional<String> remaining = response.headers().firstValue("X-RateLimit-Remaining");
+        Optional<String> reset = response.headers().firstValue("X-RateLimit-Reset");
+        if (remaining.isEmpty() || !remaining.get().trim().equals("0") || reset.isEmpty()) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(reset.get().trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long header(HttpResponse<?> response, String name, long defaultValue) {
+        try {
+            return Long.parseLong(response.headers().firstValue(name).orElse("").trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private long retryAfter(HttpResponse<?> response) {
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(response.headers().firstValue("Retry-After").orElse("")));
+        } catch (NumberFormatException e) {
+            return MAX_BACKOFF_MILLIS;
+        }
+    }
+
+    private synchronized void pause(long until) {
+        pausedUntil = Math.max(pausedUntil, until);
+    }
+
+    private synchronized void retry(Status status, String reason) {
+        status.attempts++;
+        long delay = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(status.attempts - 1, 20));
+        status.notBefore = System.currentTimeMillis() + delay;
+        System.out.println("Failed to send status of " + status.sha + " (" + reason + "), retrying in " + delay
+                + " ms");
+    }
+
+    private synchronized void finished(Status status, boolean delivered) {
+        if (delivered) {
+            sent++;
+        } else {
+            dropped++;
+        }
+        String key = key(status.owner, status.repo, status.sha);
+        // a newer status queued while this one was sent must still be sent
+        if (pending.get(key) == status) {
+            pending.remove(key);
+            save();
+        }
+        notifyAll();
+    }
+
+    private void load() {
+        if (!outbox.exists()) {
+            return;
+        }
+        try {
+            JSONArray stored = new JSONArray(new String(Files.readAllBytes(outbox.toPath()), StandardCharsets.UTF_8));
+            for (int i = 0; i < stored.length(); i++) {
+                JSONObject json = stored.getJSONObject(i);
+                Status status = new Status(json.getString("owner"), json.getString("repo"), json.getString("sha"),
+                        json.getString("state"), json.getString("description"), defaultToken);
+                pending.put(key(status.owner, status.repo, status.sha), status);
+            }
+            if (!pending.isEmpty()) {
+                System.out.println("Sending " + pending.size() + " commit statuses left from the last run");
+            }
+        } catch (IOException | org.json.JSONException e) {
+            System.out.println("Ignoring unreadable status outbox " + outbox + ": " + e.getMessage());
+        }
+    }
+
+    private void save() {
+        List<JSONObject> statuses = new ArrayList<>();
+        for (Status status : pending.values()) {
+            statuses.add(status.toJSON());
+        }
+        try {
+            File parent = outbox.getAbsoluteFile().getParentFile();
+            parent.mkdirs();
+            File temp = new File(parent, outbox.getName() + ".tmp");
+            Files.write(temp.toPath(), new JSONArray(statuses).toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), outbox.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Failed to save status outbox: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Reads the XML reports Surefire writes to {@code target/surefire-reports}
+ * in every module of a build.
+ * <p>
+ * The reports are read with a StAX stream reader, so memory use does not grow
+ * with the size of a report. Only the counts, the total time of every test
+ * class and the slowest test cases are kept.
+ */
+public final class SurefireReports {
+
+    private static final int SLOWEST = 10;
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * The aggregated test results of a build.
+     */
+    public static final class Summary {
+        private int tests;
+        private int failures;
+        private int errors;
+        private int skipped;
+        private final Map<String, Double> classSeconds = new HashMap<>();
+        private final PriorityQueue<JSONObject> slowest = new PriorityQueue<>(
+                Comparator.comparingDouble(test -> test.getDouble("seconds")));
+
+        public int getTests() {
+            return tests;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Returns the run time of every test class.
+         *
+         * @return the seconds spent in each test class, by class name
+         */
+        public Map<String, Double> getClassSeconds() {
+            return classSeconds;
+        }
+
+        /**
+         * Returns whether any test failed or had an error.
+         *
+         * @return true if all tests that ran passed
+         */
+        public boolean isPassed() {
+            return failures == 0 && errors == 0;
+        }
+
+        /**
+         * Returns a short description of the results for a commit status.
+         *
+         * @return the description
+         */
+        public String describe() {
+            int passed = tests - failures - errors - skipped;
+            String text = passed + " of " + tests + " tests passed";
+            if (failures + errors > 0) {
+                text += ", " + (failures + errors) + " failed";
+            }
+            if (skipped > 0) {
+                text += ", " + skipped + " skipped";
+            }
+            return text;
+        }
+
+        /**
+         * Returns the results as JSON for the build history.
+         *
+         * @return the counts and the slowest test cases
+         */
+        public JSONObject toJSON() {
+            List<JSONObject> slow = new ArrayList<>(slowest);
+            slow.sort(Comparator.comparingDouble((JSONObject test) -> test.getDouble("seconds")).reversed());
+            return new JSONObject()
+                    .put("tests", tests)
+                    .put("failures", failures)
+                    .put("errors", errors)
+                    .put("skipped", skipped)
+                    .put("slowest", new JSONArray(slow));
+        }
+
+        private void addTestCase(String className, String name, double seconds) {
+            tests++;
+            classSeconds.merge(className, seconds, Double::sum);
+            if (slowest.size() < SLOWEST || seconds > slowest.peek().getDouble("seconds")) {
+                slowest.add(new JSONObject().put("name", className + "#" + name).put("seconds", seconds));
+                if (slowest.size() > SLOWEST) {
+                    slowest.poll();
+                }
+            }
+        }
+    }
+
+    private SurefireReports() {
+    }
+
+    /**
+     * Reads the reports below a project directory that were written at or
+     * after a point in time. Older reports left over from an earlier build
+     * in the same workspace are ignored.
+     *
+     * @param projectDir   the root of the Maven project
+     * @param writtenAfter the time the build started, in milliseconds since
+     *                     the epoch
+     * @return the aggregated results, with zero tests if there are no reports
+     * @throws IOException if the directory could not be searched
+     */
+    public static Summary read(File projectDir, long writtenAfter) throws IOException {
+        Summary summary = new Summary();
+        for (Path report : findReports(projectDir.toPath(), writtenAfter)) {
+            try (InputStream in = new FileInputStream(report.toFile())) {
+                parse(in, summary);
+            } catch (XMLStreamException e) {
+                System.out.println("Skipping unreadable test report " + report + ": " + e.getMessage());
+            }
+        }
+        return summary;
+    }
+
+    private static List<Path> findReports(Path root, long writtenAfter) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return List.of();
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths
+                    .filter(path -> path.getFileName().toString().startsWith("TEST-")
+                            && path.getFileName().toString().endsWith(".xml")
+                            && path.getParent() != null
+                            && path.getParent().getFileName().toString().equals("surefire-reports")
+                            && path.toFile().lastModified() >= writtenAfter)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Adds the test cases of one report to a summary.
+     *
+     * @param in      the report
+     * @param summary the summary to add to
+     * @throws XMLStreamException if the report is not valid XML
+     */
+    static void parse(InputStream in, Summary summary) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "testcase":
+                        String className = reader.getAttributeValue(null, "classname");
+                        summary.addTestCase(className == null ? "" : className,
+                                reader.getAttributeValue(null, "name"),
+                                parseSeconds(reader.getAttributeValue(null, "time")));
+                        break;
+                    case "failure":
+                        summary.failures++;
+                        break;
+                    case "error":
+                        summary.errors++;
+                        break;
+                    case "skipped":
+                        summary.skipped++;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static double parseSeconds(String time) {
+        if (time == null) {
+            return 0;
+        }
+        try {
+            // older Surefire versions format times with a grouping separator
+            return Double.parseDouble(time.replace(",", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.group2.ciserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Selects the test classes affected by the changes since the last green build
+ * of a repository.
+ * <p>
+ * After every successful build the compiled classes of all modules are read,
+ * and for every test class the project classes it reaches through the
+ * constant pools of its bytecode are stored in an index. The next build diffs
+ * the commit against the commit the index was built from and only runs the
+ * test classes that reach a changed class. Any change outside
+ * {@code src/main/java} and {@code src/test/java}, such as a POM or a
+ * resource, runs all tests. Constants inlined by the compiler and reflection
+ * are invisible in bytecode, so all tests also run every
+ * {@code ci.tia.full-every} builds and after {@code ci.tia.full-hours}.
+ * <p>
+ * Selection is opt-in per repository with {@code ci.repo.<name>.tia=true}.
+ */
+public class TestImpact {
+
+    private static final Pattern DESCRIPTOR_CLASS = Pattern.compile("L([\\w/$]+)[;<]");
+    private static final String MAIN_SOURCES = "src/main/java/";
+    private static final String TEST_SOURCES = "src/test/java/";
+
+    /**
+     * The tests chosen for one build.
+     */
+    public static final class Selection {
+        private final List<String> tests;
+        private final String reason;
+        private final String base;
+
+        private Selection(List<String> tests, String reason, String base) {
+            this.tests = tests;
+            this.reason = reason;
+            this.base = base;
+        }
+
+        /**
+         * Returns whether all tests should run.
+         *
+         * @return true for a full run
+         */
+        public boolean isFull() {
+            return tests == null;
+        }
+
+        /**
+         * Returns the selected test classes.
+         *
+         * @return the fully qualified names of the test classes, or null for
+         *         a full run
+         */
+        public List<String> getTests() {
+            return tests;
+        }
+
+        /**
+         * Returns a short description of the selection for the build log.
+         *
+         * @return the description
+         */
+        public String describe() {
+            if (isFull()) {
+                return "Running all tests: " + reason;
+            }
+            return "Running " + tests.size() + " test classes affected by changes since " + base;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject().put("full", isFull()).put("reason", reason);
+            if (base != null) {
+                json.put("base", base);
+            }
+            if (tests != null) {
+                json.put("tests", new JSONArray(tests));
+            }
+            return json;
+        }
+    }
+
+    private final File file;
+    private final int fullEvery;
+    private final long fullMillis;
+
+    /**
+     * Creates the test impact index of one repository.
+     *
+     * @param file       the file the index is kept in
+     * @param fullEvery  the number of selective builds after which all tests
+     *                   run again
+     * @param fullMillis the time after which all tests run again
+     */
+    public TestImpact(File file, int fullEvery, long fullMillis) {
+        this.file = file;
+        this.fullEvery = fullEvery;
+        this.fullMillis = fullMillis;
+    }
+
+    /**
+     * Returns the test impact index of a repository, read from
+     * {@code ci.tia.dir}, if test selection is enabled for it.
+     *
+     * @param repoName the name of the repository
+     * @param repoKey  the owner and name of the repository, which the file
+     *                 is named after
+     * @return the index, or null if all tests should always run
+     */
+    public static TestImpact forRepo(String repoName, String repoKey) {
+        if (!Config.getRepoBoolean(repoName, "tia", false)) {
+            return null;
+        }
+        File dir = new File(Config.get("tia.dir",
+                new File(WorkspaceManager.configuredRoot(), "test-index").getPath()));
+        return new TestImpact(new File(dir, repoKey + ".json"),
+                Config.getRepoInt(repoName, "tia.full-every", 20),
+                TimeUnit.HOURS.toMillis(Config.getRepoInt(repoName, "tia.full-hours", 24)));
+    }
+
+    /**
+     * Selects the tests to run for a commit.
+     *
+     * @param gitDir    a repository containing the commit and the commit the
+     *                  index was built from
+     * @param commitSHA the commit to build
+     * @return the selection, which is a full run whenever the impact of the
+     *         changes cannot be determined
+     */
+    public Selection select(File gitDir, String commitSHA) {
+        JSONObject index = load();
+        if (index == null) {
+            return new Selection(null, "no test index yet", null);
+        }
+        String base = index.getString("base");
+        if (index.getInt("runsSinceFull") >= fullEvery) {
+            return new Selection(null, "periodic full run", base);
+        }
+        if (System.currentTimeMillis() - index.getLong("lastFullAt") >= fullMillis) {
+            return new Selection(null, "last full run is too old", base);
+        }
+        List<String> paths;
+        try {
+            paths = changedPaths(gitDir, base, commitSHA);
+        } catch (IOException e) {
+            return new Selection(null, "could not diff against " + base + ": " + e.getMessage(), base);
+        }
+
+        Set<String> changed = new HashSet<>();
+        Set<String> selected = new TreeSet<>();
+        for (String path : paths) {
+            if (path.endsWith(".md")) {
+                continue;
+            }
+            String className = sourceClass(path);
+            if (className == null) {
+                return new Selection(null, path + " changed", base);
+            }
+            changed.add(className);
+            if (path.contains(TEST_SOURCES) && isTestName(className)) {
+                selected.add(className);
+            }
+        }
+        JSONObject tests = index.getJSONObject("tests");
+        for (String test : tests.keySet()) {
+            for (Object reached : tests.getJSONArray(test)) {
+                if (changed.contains(reached)) {
+                    selected.add(test);
+                    break;
+                }
+            }
+        }
+        return new Selection(new ArrayList<>(selected), "affected by the diff", base);
+    }
+
+    /**
+     * Rebuilds the index from the classes compiled by a successful build.
+     *
+     * @param projectDir the root of the Maven project
+     * @param commitSHA  the commit that was built
+     * @param full       true if all tests ran
+     * @throws IOException if the classes could not be read or the index
+     *                     could not be written
+     */
+    public synchronized void update(File projectDir, String commitSHA, boolean full) throws IOException {
+        Map<String, Set<String>> references = new HashMap<>();
+        Set<String> testClasses = new TreeSet<>();
+        try (Stream<Path> paths = Files.walk(projectDir.toPath())) {
+            for (Path path : paths.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList())) {
+                String dir = path.getParent().toString().replace(File.separatorChar, '/');
+                boolean test = dir.contains("/target/test-classes");
+                if (!test && !dir.contains("/target/classes")) {
+                    continue;
+                }
+                try (InputStream in = Files.newInputStream(path)) {
+                    Set<String> referenced = new HashSet<>();
+                    String name = readReferences(in, referenced);
+                    String outer = outerClass(name);
+                    references.computeIfAbsent(outer, k -> new HashSet<>()).addAll(referenced);
+                    if (test && isTestName(outer)) {
+                        testClasses.add(outer);
+                    }
+                }
+            }
+        }
+
+        JSONObject tests = new JSONObject();
+        for (String test : testClasses) {
+            tests.put(test, new JSONArray(reachable(test, references)));
+        }
+        JSONObject previous = load();
+        JSONObject index = new JSONObject();
+        index.put("base", commitSHA);
+        index.put("runsSinceFull", full || previous == null ? 0 : previous.getInt("runsSinceFull") + 1);
+        index.put("lastFullAt", full || previous == null ? System.currentTimeMillis() : previous.getLong("lastFullAt"));
+        index.put("tests", tests);
+        save(index);
+    }
+
+    private static Set<String> reachable(String test, Map<String, Set<String>> references) {
+        Set<String> seen = new TreeSet<>();
+        Deque<String> pending = new ArrayDeque<>(Collections.singleton(test));
+        while (!pending.isEmpty()) {
+            String next = pending.poll();
+            if (!seen.add(next)) {
+                continue;
+            }
+            for (String referenced : references.getOrDefault(next, Collections.emptySet())) {
+                if (references.containsKey(referenced) && !seen.contains(referenced)) {
+                    pending.add(referenced);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Returns the paths that differ between two commits.
+     *
+     * @param gitDir the repository
+     * @param from   the older commit
+     * @param to     the newer commit
+     * @return the old and new paths of every changed file
+     * @throws IOException if a commit is not in the repository
+     */
+    static List<String> changedPaths(File gitDir, String from, String to) throws IOException {
+        try (Repository repository = Git.open(gitDir).getRepository();
+                RevWalk walk = new RevWalk(repository);
+                DiffFormatter diff = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+            diff.setRepository(repository);
+            List<String> paths = new ArrayList<>();
+            for (DiffEntry entry : diff.scan(walk.parseCommit(ObjectId.fromString(from)).getTree(),
+                    walk.parseCommit(ObjectId.fromString(to)).getTree())) {
+                if (!DiffEntry.DEV_NULL.equals(entry.getOldPath())) {
+                    paths.add(entry.getOldPath());
+                }
+                if (!DiffEntry.DEV_NULL.equals(entry.getNewPath()) && !entry.getNewPath().equals(entry.getOldPath())) {
+                    paths.add(entry.getNewPath());
+                }
+            }
+            return paths;
+        }
+    }
+
+    /**
+     * Returns the class declared by a Java source file.
+     *
+     * @param path the path of the file in the repository
+     * @return the fully qualified class name, or null if the file is not a
+     *         Java source file in a Maven source directory
+     */
+    static String sourceClass(String path) {
+        if (!path.endsWith(".java")) {
+            return null;
+        }
+        int start = path.indexOf(MAIN_SOURCES);
+        if (start >= 0) {
+            start += MAIN_SOURCES.length();
+        } else if ((start = path.indexOf(TEST_SOURCES)) >= 0) {
+            start += TEST_SOURCES.length();
+        } else {
+            return null;
+        }
+        return path.substring(start, path.length() - ".java".length()).replace('/', '.');
+    }
+
+    /**
+     * Returns whether Surefire runs a class by default.
+     */
+    static boolean isTestName(String className) {
+        String simple = className.substring(className.lastIndexOf('.') + 1);
+        return simple.startsWith("Test") || simple.endsWith("Test") || simple.endsWith("Tests")
+                || simple.endsWith("TestCase");
+    }
+
+    private static String outerClass(String binaryName) {
+        int nested = binaryName.indexOf('$');
+        return nested < 0 ? binaryName : binaryName.substring(0, nested);
+    }
+
+    /**
+     * Reads the classes referenced from the constant pool of a class file.
+     *
+     * @param in         the class file
+     * @param referenced receives the outer class names of the referenced
+     *                   classes
+     * @return the name of the class
+     * @throws IOException if the class file could not be read
+     */
+    static String readReferences(InputStream in, Set<String> referenced) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file");
+        }
+        data.readUnsignedShort();
+        data.readUnsignedShort();
+        int count = data.readUnsignedShort();
+        String[] utf8 = new String[count];
+        // the name index of every class entry, by constant pool index
+        int[] classNames = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = data.readUnsignedByte();
+            switch (tag) {
+                case 1:
+                    utf8[i] = data.readUTF();
+                    break;
+                case 7:
+                    classNames[i] = data.readUnsignedShort();
+                    break;
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    data.skipBytes(2);
+                    break;
+                case 15:
+                    data.skipBytes(3);
+                    break;
+                case 3:
+                case 4:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    data.skipBytes(4);
+                    break;
+                case 5:
+                case 6:
+                    data.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        data.readUnsignedShort();
+        String self = utf8[classNames[data.readUnsignedShort()]];
+
+        for (int i = 1; i < count; i++) {
+            if (classNames[i] == 0) {
+                continue;
+            }
+            String name = utf8[classNames[i]];
+            if (name.startsWith("[")) {
+                addDescriptorClasses(name, referenced);
+            } else {
+                referenced.add(outerClass(name.replace('/', '.')));
+            }
+        }
+        // descriptors and generic signatures name classes without a class entry
+        for (String value : utf8) {
+            if (value != null && value.indexOf(';') > 0) {
+                addDescriptorClasses(value, referenced);
+            }
+        }
+        String name = self.replace('/', '.');
+        referenced.remove(outerClass(name));
+        return name;
+    }
+
+    private static void addDescriptorClasses(String descriptor, Set<String> referenced) {
+        Matcher matcher = DESCRIPTOR_CLASS.matcher(descriptor);
+        while (matcher.find()) {
+            referenced.add(outerClass(matcher.group(1).replace('/', '.')));
+        }
+    }
+
+    private JSONObject load() {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException | org.json.JSONException e) {
+            System.out.println("Ignoring unreadable test index " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void save(JSONObject index) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File temp = new File(parent, file.getName() + ".tmp");
+        Files.write(temp.toPath(), index.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
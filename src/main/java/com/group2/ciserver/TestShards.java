@@ -0,0 +1,162 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+
+/**
+ * Splits the test classes of a build into shards of about the same run time.
+ * <p>
+ * The run time of every test class is taken from the Surefire reports of
+ * earlier builds and kept in one file per repository. Classes are assigned
+ * longest first to the shard with the least work so far, and classes that
+ * never ran are assumed to take the average time of the known ones.
+ */
+public class TestShards {
+
+    private static final double DEFAULT_SECONDS = 1.0;
+
+    private final File file;
+
+    /**
+     * Creates the duration store of one repository.
+     *
+     * @param file the file the durations are kept in
+     */
+    public TestShards(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the duration store of a repository in {@code ci.shard.dir}.
+     *
+     * @param repoName the name of the repository
+     * @param repoKey  the owner and name of the repository, which the file
+     *                 is named after
+     * @return the store
+     */
+    public static TestShards forRepo(String repoName, String repoKey) {
+        File dir = new File(Config.get("shard.dir",
+                new File(WorkspaceManager.configuredRoot(), "test-durations").getPath()));
+        return new TestShards(new File(dir, repoKey + ".json"));
+    }
+
+    /**
+     * Returns the last known run time of every test class.
+     *
+     * @return the seconds of each test class, by class name
+     */
+    public synchronized Map<String, Double> getDurations() {
+        Map<String, Double> durations = new HashMap<>();
+        if (!file.exists()) {
+            return durations;
+        }
+        try {
+            JSONObject stored = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            for (String name : stored.keySet()) {
+                durations.put(name, stored.getDouble(name));
+            }
+        } catch (IOException | org.json.JSONException e) {
+            System.out.println("Ignoring unreadable test durations " + file + ": " + e.getMessage());
+        }
+        return durations;
+    }
+
+    /**
+     * Stores the run times of the test classes of a build. Classes that did
+     * not run keep their earlier time.
+     *
+     * @param classSeconds the seconds of each test class that ran
+     */
+    public synchronized void record(Map<String, Double> classSeconds) {
+        if (classSeconds.isEmpty()) {
+            return;
+        }
+        Map<String, Double> durations = getDurations();
+        durations.putAll(classSeconds);
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            parent.mkdirs();
+            File temp = new File(parent, file.getName() + ".tmp");
+            Files.write(temp.toPath(), new JSONObject(durations).toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Failed to save test durations: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Splits test classes into shards.
+     *
+     * @param tests     the fully qualified names of the test classes
+     * @param durations the known seconds of test classes
+     * @param shards    the number of shards
+     * @return at most shards non-empty lists of test classes
+     */
+    public static List<List<String>> plan(List<String> tests, Map<String, Double> durations, int shards) {
+        double average = durations.values().stream().mapToDouble(Double::doubleValue).average()
+                .orElse(DEFAULT_SECONDS);
+        List<String> longestFirst = new ArrayList<>(tests);
+        longestFirst.sort(Comparator.comparingDouble((String test) -> durations.getOrDefault(test, average))
+                .reversed().thenComparing(Comparator.naturalOrder()));
+
+        int count = Math.max(1, Math.min(shards, tests.size()));
+        List<List<String>> plan = new ArrayList<>();
+        double[] load = new double[count];
+        for (int i = 0; i < count; i++) {
+            plan.add(new ArrayList<>());
+        }
+        for (String test : longestFirst) {
+            int least = 0;
+            for (int i = 1; i < count; i++) {
+                if (load[i] < load[least]) {
+                    least = i;
+                }
+            }
+            plan.get(least).add(test);
+            load[least] += durations.getOrDefault(test, average);
+        }
+        plan.removeIf(List::isEmpty);
+        return plan;
+    }
+
+    /**
+     * Finds the test classes Surefire would run in the compiled test classes
+     * of all modules of a project.
+     *
+     * @param projectDir the root of the Maven project
+     * @return the fully qualified names of the test classes, sorted
+     * @throws IOException if the project could not be searched
+     */
+    public static List<String> findTestClasses(File projectDir) throws IOException {
+        TreeSet<String> tests = new TreeSet<>();
+        try (Stream<Path> paths = Files.walk(projectDir.toPath())) {
+            paths.forEach(path -> {
+                String file = path.toString().replace(File.separatorChar, '/');
+                int classes = file.indexOf("/target/test-classes/");
+                if (classes < 0 || !file.endsWith(".class") || file.indexOf('$', classes) >= 0) {
+                    return;
+                }
+                String name = file.substring(classes + "/target/test-classes/".length(),
+                        file.length() - ".class".length()).replace('/', '.');
+                if (TestImpact.isTestName(name)) {
+                    tests.add(name);
+                }
+            });
+        }
+        return new ArrayList<>(tests);
+    }
+}
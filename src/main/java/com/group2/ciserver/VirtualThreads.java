@@ -0,0 +1,63 @@
+package com.group2.ciserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when the server runs on JDK 21 or later. The
+ * project is compiled for Java 11, so the virtual thread API is looked up
+ * by reflection.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Tells whether the running JDK has virtual threads.
+     *
+     * @return true on JDK 21 or later
+     */
+    public static boolean isSupported() {
+        return factory("ci-probe-") != null;
+    }
+
+    /**
+     * Returns a factory of virtual threads named with a prefix and a
+     * counter.
+     *
+     * @param prefix the prefix of the thread names
+     * @return the factory, or null if the JDK has no virtual threads
+     */
+    public static ThreadFactory factory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for every task.
+     *
+     * @param prefix the prefix of the thread names
+     * @return the executor, or null if the JDK has no virtual threads
+     */
+    public static ExecutorService executor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        if (factory == null) {
+            return null;
+        }
+        try {
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.group2.ciserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks the {@code X-Hub-Signature-256} header GitHub sends with every
+ * webhook, an HMAC-SHA256 of the body keyed with the secret of the webhook.
+ * <p>
+ * The HMAC is computed while the body is read, by wrapping the request
+ * stream in {@link #open}, so the body is never held in memory a second
+ * time. Initialized {@link Mac}s are kept in a pool and reused for later
+ * requests instead of being created anew, which also holds when every
+ * request runs on a new virtual thread, and signatures are compared in
+ * constant time.
+ */
+public class WebhookSignature {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String PREFIX = "sha256=";
+    private static final int LENGTH = 32;
+    // more requests than this are rarely checked at once
+    private static final int MAX_IDLE = 64;
+
+    private final SecretKeySpec key;
+    private final Queue<Mac> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * The body of a request, computing the HMAC of the bytes read through it.
+     */
+    public final class SignedBody extends FilterInputStream {
+        private final Mac mac;
+        private final byte[] expected;
+        private byte[] digest;
+
+        private SignedBody(InputStream in, byte[] expected) {
+            super(in);
+            this.mac = acquire();
+            this.expected = expected;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            if (c >= 0) {
+                mac.update((byte) c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                mac.update(buffer, offset, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be signed too
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Tells whether the bytes read so far carry the signature of the
+         * request. Read the body to its end before calling this.
+         *
+         * @return true if the signature matches
+         */
+        public boolean isValid() {
+            if (digest == null) {
+                // doFinal resets the Mac for the next request
+                digest = mac.doFinal();
+                release(mac);
+            }
+            return MessageDigest.isEqual(digest, expected);
+        }
+    }
+
+    /**
+     * Creates a checker for the secret of a webhook.
+     *
+     * @param secret the secret entered in the webhook settings on GitHub
+     */
+    public WebhookSignature(String secret) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    /**
+     * Takes an idle {@link Mac} from the pool, or creates one if all are in
+     * use.
+     */
+    private Mac acquire() {
+        Mac mac = idle.poll();
+        if (mac != null) {
+            idleCount.decrementAndGet();
+            return mac;
+        }
+        try {
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Returns a reset {@link Mac} to the pool. Macs of bodies that were never
+     * checked are not returned, they are left to the garbage collector.
+     */
+    private void release(Mac mac) {
+        if (idleCount.incrementAndGet() <= MAX_IDLE) {
+            idle.offer(mac);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Creates the checker for the secret in {@code ci.webhook.secret}.
+     *
+     * @return the checker, or null if no secret is configured and webhooks
+     *         are accepted without a signature
+     */
+    public static WebhookSignature fromConfig() {
+        String secret = Config.get("webhook.secret", "");
+        if (secret.isEmpty()) {
+            return null;
+        }
+        return new WebhookSignature(secret);
+    }
+
+    /**
+     * Starts checking the body of a request.
+     *
+     * @param in     the body
+     * @param header the {@code X-Hub-Signature-256} header of the request
+     * @return the body, to be read to its end before
+     *         {@link SignedBody#isValid()} is called
+     * @throws PayloadException with status 401 if the header is missing or
+     *                          is not a SHA-256 signature
+     */
+    public SignedBody open(InputStream in, String header) throws PayloadException {
+        byte[] expected = decode(header);
+        if (expected == null) {
+            throw new PayloadException(401, "Missing or malformed X-Hub-Signature-256 header");
+        }
+        return new SignedBody(in, expected);
+    }
+
+    /**
+     * Decodes the digest of a signature header.
+     *
+     * @param header the header, "sha256=" followed by 64 hex digits
+     * @return the digest, or null if the header is not a SHA-256 signature
+     */
+    static byte[] decode(String header) {
+        if (header == null || header.length() != PREFIX.length() + 2 * LENGTH || !header.startsWith(PREFIX)) {
+            return null;
+        }
+        byte[] digest = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            int high = Character.digit(header.charAt(PREFIX.length() + 2 * i), 16);
+            int low = Character.digit(header.charAt(PREFIX.length() + 2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            digest[i] = (byte) (high << 4 | low);
+        }
+        return digest;
+    }
+}
@@ -0,0 +1,841 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.Checkout;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Hands out an isolated working directory to every CI job, so that several
+ * branches of one repository can be built at the same time.
+ * <p>
+ * Every repository has one bare mirror under {@code <root>/mirrors}, kept up
+ * to date by a {@link MirrorCache}. A workspace is a small repository under
+ * {@code <root>/workspaces} that borrows the objects of the mirror through
+ * {@code objects/info/alternates}, the same mechanism as
+ * {@code git clone --shared}, so creating one only writes the checked out
+ * files. Released workspaces are kept for reuse by later jobs of the same
+ * repository and removed by {@link #collectGarbage()} when they have been
+ * idle for too long.
+ * <p>
+ * A job gets the released workspace that last built its commit or, failing
+ * that, its branch, whose compiled classes are closest to what the job
+ * builds, so Maven recompiles as little as possible.
+ * <p>
+ * A job can also check out only part of its commit, such as the modules a
+ * push affects in a large repository (see {@link ReactorModules}). Files
+ * outside the part are left out of the index and the working tree, like a
+ * sparse checkout of git, which JGit does not implement.
+ * <p>
+ * Mirrors and workspaces are kept per owner and repository, see
+ * {@link MirrorCache#repoKey(String)}, within an optional disk quota. When
+ * the disk is over the quota, or short of free space before a job, the
+ * least recently used space is reclaimed first: the {@code target}
+ * directories of idle workspaces, then idle workspaces, then mirrors no
+ * workspace uses. {@link #maintain()} also repacks the mirrors and deletes
+ * workspaces left behind by an earlier run of the server.
+ */
+public class WorkspaceManager {
+
+    private final MirrorCache mirrors;
+    private final File mirrorRoot;
+    private final File workspaceRoot;
+    private final int maxIdlePerRepo;
+    private final long maxIdleMillis;
+    private final long quotaBytes;
+    private final long minFreeBytes;
+    private final Map<String, Deque<Workspace>> idle = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> active = new ConcurrentHashMap<>();
+    private final Set<File> live = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> lastGc = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong(-1);
+    private final AtomicInteger counter = new AtomicInteger();
+    private final LongAdder branchHits = new LongAdder();
+    private final LongAdder repoHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+
+    /**
+     * A working directory checked out at a single commit. Closing the
+     * workspace hands it back to its manager.
+     */
+    public class Workspace implements AutoCloseable {
+        private final String repoName;
+        private final String repoKey;
+        private final File directory;
+        private volatile long releasedAt;
+        private volatile String ref;
+        private volatile String commitSHA;
+        private volatile boolean sparse;
+        private long fetchMillis;
+        private long checkoutMillis;
+
+        private Workspace(String repoName, String repoKey, File directory) {
+            this.repoName = repoName;
+            this.repoKey = repoKey;
+            this.directory = directory;
+        }
+
+        public String getRepoName() {
+            return repoName;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        /**
+         * Returns how long updating the mirror took for the last checkout.
+         *
+         * @return the fetch time in milliseconds
+         */
+        public long getFetchMillis() {
+            return fetchMillis;
+        }
+
+        /**
+         * Returns how long checking out the commit took.
+         *
+         * @return the checkout time in milliseconds
+         */
+        public long getCheckoutMillis() {
+            return checkoutMillis;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * Creates a manager that keeps its mirrors and workspaces below root.
+     *
+     * @param root           the directory holding the mirrors and workspaces
+     * @param maxIdlePerRepo the number of released workspaces kept per
+     *                       repository
+     * @param maxIdleMillis  how long a released workspace is kept before it
+     *                       is deleted
+     */
+    public WorkspaceManager(File root, int maxIdlePerRepo, long maxIdleMillis) {
+        this(root, maxIdlePerRepo, maxIdleMillis, 0, 0);
+    }
+
+    /**
+     * Creates a manager that keeps its mirrors and workspaces below root
+     * within a disk quota.
+     *
+     * @param root           the directory holding the mirrors and workspaces
+     * @param maxIdlePerRepo the number of released workspaces kept per
+     *                       repository
+     * @param maxIdleMillis  how long a released workspace is kept before it
+     *                       is deleted
+     * @param quotaBytes     the disk space the mirrors and workspaces may
+     *                       use, or 0 for no limit
+     * @param minFreeBytes   the free disk space needed to start a job
+     */
+    public WorkspaceManager(File root, int maxIdlePerRepo, long maxIdleMillis, long quotaBytes,
+            long minFreeBytes) {
+        this.mirrorRoot = new File(root, "mirrors");
+        this.mirrors = new MirrorCache(mirrorRoot);
+        this.workspaceRoot = new File(root, "workspaces");
+        this.maxIdlePerRepo = maxIdlePerRepo;
+        this.maxIdleMillis = maxIdleMillis;
+        this.quotaBytes = quotaBytes;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    /**
+     * Returns the directory configured by "workspace.root", {@code ~/Github}
+     * by default. The other state of a server on disk defaults to a path
+     * below it, so that servers with different roots share nothing.
+     *
+     * @return the directory
+     */
+    public static File configuredRoot() {
+        return new File(Config.get("workspace.root", System.getProperty("user.home") + "/Github"));
+    }
+
+    /**
+     * Creates a manager below {@code ~/Github} configured by the
+     * "workspace.idle", "workspace.idle-minutes", "workspace.quota-gb" and
+     * "workspace.min-free-mb" settings.
+     *
+     * @return the new manager
+     * @see Config
+     */
+    public static WorkspaceManager fromConfig() {
+        File root = configuredRoot();
+        int maxIdle = Config.getInt("workspace.idle", 2);
+        long maxIdleMillis = TimeUnit.MINUTES.toMillis(Config.getInt("workspace.idle-minutes", 60));
+        long quotaBytes = Config.getInt("workspace.quota-gb", 0) * 1024L * 1024 * 1024;
+        long minFreeBytes = Config.getInt("workspace.min-free-mb", 1024) * 1024L * 1024;
+        return new WorkspaceManager(root, maxIdle, maxIdleMillis, quotaBytes, minFreeBytes);
+    }
+
+    /**
+     * Returns the cache of the mirrors the workspaces are created from.
+     *
+     * @return the mirror cache
+     */
+    public MirrorCache getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * Returns a workspace with the given commit checked out, fetching all
+     * branches of the repository if the commit is missing from the mirror.
+     *
+     * @param url       the clone URL of the repository
+     * @param commitSHA the commit to check out
+     * @return the workspace, which must be closed when the job is done
+     * @throws IOException     if the workspace could not be created
+     * @throws GitAPIException if fetching or checking out failed
+     * @see #acquire(String, String, String)
+     */
+    public Workspace acquire(String url, String commitSHA) throws IOException, GitAPIException {
+        return acquire(url, null, commitSHA);
+    }
+
+    /**
+     * Returns a workspace with the given commit checked out. The mirror of the
+     * repository is created, or the pushed ref is fetched into it, first. A
+     * released workspace of the same repository is reused if there is one.
+     *
+     * @param url       the clone URL of the repository
+     * @param ref       the pushed ref, or null to fetch all branches
+     * @param commitSHA the commit to check out
+     * @return the workspace, which must be closed when the job is done
+     * @throws IOException     if the workspace could not be created
+     * @throws GitAPIException if fetching or checking out failed
+     */
+    public Workspace acquire(String url, String ref, String commitSHA) throws IOException, GitAPIException {
+        return acquire(url, ref, commitSHA, null);
+    }
+
+    /**
+     * Returns a workspace with some files of the given commit checked out.
+     * Files that are unchanged since the workspace last checked them out are
+     * not written again, so their compiled classes stay up to date.
+     *
+     * @param url       the clone URL of the repository
+     * @param ref       the pushed ref, or null to fetch all branches
+     * @param commitSHA the commit to check out
+     * @param paths     selects the paths of the files to check out, or null
+     *                  to check out all files
+     * @return the workspace, which must be closed when the job is done
+     * @throws IOException     if the workspace could not be created or there
+     *                         is not enough free disk space
+     * @throws GitAPIException if fetching or checking out failed
+     */
+    public Workspace acquire(String url, String ref, String commitSHA, Predicate<String> paths)
+            throws IOException, GitAPIException {
+        String repoKey = MirrorCache.repoKey(url);
+        AtomicInteger jobs = active.computeIfAbsent(repoKey, k -> new AtomicInteger());
+        jobs.incrementAndGet();
+        try {
+            return checkout(url, repoKey, ref, commitSHA, paths);
+        } catch (IOException | GitAPIException | RuntimeException e) {
+            jobs.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private Workspace checkout(String url, String repoKey, String ref, String commitSHA, Predicate<String> paths)
+            throws IOException, GitAPIException {
+        String repoName = ContinuousIntegrationServer.getRepoName(url);
+        ensureSpace();
+        long fetchStart = System.currentTimeMillis();
+        File mirror = mirrors.ensureCommit(url, ref, commitSHA);
+        long fetchMillis = System.currentTimeMillis() - fetchStart;
+
+        long checkoutStart = System.currentTimeMillis();
+
+        Workspace workspace = takeIdle(repoKey, ref, commitSHA);
+        if (workspace == null) {
+            misses.increment();
+            File directory = new File(workspaceRoot, repoKey + "/ws-" + counter.incrementAndGet());
+            while (directory.exists()) {
+                directory = new File(workspaceRoot, repoKey + "/ws-" + counter.incrementAndGet());
+            }
+            live.add(directory);
+            workspace = new Workspace(repoName, repoKey, directory);
+            try {
+                createShared(mirror, directory);
+            } catch (IOException | GitAPIException | RuntimeException e) {
+                live.remove(directory);
+                delete(directory);
+                throw e;
+            }
+        }
+
+        try (Git git = Git.open(workspace.getDirectory())) {
+            if (paths != null || workspace.sparse) {
+                int files = checkoutPaths(git.getRepository(), commitSHA, paths != null ? paths : path -> true);
+                if (paths != null) {
+                    System.out.println("Checked out " + files + " files of " + commitSHA);
+                }
+            } else {
+                git.checkout().setName(commitSHA).setForced(true).call();
+            }
+            // files left out of the index are untracked now and removed, ignored
+            // files such as target/ are kept so incremental builds stay warm
+            git.clean().setCleanDirectories(true).call();
+        } catch (IOException | GitAPIException | RuntimeException e) {
+            live.remove(workspace.getDirectory());
+            delete(workspace.getDirectory());
+            throw e;
+        }
+        workspace.ref = ref;
+        workspace.commitSHA = commitSHA;
+        workspace.sparse = paths != null;
+        workspace.fetchMillis = fetchMillis;
+        workspace.checkoutMillis = System.currentTimeMillis() - checkoutStart;
+        System.out.println("Checked out " + commitSHA + " of " + repoName + " (fetch " + fetchMillis
+                + " ms, checkout " + workspace.checkoutMillis + " ms)");
+        return workspace;
+    }
+
+    /**
+     * Checks out the selected files of a commit and detaches HEAD at it. The
+     * index is replaced by the selected files, files that are already
+     * checked out at the same blob and were not changed since, for example
+     * by an earlier build, are kept.
+     *
+     * @return the number of files in the new index
+     */
+    private static int checkoutPaths(Repository repository, String commitSHA, Predicate<String> paths)
+            throws IOException {
+        DirCache index = repository.lockDirCache();
+        try (RevWalk walk = new RevWalk(repository);
+                ObjectReader reader = repository.newObjectReader();
+                TreeWalk tree = new TreeWalk(repository, reader)) {
+            RevCommit commit = walk.parseCommit(ObjectId.fromString(commitSHA));
+            tree.addTree(commit.getTree());
+            tree.setRecursive(true);
+            DirCacheBuilder builder = index.builder();
+            Checkout checkout = new Checkout(repository);
+            int files = 0;
+            while (tree.next()) {
+                String path = tree.getPathString();
+                FileMode mode = tree.getFileMode(0);
+                if (mode == FileMode.GITLINK || !paths.test(path)) {
+                    continue;
+                }
+                ObjectId blob = tree.getObjectId(0);
+                DirCacheEntry entry = index.getEntry(path);
+                File file = new File(repository.getWorkTree(), path);
+                if (entry == null || !blob.equals(entry.getObjectId()) || !mode.equals(entry.getFileMode())
+                        || isModified(repository, file, entry)) {
+                    entry = new DirCacheEntry(path);
+                    entry.setFileMode(mode);
+                    entry.setObjectId(blob);
+                    // line endings and smudge filters as configured by .gitattributes
+                    checkout.checkout(entry, new DirCacheCheckout.CheckoutMetadata(tree.getCheckoutEolStreamType(0),
+                            tree.getFilterCommand(Constants.ATTR_FILTER_TYPE_SMUDGE)), reader, null);
+                }
+                builder.add(entry);
+                files++;
+            }
+            builder.commit();
+            RefUpdate head = repository.updateRef(Constants.HEAD, true);
+            head.setNewObjectId(commit);
+            head.forceUpdate();
+            return files;
+        } finally {
+            index.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a checked out file differs from its index entry. Files
+     * whose size or modification time changed are compared by content, and
+     * the entry takes the new times if the content is the same.
+     */
+    private static boolean isModified(Repository repository, File file, DirCacheEntry entry) throws IOException {
+        Path path = file.toPath();
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return true;
+        }
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        long length = Files.size(path);
+        Instant modified = repository.getFS().lastModifiedInstant(file);
+        if (length == entry.getLength() && modified.equals(entry.getLastModifiedInstant())) {
+            return false;
+        }
+        try (ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+                InputStream in = Files.newInputStream(path)) {
+            if (!formatter.idFor(Constants.OBJ_BLOB, length, in).equals(entry.getObjectId())) {
+                return true;
+            }
+        }
+        entry.setLength(length);
+        entry.setLastModified(modified);
+        return false;
+    }
+
+    private static void createShared(File mirror, File directory) throws GitAPIException, IOException {
+        Git.init().setDirectory(directory).call().close();
+        Path alternates = directory.toPath().resolve(".git/objects/info/alternates");
+        Files.createDirectories(alternates.getParent());
+        String objects = new File(mirror, "objects").getAbsolutePath() + "\n";
+        Files.write(alternates, objects.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Takes the released workspace of a repository that last built the
+     * commit, else one that last built the branch, else the most recently
+     * released one.
+     */
+    private Workspace takeIdle(String repoKey, String ref, String commitSHA) {
+        Deque<Workspace> pool = idle.get(repoKey);
+        if (pool == null) {
+            return null;
+        }
+        synchronized (pool) {
+            Workspace best = null;
+            for (Workspace workspace : pool) {
+                if (commitSHA != null && commitSHA.equals(workspace.commitSHA)) {
+                    best = workspace;
+                    break;
+                }
+                if (best == null && ref != null && ref.equals(workspace.ref)) {
+                    best = workspace;
+                }
+            }
+            if (best != null) {
+                pool.remove(best);
+                branchHits.increment();
+                return best;
+            }
+            best = pool.pollFirst();
+            if (best != null) {
+                repoHits.increment();
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Hands a workspace back for reuse. Workspaces beyond the idle limit of
+     * the repository are deleted.
+     *
+     * @param workspace the workspace to release
+     */
+    public void release(Workspace workspace) {
+        workspace.releasedAt = System.currentTimeMillis();
+        Deque<Workspace> pool = idle.computeIfAbsent(workspace.repoKey, k -> new ArrayDeque<>());
+        Workspace evicted = null;
+        synchronized (pool) {
+            pool.addFirst(workspace);
+            if (pool.size() > maxIdlePerRepo) {
+                evicted = pool.pollLast();
+            }
+        }
+        active.get(workspace.repoKey).decrementAndGet();
+        if (evicted != null) {
+            remove(evicted);
+        }
+    }
+
+    /**
+     * Deletes the released workspaces that have been idle longer than the
+     * configured limit.
+     *
+     * @return the number of deleted workspaces
+     */
+    public int collectGarbage() {
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        int deleted = 0;
+        for (Deque<Workspace> pool : idle.values()) {
+            synchronized (pool) {
+                for (Iterator<Workspace> it = pool.iterator(); it.hasNext();) {
+                    Workspace workspace = it.next();
+                    if (workspace.releasedAt < cutoff) {
+                        it.remove();
+                        remove(workspace);
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Runs {@link #maintain()} periodically on a daemon thread.
+     *
+     * @param periodMinutes the time between two runs
+     */
+    public void startCollector(long periodMinutes) {
+        ScheduledExecutorService collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ci-workspace-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        collector.scheduleWithFixedDelay(this::maintain, 0, periodMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Deletes the workspaces that have been idle too long or were left
+     * behind by an earlier run, repacks the mirrors that were not repacked
+     * for a day, and reclaims disk space if the quota is exceeded.
+     */
+    public void maintain() {
+        int deleted = collectGarbage() + deleteOrphans();
+        if (deleted > 0) {
+            System.out.println("Deleted " + deleted + " idle workspaces");
+        }
+        for (String repoKey : mirrors.getRepoKeys()) {
+            long now = System.currentTimeMillis();
+            if (now - lastGc.getOrDefault(repoKey, 0L) < TimeUnit.DAYS.toMillis(1)) {
+                continue;
+            }
+            lastGc.put(repoKey, now);
+            try {
+                mirrors.gc(repoKey);
+            } catch (IOException | GitAPIException e) {
+                System.out.println("Failed to repack the mirror of " + repoKey + ": " + e.getMessage());
+            }
+        }
+        long used = sizeOf(mirrorRoot) + sizeOf(workspaceRoot);
+        usedBytes.set(used);
+        if (quotaBytes > 0 && used > quotaBytes) {
+            reclaim(used - quotaBytes);
+        }
+    }
+
+    /**
+     * Reclaims disk space if the quota is exceeded or the disk has less than
+     * the configured free space.
+     *
+     * @throws IOException if not enough space could be reclaimed
+     */
+    private void ensureSpace() throws IOException {
+        long used = usedBytes.get();
+        if (quotaBytes > 0 && used > quotaBytes) {
+            reclaim(used - quotaBytes);
+        }
+        long free = getFreeBytes();
+        if (free >= 0 && free < minFreeBytes) {
+            reclaim(minFreeBytes - free);
+            free = getFreeBytes();
+            if (free < minFreeBytes) {
+                throw new IOException("Only " + (free >> 20) + " MB of disk space is free, "
+                        + (minFreeBytes >> 20) + " MB are needed");
+            }
+        }
+    }
+
+    /**
+     * Frees at least the given disk space, least recently used first: the
+     * build output of idle workspaces, then idle workspaces, then mirrors
+     * of repositories without active or idle workspaces.
+     *
+     * @param bytes the disk space to free
+     * @return the freed disk space in bytes
+     */
+    public synchronized long reclaim(long bytes) {
+        long freed = 0;
+        List<Workspace> workspaces = new ArrayList<>();
+        for (Deque<Workspace> pool : idle.values()) {
+            synchronized (pool) {
+                workspaces.addAll(pool);
+            }
+        }
+        workspaces.sort(Comparator.comparingLong(workspace -> workspace.releasedAt));
+
+        for (Workspace workspace : workspaces) {
+            if (freed >= bytes) {
+                break;
+            }
+            Deque<Workspace> pool = idle.get(workspace.repoKey);
+            synchronized (pool) {
+                // the pool lock keeps the workspace from being taken while its output is deleted
+                if (pool.contains(workspace)) {
+                    freed += deleteBuildOutput(workspace.getDirectory());
+                }
+            }
+        }
+        for (Workspace workspace : workspaces) {
+            if (freed >= bytes) {
+                break;
+            }
+            Deque<Workspace> pool = idle.get(workspace.repoKey);
+            boolean taken;
+            synchronized (pool) {
+                taken = pool.remove(workspace);
+            }
+            if (taken) {
+                freed += remove(workspace);
+                evictions.increment();
+            }
+        }
+        List<String> repoKeys = mirrors.getRepoKeys();
+        repoKeys.sort(Comparator.comparingLong(mirrors::getLastUsed));
+        for (String repoKey : repoKeys) {
+            if (freed >= bytes) {
+                break;
+            }
+            long size = sizeOf(mirrors.getMirror(repoKey));
+            if (mirrors.evict(repoKey, () -> isUnused(repoKey))) {
+                System.out.println("Evicted the mirror of " + repoKey);
+                freed += size;
+                reclaimedBytes.add(size);
+                evictions.increment();
+            }
+        }
+        usedBytes.accumulateAndGet(freed, (used, delta) -> used < 0 ? used : Math.max(0, used - delta));
+        System.out.println("Reclaimed " + (freed >> 20) + " MB of disk space");
+        return freed;
+    }
+
+    private boolean isUnused(String repoKey) {
+        AtomicInteger jobs = active.get(repoKey);
+        if (jobs != null && jobs.get() > 0) {
+            return false;
+        }
+        Deque<Workspace> pool = idle.get(repoKey);
+        if (pool == null) {
+            return true;
+        }
+        synchronized (pool) {
+            return pool.isEmpty();
+        }
+    }
+
+    /**
+     * Deletes the directories below the workspace root that belong to no
+     * workspace of this manager, left behind by an earlier run of the
+     * server, and mirrors kept by repository name only, the layout before
+     * mirrors were kept per owner. The copies of a sharded build, named
+     * after their workspace, belong to that workspace.
+     */
+    private int deleteOrphans() {
+        File[] mirrorsByName = mirrorRoot.listFiles(file -> file.isDirectory() && file.getName().endsWith(".git"));
+        for (File mirror : mirrorsByName == null ? new File[0] : mirrorsByName) {
+            reclaimedBytes.add(deleteCounting(mirror));
+        }
+        int deleted = 0;
+        File[] owners = workspaceRoot.listFiles(File::isDirectory);
+        for (File owner : owners == null ? new File[0] : owners) {
+            File[] repos = owner.listFiles(File::isDirectory);
+            for (File repo : repos == null ? new File[0] : repos) {
+                File[] directories = repo.getName().startsWith("ws-") ? new File[] { repo }
+                        : repo.listFiles(File::isDirectory);
+                for (File directory : directories == null ? new File[0] : directories) {
+                    String name = directory.getName();
+                    int shard = name.indexOf(".shard-");
+                    File workspace = shard < 0 ? directory
+                            : new File(directory.getParentFile(), name.substring(0, shard));
+                    if (name.startsWith("ws-") && !live.contains(workspace)) {
+                        reclaimedBytes.add(deleteCounting(directory));
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private long remove(Workspace workspace) {
+        live.remove(workspace.getDirectory());
+        long size = deleteCounting(workspace.getDirectory());
+        reclaimedBytes.add(size);
+        return size;
+    }
+
+    /**
+     * Deletes the {@code target} directories of the Maven modules in a
+     * workspace, keeping the checked out files.
+     */
+    private long deleteBuildOutput(File directory) {
+        List<File> outputs = new ArrayList<>();
+        try {
+            Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.getFileName().toString().equals(".git")) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (dir.getFileName().toString().equals("target")
+                            && Files.exists(dir.resolveSibling("pom.xml"))) {
+                        outputs.add(dir.toFile());
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Failed to list " + directory + ": " + e.getMessage());
+        }
+        long size = 0;
+        for (File output : outputs) {
+            size += deleteCounting(output);
+        }
+        reclaimedBytes.add(size);
+        return size;
+    }
+
+    /**
+     * Returns the number of released workspaces waiting for reuse.
+     *
+     * @return the number of idle workspaces
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (Deque<Workspace> pool : idle.values()) {
+            synchronized (pool) {
+                count += pool.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the jobs that got a released workspace that last built their
+     * commit or branch.
+     *
+     * @return the number of jobs
+     */
+    public long getBranchHits() {
+        return branchHits.sum();
+    }
+
+    /**
+     * Returns the jobs that got a released workspace of their repository
+     * that last built another branch.
+     *
+     * @return the number of jobs
+     */
+    public long getRepoHits() {
+        return repoHits.sum();
+    }
+
+    /**
+     * Returns the jobs for which a new workspace was created.
+     *
+     * @return the number of jobs
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the idle workspaces and unused mirrors deleted to free disk
+     * space.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the disk space freed by deleting workspaces, their build
+     * output and mirrors.
+     *
+     * @return the freed space in bytes
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+
+    /**
+     * Returns the disk space used by the mirrors and workspaces when it was
+     * last measured by {@link #maintain()}.
+     *
+     * @return the used space in bytes, or -1 if it was not measured yet
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Returns the free disk space of the file system holding the
+     * workspaces.
+     *
+     * @return the free space in bytes, or -1 if it is unknown
+     */
+    public long getFreeBytes() {
+        File dir = workspaceRoot;
+        while (dir != null && !dir.exists()) {
+            dir = dir.getParentFile();
+        }
+        return dir != null ? dir.getUsableSpace() : -1;
+    }
+
+    static long sizeOf(File directory) {
+        if (!directory.exists()) {
+            return 0;
+        }
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        } catch (IOException | UncheckedIOException e) {
+            return 0;
+        }
+    }
+
+    private static long deleteCounting(File directory) {
+        long size = sizeOf(directory);
+        delete(directory);
+        return size;
+    }
+
+    static void delete(File directory) {
+        if (!directory.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            System.out.println("Failed to delete " + directory + ": " + e.getMessage());
+        }
+    }
+}
@@ -140,6 +140,7 @@ public class AppTest {
         String testMessage = "bro java is a-";
         InputStream testInput = new ByteArrayInputStream(testMessage.getBytes());
         when(process.getInputStream()).thenReturn(testInput);
+        when(process.waitFor()).thenReturn(1);
 
         boolean result = ContinuousIntegrationServer.runTests(testDir, processBuilder);
 
@@ -173,6 +174,7 @@ public class AppTest {
                 "Get your game on, go play";
         InputStream inStream = new ByteArrayInputStream(message.getBytes());
         when(process.getInputStream()).thenReturn(inStream);
+        when(process.waitFor()).thenReturn(1);
 
         assertFalse(ContinuousIntegrationServer.compileCode(testDir, processBuilder));
     }
@@ -0,0 +1,87 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class ArtifactCacheTest {
+
+    private static final long PID = ProcessHandle.current().pid();
+
+    private static File write(File dir, String path, String content) throws Exception {
+        File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void overlayUsesSharedRepositoryAsTail() throws Exception {
+        File root = Files.createTempDirectory("artifacts").toFile();
+        try {
+            ArtifactCache cache = new ArtifactCache(root);
+            try (ArtifactCache.Overlay overlay = cache.open("7")) {
+                assertEquals("-Dmaven.repo.local=" + new File(root, "jobs/" + PID + "/7").getAbsolutePath()
+                        + " -Dmaven.repo.local.tail=" + cache.getShared().getAbsolutePath(), overlay.getOptions());
+            }
+            assertFalse(new File(root, "jobs/" + PID + "/7").exists());
+        } finally {
+            WorkspaceManager.delete(root);
+        }
+    }
+
+    @Test
+    public void closingOverlayMovesNewArtifactsIntoSharedRepository() throws Exception {
+        File root = Files.createTempDirectory("artifacts").toFile();
+        try {
+            ArtifactCache cache = new ArtifactCache(root);
+            write(cache.getShared(), "org/a/1/a-1.jar", "shared");
+            ArtifactCache.Overlay overlay = cache.open("1");
+            File jobDir = new File(root, "jobs/" + PID + "/1");
+            write(jobDir, "org/a/1/a-1.jar", "downloaded again");
+            write(jobDir, "org/b/2/b-2.jar", "new");
+            write(jobDir, "org/c/3/c-3.jar.lastUpdated", "failed");
+            overlay.close();
+
+            assertEquals("shared", new String(Files.readAllBytes(
+                    new File(cache.getShared(), "org/a/1/a-1.jar").toPath()), StandardCharsets.UTF_8));
+            assertTrue(new File(cache.getShared(), "org/b/2/b-2.jar").exists());
+            assertFalse(new File(cache.getShared(), "org/c/3/c-3.jar.lastUpdated").exists());
+            assertFalse(jobDir.exists());
+        } finally {
+            WorkspaceManager.delete(root);
+        }
+    }
+
+    @Test
+    public void staleOverlaysAreDeletedOnStart() throws Exception {
+        File root = Files.createTempDirectory("artifacts").toFile();
+        try {
+            Process exited = new ProcessBuilder("true").start();
+            exited.waitFor();
+            File stale = write(new File(root, "jobs/" + exited.pid() + "/3"), "org/a/1/a-1.jar", "partial");
+            new ArtifactCache(root);
+            assertFalse(stale.exists());
+            assertTrue(new File(root, "shared").isDirectory());
+        } finally {
+            WorkspaceManager.delete(root);
+        }
+    }
+
+    @Test
+    public void overlaysOfOtherRunningServersAreKept() throws Exception {
+        File root = Files.createTempDirectory("artifacts").toFile();
+        Process server = new ProcessBuilder("sleep", "30").start();
+        try {
+            File running = write(new File(root, "jobs/" + server.pid() + "/3"), "org/a/1/a-1.jar", "partial");
+            new ArtifactCache(root);
+            assertTrue(running.exists());
+        } finally {
+            server.destroyForcibly();
+            WorkspaceManager.delete(root);
+        }
+    }
+}
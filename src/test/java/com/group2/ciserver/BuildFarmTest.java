@@ -0,0 +1,311 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.json.JSONObject;
+
+public class BuildFarmTest {
+
+    private BuildFarm farm;
+    private Server server;
+    private String url;
+    private File coordinatorLogs;
+    private final List<BuildAgent> agents = new ArrayList<>();
+
+    @BeforeEach
+    public void startCoordinator() throws Exception {
+        farm = new BuildFarm(100, 800, 3, 10000, "secret");
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        server = config.createServer(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws java.io.IOException {
+                baseRequest.setHandled(true);
+                farm.handle(target, request, response);
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        coordinatorLogs = Files.createTempDirectory("coordinator-logs").toFile();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        for (BuildAgent agent : agents) {
+            agent.close();
+        }
+        farm.close();
+        server.stop();
+    }
+
+    private BuildAgent startAgent(String name, int capacity, File logDir, BuildAgent.Builder builder,
+            EventBus events) {
+        BuildAgent agent = new BuildAgent(url, name, "secret", logDir, new JobQueue(capacity, capacity), events,
+                builder);
+        agents.add(agent);
+        agent.start();
+        return agent;
+    }
+
+    /**
+     * A builder that logs a line, posts a result event and takes some time.
+     */
+    private static BuildAgent.Builder builder(String name, File logDir, EventBus events, long millis,
+            AtomicInteger running, AtomicInteger maxRunning) {
+        return push -> {
+            long jobId = BuildJob.current().getId();
+            long startedAt = System.currentTimeMillis();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try (BuildLog log = BuildLog.open(logDir, jobId)) {
+                log.println("built " + push.getAfter() + " on " + name);
+                events.post(new JobEvent(JobEvent.Type.TESTING, jobId, "owner", "repo", push.getAfter(), "",
+                        null, null));
+                Thread.sleep(millis);
+                events.post(new JobEvent(JobEvent.Type.DONE, jobId, "owner", "repo", push.getAfter(), "",
+                        "success", "passed on " + name));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+            return new JSONObject().put("outcome", "success").put("sha", push.getAfter())
+                    .put("startedAt", startedAt).put("finishedAt", System.currentTimeMillis())
+                    .put("stages", new JSONObject());
+        };
+    }
+
+    private static PushEvent push(String sha) {
+        return new PushEvent("https://github.com/owner/repo.git", "owner", "repo", "refs/heads/main", sha);
+    }
+
+    private CompletableFuture<JSONObject> submit(BuildJob job, PushEvent push, List<JSONObject> events) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (BuildLog log = BuildLog.open(coordinatorLogs, job.getId())) {
+                return farm.run(job, push, log, events::add);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private static void awaitAgents(BuildFarm farm, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (farm.getAgentCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, farm.getAgentCount());
+    }
+
+    @Test
+    public void agentsBuildJobsWithinTheirCapacityAndStreamThemBack() throws Exception {
+        AtomicInteger smallRunning = new AtomicInteger();
+        AtomicInteger smallMax = new AtomicInteger();
+        AtomicInteger largeRunning = new AtomicInteger();
+        AtomicInteger largeMax = new AtomicInteger();
+        File smallLogs = Files.createTempDirectory("small").toFile();
+        File largeLogs = Files.createTempDirectory("large").toFile();
+        EventBus smallEvents = new EventBus();
+        EventBus largeEvents = new EventBus();
+        startAgent("small", 1, smallLogs, builder("small", smallLogs, smallEvents, 300, smallRunning, smallMax),
+                smallEvents);
+        startAgent("large", 2, largeLogs, builder("large", largeLogs, largeEvents, 300, largeRunning, largeMax),
+                largeEvents);
+        awaitAgents(farm, 2);
+        assertEquals(3, farm.getCapacity());
+
+        List<BuildJob> jobs = new ArrayList<>();
+        List<CompletableFuture<JSONObject>> results = new ArrayList<>();
+        ConcurrentHashMap<Long, List<JSONObject>> events = new ConcurrentHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            BuildJob job = new BuildJob("repo", 0, () -> {
+            });
+            jobs.add(job);
+            events.put(job.getId(), new CopyOnWriteArrayList<>());
+            results.add(submit(job, push("sha" + i), events.get(job.getId())));
+        }
+
+        int large = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            JSONObject record = results.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals("success", record.getString("outcome"));
+            assertEquals("sha" + i, record.getString("sha"));
+            large += "large".equals(record.getString("agent")) ? 1 : 0;
+
+            List<JSONObject> jobEvents = events.get(jobs.get(i).getId());
+            assertEquals(2, jobEvents.size());
+            assertEquals("testing", jobEvents.get(0).getString("type"));
+            assertEquals("done", jobEvents.get(1).getString("type"));
+            assertEquals("passed on " + record.getString("agent"), jobEvents.get(1).getString("description"));
+
+            String log = new String(Files.readAllBytes(BuildLog.getFile(coordinatorLogs, jobs.get(i).getId())
+                    .toPath()), StandardCharsets.UTF_8);
+            assertEquals("built sha" + i + " on " + record.getString("agent") + "\n", log);
+        }
+        assertTrue(smallMax.get() <= 1);
+        assertTrue(largeMax.get() <= 2);
+        assertTrue(large >= 2, "the agent with two slots builds at least two of the jobs");
+        assertEquals(0, farm.getPendingJobs());
+        assertEquals(0, farm.getReassignedJobs());
+    }
+
+    @Test
+    public void jobsGoToTheAgentThatBuiltTheRepositoryUnlessItIsSaturated() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        for (String name : new String[] {"a", "b"}) {
+            File logs = Files.createTempDirectory(name).toFile();
+            EventBus events = new EventBus();
+            startAgent(name, 1, logs, push -> {
+                if (push.getAfter().startsWith("block")) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return new JSONObject().put("outcome", "success").put("sha", push.getAfter())
+                        .put("startedAt", 0).put("finishedAt", 0).put("stages", new JSONObject());
+            }, events);
+        }
+        awaitAgents(farm, 2);
+        try {
+            String warm = build("first").getString("agent");
+            assertEquals(1, farm.getAffinityMisses());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(warm, build("again" + i).getString("agent"));
+            }
+            assertEquals(3, farm.getAffinityHits());
+
+            BuildJob blocked = new BuildJob("repo", 0, () -> {
+            });
+            CompletableFuture<JSONObject> blocking = submit(blocked, push("block"), new CopyOnWriteArrayList<>());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (farm.getRunningJobs() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // the warm agent is saturated, so the other one takes the job long before the steal delay
+            long start = System.currentTimeMillis();
+            assertNotEquals(warm, build("stolen").getString("agent"));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(1, farm.getStolenJobs());
+            release.countDown();
+            assertEquals(warm, blocking.get(5, TimeUnit.SECONDS).getString("agent"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private JSONObject build(String sha) throws Exception {
+        BuildJob job = new BuildJob("repo", 0, () -> {
+        });
+        return submit(job, push(sha), new CopyOnWriteArrayList<>()).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void jobsOfALostAgentAreBuiltByAnother() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        EventBus lostEvents = new EventBus();
+        BuildAgent lost = startAgent("lost", 1, Files.createTempDirectory("lost").toFile(), push -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new JSONObject().put("outcome", "success").put("stages", new JSONObject());
+        }, lostEvents);
+        awaitAgents(farm, 1);
+
+        BuildJob job = new BuildJob("repo", 0, () -> {
+        });
+        CompletableFuture<JSONObject> result = submit(job, push("abc"), new CopyOnWriteArrayList<>());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // the agent stops sending heartbeats, like a crashed machine
+        lost.close();
+
+        EventBus events = new EventBus();
+        File spareLogs = Files.createTempDirectory("spare").toFile();
+        startAgent("spare", 1, spareLogs, builder("spare", spareLogs, events, 10, new AtomicInteger(),
+                new AtomicInteger()), events);
+        try {
+            JSONObject record = result.get(10, TimeUnit.SECONDS);
+            assertEquals("spare", record.getString("agent"));
+            assertEquals(1, farm.getReassignedJobs());
+            assertEquals(1, farm.getLostAgents());
+            assertEquals(1, farm.getAgentCount());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void supersededJobIsStoppedOnItsAgent() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        startAgent("agent", 1, Files.createTempDirectory("agent").toFile(), push -> {
+            started.countDown();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!BuildJob.isCurrentSuperseded() && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (BuildJob.isCurrentSuperseded()) {
+                stopped.countDown();
+            }
+            return new JSONObject().put("outcome", "superseded");
+        }, new EventBus());
+        awaitAgents(farm, 1);
+
+        BuildJob job = new BuildJob("repo", 0, () -> {
+        });
+        CompletableFuture<JSONObject> result = submit(job, push("old"), new CopyOnWriteArrayList<>());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        job.supersede();
+
+        assertNull(result.get(5, TimeUnit.SECONDS));
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void agentsWithoutTheTokenAreRejected() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + "/agents").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write("{\"name\":\"x\",\"capacity\":1}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(401, connection.getResponseCode());
+        assertEquals(0, farm.getAgentCount());
+    }
+
+    @Test
+    public void coordinatorDoesNotStartWithoutAToken() {
+        assertThrows(IllegalArgumentException.class, BuildFarm::fromConfig);
+    }
+}
@@ -0,0 +1,83 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+public class BuildHistoryTest {
+
+    private static JSONObject build(String repo, String branch, String sha, long jobId) {
+        return new JSONObject().put("repo", repo).put("branch", branch).put("sha", sha).put("jobId", jobId)
+                .put("outcome", "success");
+    }
+
+    private static List<Long> ids(BuildHistory history, String repo, String branch, String sha, long before,
+            int limit) throws Exception {
+        List<Long> ids = new ArrayList<>();
+        history.list(repo, branch, sha, before, limit, record -> ids.add(record.getLong("id")));
+        return ids;
+    }
+
+    @Test
+    public void buildsAreFoundByIdAndIndexes() throws Exception {
+        File dir = Files.createTempDirectory("history").toFile();
+        try (BuildHistory history = new BuildHistory(dir)) {
+            assertEquals(1, history.append(build("a/one", "main", "sha1", 1)));
+            assertEquals(2, history.append(build("a/two", "main", "sha2", 2)));
+            assertEquals(3, history.append(build("a/one", "feature", "sha3", 3)));
+            assertEquals(4, history.append(build("a/one", "main", "sha4", 4)));
+
+            assertEquals("sha3", history.get(3).getString("sha"));
+            assertNull(history.get(5));
+            assertEquals(List.of(4L, 3L, 2L, 1L), ids(history, null, null, null, 0, 10));
+            assertEquals(List.of(4L, 3L, 1L), ids(history, "a/one", null, null, 0, 10));
+            assertEquals(List.of(4L, 1L), ids(history, "a/one", "main", null, 0, 10));
+            assertEquals(List.of(2L), ids(history, null, null, "sha2", 0, 10));
+            assertEquals(List.of(), ids(history, "a/two", null, "sha1", 0, 10));
+        }
+    }
+
+    @Test
+    public void pagesContinueBeforeTheReturnedId() throws Exception {
+        File dir = Files.createTempDirectory("history").toFile();
+        try (BuildHistory history = new BuildHistory(dir)) {
+            for (int i = 1; i <= 5; i++) {
+                history.append(build("a/one", "main", "sha" + i, i));
+            }
+            List<Long> firstPage = new ArrayList<>();
+            long next = history.list("a/one", "main", null, 0, 2, record -> firstPage.add(record.getLong("id")));
+            assertEquals(List.of(5L, 4L), firstPage);
+            assertEquals(4, next);
+            assertEquals(List.of(3L, 2L), ids(history, "a/one", "main", null, next, 2));
+            assertEquals(List.of(1L), ids(history, null, null, null, 2, 2));
+        }
+    }
+
+    @Test
+    public void reopenedStoreRebuildsIndexesAndDropsTornRecord() throws Exception {
+        File dir = Files.createTempDirectory("history").toFile();
+        try (BuildHistory history = new BuildHistory(dir)) {
+            history.append(build("a/one", "main", "sha1", 7));
+            history.append(build("a/one", "main", "sha2", 9));
+        }
+        // a crash after writing the data but before writing the index entry
+        Files.write(new File(dir, "builds.jsonl").toPath(), "{\"id\":3,\"repo\":\"a/one\"}\n"
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (BuildHistory history = new BuildHistory(dir)) {
+            assertEquals(2, history.size());
+            assertEquals(9, history.getLastJobId());
+            assertEquals(List.of(2L, 1L), ids(history, "a/one", "main", null, 0, 10));
+            assertEquals(3, history.append(build("a/one", "main", "sha3", 10)));
+            assertEquals("sha3", history.get(3).getString("sha"));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class BuildLogTest {
+
+    @Test
+    public void logLargerThanRingBufferIsWrittenCompletely() throws Exception {
+        File logDir = Files.createTempDirectory("logs").toFile();
+        StringBuilder expected = new StringBuilder();
+        try (BuildLog log = BuildLog.open(logDir, 1)) {
+            assertTrue(BuildLog.isActive(1));
+            for (int i = 0; i < 20000; i++) {
+                log.println("line " + i);
+                expected.append("line ").append(i).append('\n');
+            }
+        }
+        assertFalse(BuildLog.isActive(1));
+        assertNull(BuildLog.current());
+        assertEquals(expected.toString(), Files.readString(BuildLog.getFile(logDir, 1).toPath()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(BuildLog.tail(logDir, 1, out, false));
+        assertEquals(expected.toString(), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tailSendsServerSentEvents() throws Exception {
+        File logDir = Files.createTempDirectory("logs").toFile();
+        try (BuildLog log = BuildLog.open(logDir, 2)) {
+            log.println("[INFO] BUILD SUCCESS");
+            log.println("done");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(BuildLog.tail(logDir, 2, out, true));
+        assertEquals("data: [INFO] BUILD SUCCESS\n\ndata: done\n\nevent: end\ndata: \n\n",
+                out.toString(StandardCharsets.UTF_8));
+        assertFalse(BuildLog.tail(logDir, 3, out, true));
+    }
+
+    @Test
+    public void drainReadsStdoutAndStderrIntoLog() throws Exception {
+        File logDir = Files.createTempDirectory("logs").toFile();
+        Process process = mock(Process.class);
+        when(process.getInputStream()).thenReturn(new ByteArrayInputStream("out1\nout2\n".getBytes()));
+        when(process.getErrorStream()).thenReturn(new ByteArrayInputStream("err1\n".getBytes()));
+        List<String> stdout = new CopyOnWriteArrayList<>();
+
+        try (BuildLog log = BuildLog.open(logDir, 4)) {
+            ProcessOutput.drain(process, stdout::add);
+        }
+
+        assertEquals(List.of("out1", "out2"), stdout);
+        List<String> lines = Files.readAllLines(BuildLog.getFile(logDir, 4).toPath());
+        assertTrue(lines.containsAll(List.of("out1", "out2", "[stderr] err1")));
+    }
+}
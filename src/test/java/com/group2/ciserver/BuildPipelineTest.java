@@ -0,0 +1,181 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BuildPipelineTest {
+
+    private static BuildPipeline.Outcome run(String output, int exitCode, List<BuildPipeline.Stage> stages)
+            throws Exception {
+        ProcessBuilder processBuilder = mock(ProcessBuilder.class);
+        Process process = mock(Process.class);
+        when(processBuilder.start()).thenReturn(process);
+        when(process.getInputStream()).thenReturn(new ByteArrayInputStream(output.getBytes()));
+        when(process.waitFor()).thenReturn(exitCode);
+
+        BuildPipeline pipeline = new BuildPipeline(MavenProcessRunner.INSTANCE, "repo", false);
+        BuildPipeline.Outcome outcome = pipeline.run(mock(File.class), processBuilder,
+                (stage, time) -> stages.add(stage));
+        verify(processBuilder).command(List.of("bash", "-c", "mvn test"));
+        return outcome;
+    }
+
+    @Test
+    public void successfulBuildReportsCompileAndTestStages() throws Exception {
+        List<BuildPipeline.Stage> stages = new ArrayList<>();
+        String output = "[INFO] --- maven-compiler-plugin:3.8.1:compile (default-compile) @ app ---\n"
+                + "[INFO] --- maven-surefire-plugin:3.2.5:test (default-test) @ app ---\n"
+                + "[INFO] Tests run: 3, Failures: 0, Errors: 0, Skipped: 1\n"
+                + "[INFO] BUILD SUCCESS\n";
+        assertEquals(BuildPipeline.Outcome.SUCCESS, run(output, 0, stages));
+        assertEquals(List.of(BuildPipeline.Stage.COMPILE, BuildPipeline.Stage.TEST, BuildPipeline.Stage.DONE),
+                stages);
+    }
+
+    @Test
+    public void compilationErrorIsCompileFailure() throws Exception {
+        List<BuildPipeline.Stage> stages = new ArrayList<>();
+        String output = "[INFO] --- compiler:3.11.0:compile (default-compile) @ app ---\n"
+                + "[ERROR] COMPILATION ERROR :\n"
+                + "[INFO] BUILD FAILURE\n"
+                + "[ERROR] Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin:3.11.0:compile "
+                + "(default-compile) on project app: Compilation failure\n";
+        assertEquals(BuildPipeline.Outcome.COMPILE_FAILED, run(output, 1, stages));
+        assertFalse(stages.contains(BuildPipeline.Stage.TEST));
+    }
+
+    @Test
+    public void failingTestIsTestFailureEvenInLaterModule() throws Exception {
+        List<BuildPipeline.Stage> stages = new ArrayList<>();
+        String output = "[INFO] --- surefire:3.2.5:test (default-test) @ core ---\n"
+                + "[INFO] --- compiler:3.11.0:compile (default-compile) @ web ---\n"
+                + "[INFO] --- surefire:3.2.5:test (default-test) @ web ---\n"
+                + "[ERROR] Tests run: 2, Failures: 1, Errors: 0, Skipped: 0\n"
+                + "[INFO] BUILD FAILURE\n"
+                + "[ERROR] Failed to execute goal org.apache.maven.plugins:maven-surefire-plugin:3.2.5:test "
+                + "(default-test) on project web: There are test failures.\n";
+        assertEquals(BuildPipeline.Outcome.TESTS_FAILED, run(output, 1, stages));
+    }
+
+    @Test
+    public void exitCodeDecidesOverOutput() throws Exception {
+        // a test printing "BUILD SUCCESS" must not make a failing build pass
+        String output = "[INFO] --- surefire:3.2.5:test (default-test) @ app ---\n"
+                + "BUILD SUCCESS\n";
+        assertEquals(BuildPipeline.Outcome.TESTS_FAILED, run(output, 1, new ArrayList<>()));
+    }
+
+    @Test
+    public void shardsRunConcurrentlyAndAnyFailureFailsTheBuild() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("sharded").toFile();
+        try {
+            File classes = new File(dir, "target/test-classes");
+            assertTrue(classes.mkdirs());
+            assertTrue(new File(classes, "ATest.class").createNewFile());
+            assertTrue(new File(classes, "BTest.class").createNewFile());
+            ProcessBuilder processBuilder = mock(ProcessBuilder.class);
+            Process compile = mock(Process.class);
+            Process first = mock(Process.class);
+            Process second = mock(Process.class);
+            when(second.waitFor()).thenReturn(1);
+            when(processBuilder.start()).thenReturn(compile, first, second);
+
+            BuildPipeline pipeline = new BuildPipeline(MavenProcessRunner.INSTANCE, "repo", false);
+            pipeline.setSharding(2, new TestShards(new File(dir, "durations.json")), "-Xmx256m");
+            List<BuildPipeline.Stage> stages = new ArrayList<>();
+            assertEquals(BuildPipeline.Outcome.TESTS_FAILED,
+                    pipeline.run(dir, processBuilder, (stage, time) -> stages.add(stage)));
+            assertEquals(List.of(BuildPipeline.Stage.COMPILE, BuildPipeline.Stage.TEST, BuildPipeline.Stage.DONE),
+                    stages);
+            verify(processBuilder).command(List.of("bash", "-c", "mvn test-compile"));
+            verify(processBuilder).command(List.of("bash", "-c", "mvn test"
+                    + " -Dmaven.main.skip=true -Dmaven.resources.skip=true -Dtest=ATest"
+                    + " -Dsurefire.failIfNoSpecifiedTests=false -DfailIfNoTests=false \"-DargLine=-Xmx256m\""));
+            // the second shard ran in a copy of the project, which is gone
+            File copy = new File(dir.getParentFile(), dir.getName() + ".shard-1");
+            verify(processBuilder).directory(copy);
+            assertFalse(copy.exists());
+        } finally {
+            WorkspaceManager.delete(dir);
+        }
+    }
+
+    @Test
+    public void shardsOfAMultiModuleProjectResolveSiblingModulesInTheReactor() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("reactor").toFile();
+        try {
+            assertTrue(new File(dir, "core/target/test-classes/core").mkdirs());
+            assertTrue(new File(dir, "web/target/test-classes/web").mkdirs());
+            assertTrue(new File(dir, "core/target/test-classes/core/CoreTest.class").createNewFile());
+            assertTrue(new File(dir, "web/target/test-classes/web/WebTest.class").createNewFile());
+            ProcessBuilder processBuilder = mock(ProcessBuilder.class);
+            when(processBuilder.start()).thenReturn(mock(Process.class), mock(Process.class), mock(Process.class));
+
+            BuildPipeline pipeline = new BuildPipeline(MavenProcessRunner.INSTANCE, "repo", false);
+            pipeline.setSharding(2, new TestShards(new File(dir, "durations.json")), "");
+            pipeline.setModules(List.of("web"));
+            assertEquals(BuildPipeline.Outcome.SUCCESS, pipeline.run(dir, processBuilder, (stage, time) -> {
+            }));
+            verify(processBuilder).command(List.of("bash", "-c", "mvn test-compile -pl web -am"));
+            // web depends on core, its shard needs the compile phase to find core/target/classes
+            verify(processBuilder).command(List.of("bash", "-c", "mvn test -pl web -am"
+                    + " -Dmaven.main.skip=true -Dmaven.resources.skip=true -Dtest=web.WebTest"
+                    + " -Dsurefire.failIfNoSpecifiedTests=false -DfailIfNoTests=false"));
+        } finally {
+            WorkspaceManager.delete(dir);
+        }
+    }
+
+    @Test
+    public void selectedModulesAreBuiltWithTheModulesTheyDependOn() {
+        BuildPipeline pipeline = new BuildPipeline(MavenProcessRunner.INSTANCE, "repo", false);
+        pipeline.setModules(List.of("core", "apps/web"));
+        pipeline.setTests(List.of());
+        assertEquals("test -pl core,apps/web -am -DskipTests", pipeline.getGoals());
+    }
+
+    @Test
+    public void downloadsAreReportedBeforeDone() throws Exception {
+        String output = "[INFO] Downloading from central: https://repo.maven.apache.org/maven2/a/a-1.pom\n"
+                + "[INFO] Downloaded from central: https://repo.maven.apache.org/maven2/a/a-1.pom (2.5 kB at 10 kB/s)\n"
+                + "[INFO] Downloaded from central: https://repo.maven.apache.org/maven2/a/a-1.jar (1.2 MB at 3 MB/s)\n"
+                + "[INFO] BUILD SUCCESS\n";
+        ProcessBuilder processBuilder = mock(ProcessBuilder.class);
+        Process process = mock(Process.class);
+        when(processBuilder.start()).thenReturn(process);
+        when(process.getInputStream()).thenReturn(new ByteArrayInputStream(output.getBytes()));
+        long[] reported = new long[2];
+        List<BuildPipeline.Stage> stages = new ArrayList<>();
+
+        BuildPipeline pipeline = new BuildPipeline(MavenProcessRunner.INSTANCE, "repo", false);
+        pipeline.setMavenOptions("-Dmaven.repo.local=/tmp/m2");
+        pipeline.run(mock(File.class), processBuilder, new BuildPipeline.Listener() {
+            @Override
+            public void onStage(BuildPipeline.Stage stage, long time) {
+                stages.add(stage);
+            }
+
+            @Override
+            public void onDownloads(int artifacts, long bytes, long millis) {
+                assertFalse(stages.contains(BuildPipeline.Stage.DONE));
+                reported[0] = artifacts;
+                reported[1] = bytes;
+            }
+        });
+        verify(processBuilder).command(List.of("bash", "-c", "mvn -Dmaven.repo.local=/tmp/m2 test"));
+        assertEquals(2, reported[0]);
+        assertEquals(1_202_500, reported[1]);
+    }
+
+    @Test
+    public void cleanModeAddsCleanGoal() {
+        assertEquals("clean test", new BuildPipeline(MavenProcessRunner.INSTANCE, "repo", true).getGoals());
+        assertEquals("test", new BuildPipeline(MavenProcessRunner.INSTANCE, "repo", false).getGoals());
+    }
+}
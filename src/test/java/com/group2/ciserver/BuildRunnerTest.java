@@ -0,0 +1,68 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+public class BuildRunnerTest {
+
+    @Test
+    public void plainRunnerIsTheDefault() {
+        assertSame(MavenProcessRunner.INSTANCE, BuildRunner.forRepo("some-repo"));
+        assertEquals(List.of("bash", "-c", "mvn clean compile"),
+                MavenProcessRunner.INSTANCE.command(new File("."), "some-repo", "clean compile"));
+    }
+
+    @Test
+    public void daemonRunnerKeepsDaemonsPerRepository() throws Exception {
+        File root = Files.createTempDirectory("mvnd").toFile();
+        MavenDaemonRunner runner = new MavenDaemonRunner(root, 10, 60000);
+
+        String one = String.join(" ", runner.command(new File("."), "one", "test"));
+        String two = String.join(" ", runner.command(new File("."), "two", "test"));
+
+        assertTrue(one.startsWith("bash -c mvnd "));
+        assertTrue(one.contains("-Dmvnd.daemonStorage=" + new File(root, "one").getAbsolutePath()));
+        assertTrue(two.contains("-Dmvnd.daemonStorage=" + new File(root, "two").getAbsolutePath()));
+        assertTrue(one.endsWith(" test"));
+    }
+
+    @Test
+    public void compileUsesCommandOfRunner() throws Exception {
+        File testDir = mock(File.class);
+        ProcessBuilder processBuilder = mock(ProcessBuilder.class);
+        Process process = mock(Process.class);
+        BuildRunner runner = mock(BuildRunner.class);
+        List<String> command = List.of("bash", "-c", "mvnd clean compile");
+
+        when(runner.command(testDir, "repo", "clean compile")).thenReturn(command);
+        when(processBuilder.start()).thenReturn(process);
+        when(process.getInputStream()).thenReturn(new ByteArrayInputStream("BUILD SUCCESS".getBytes()));
+        when(process.waitFor()).thenReturn(0);
+
+        assertTrue(ContinuousIntegrationServer.compileCode(testDir, processBuilder, runner, "repo"));
+        verify(processBuilder).command(command);
+        verify(runner).finished("repo", 0, false);
+    }
+
+    @Test
+    public void daemonsOfRunningBuildsAreNotStopped() throws Exception {
+        MavenDaemonRunner runner = new MavenDaemonRunner(Files.createTempDirectory("mvnd").toFile(), 10, -1);
+        runner.command(new File("."), "one", "test");
+        runner.command(new File("."), "one", "test");
+        runner.checkHealth();
+        assertEquals(2, runner.getRunning("one"));
+
+        runner.finished("one", 1, false);
+        runner.checkHealth();
+        assertEquals(1, runner.getRunning("one"));
+
+        runner.finished("one", 0, false);
+        assertEquals(0, runner.getRunning("one"));
+    }
+}
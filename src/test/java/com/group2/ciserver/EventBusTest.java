@@ -0,0 +1,65 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EventBusTest {
+
+    private static JobEvent event(JobEvent.Type type) {
+        return new JobEvent(type, 1, "owner", "repo", "abc", "token", null, null);
+    }
+
+    @Test
+    public void subscribersSeeEventsInOrder() throws Exception {
+        EventBus bus = new EventBus();
+        List<JobEvent.Type> seen = new CopyOnWriteArrayList<>();
+        bus.subscribe(event -> seen.add(event.getType()));
+        for (JobEvent.Type type : JobEvent.Type.values()) {
+            assertTrue(bus.post(event(type)));
+        }
+        bus.close();
+        assertEquals(List.of(JobEvent.Type.values()), seen);
+        assertFalse(bus.post(event(JobEvent.Type.DONE)));
+    }
+
+    @Test
+    public void postingDoesNotWaitForSlowSubscribers() throws Exception {
+        EventBus bus = new EventBus();
+        CountDownLatch release = new CountDownLatch(1);
+        bus.subscribe(event -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            bus.post(event(JobEvent.Type.COMPILING));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertTrue(bus.getPending() > 0);
+        release.countDown();
+        bus.close();
+    }
+
+    @Test
+    public void failingSubscriberDoesNotStopOthers() throws Exception {
+        EventBus bus = new EventBus();
+        List<JobEvent> seen = new CopyOnWriteArrayList<>();
+        bus.subscribe(event -> {
+            throw new IllegalStateException("broken");
+        });
+        bus.subscribe(seen::add);
+        bus.post(event(JobEvent.Type.QUEUED));
+        bus.close();
+        assertEquals(1, seen.size());
+        assertEquals("queued", seen.get(0).toJSON().getString("type"));
+        assertFalse(seen.get(0).toJSON().has("accessToken"));
+    }
+}
@@ -0,0 +1,104 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class IntakeJournalTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static PushEvent push(String sha) {
+        return new PushEvent("https://github.com/owner/repo.git", "owner", "repo", "refs/heads/main", sha);
+    }
+
+    @Test
+    public void unfinishedJobsAreReplayedAfterRestart() throws Exception {
+        File dir = Files.createTempDirectory("intake").toFile();
+        IntakeJournal journal = new IntakeJournal(dir, HOUR, 100);
+        journal.accept(1, "d1", push("a"));
+        journal.accept(2, "d2", push("b"));
+        journal.accept(3, null, push("c"));
+        journal.done(1);
+        journal.close();
+        // a record cut off by a crash
+        Files.write(new File(dir, "intake.jsonl").toPath(), "{\"op\":\"acc".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        IntakeJournal reopened = new IntakeJournal(dir, HOUR, 100);
+        List<IntakeJournal.Entry> replay = reopened.getReplay();
+        assertEquals(2, replay.size());
+        assertEquals(2, replay.get(0).getJobId());
+        assertEquals("d2", replay.get(0).getDeliveryId());
+        assertEquals("b", replay.get(0).getPush().getAfter());
+        assertEquals("owner", replay.get(0).getPush().getOwner());
+        assertEquals(3, replay.get(1).getJobId());
+        assertEquals(3, reopened.getLastJobId());
+        // deliveries of finished jobs are remembered as well
+        assertFalse(reopened.claim("d1"));
+        assertFalse(reopened.claim("d2"));
+
+        reopened.done(2);
+        reopened.done(3);
+        reopened.close();
+        assertTrue(new IntakeJournal(dir, HOUR, 100).getReplay().isEmpty());
+    }
+
+    @Test
+    public void deliveriesAreRememberedForTheWindow() throws Exception {
+        File dir = Files.createTempDirectory("intake").toFile();
+        IntakeJournal journal = new IntakeJournal(dir, HOUR, 2);
+        assertTrue(journal.claim("a"));
+        assertFalse(journal.claim("a"));
+        assertEquals(1, journal.getDuplicates());
+        journal.forget("a");
+        assertTrue(journal.claim("a"));
+
+        assertTrue(journal.claim("b"));
+        assertTrue(journal.claim("c"));
+        // only two ids are kept, the oldest is forgotten
+        assertTrue(journal.claim("a"));
+        assertEquals(2, journal.getRememberedDeliveries());
+
+        IntakeJournal shortWindow = new IntakeJournal(Files.createTempDirectory("intake").toFile(), 20, 100);
+        assertTrue(shortWindow.claim("x"));
+        Thread.sleep(50);
+        assertTrue(shortWindow.claim("x"));
+    }
+
+    @Test
+    public void concurrentAcceptsShareSyncs() throws Exception {
+        File dir = Files.createTempDirectory("intake").toFile();
+        IntakeJournal journal = new IntakeJournal(dir, HOUR, 1000);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int first = t * 50;
+            Thread thread = new Thread(() -> {
+                for (int i = first; i < first + 50; i++) {
+                    try {
+                        journal.accept(i + 1, "d" + i, push("sha" + i));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400, journal.getOpenJobs());
+        assertTrue(journal.getSyncs() >= 1 && journal.getSyncs() <= 400);
+        journal.close();
+
+        assertEquals(400, new IntakeJournal(dir, HOUR, 1000).getReplay().size());
+    }
+}
@@ -0,0 +1,128 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class JobQueueTest {
+
+    @Test
+    public void higherPriorityJobsRunFirst() throws Exception {
+        JobQueue queue = new JobQueue(1, 10);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        queue.submit(new BuildJob("blocker", 0, () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        queue.submit(new BuildJob("low", 0, () -> order.add("low")));
+        queue.submit(new BuildJob("high", 10, () -> order.add("high")));
+        queue.submit(new BuildJob("low2", 0, () -> order.add("low2")));
+        blocker.countDown();
+
+        assertTrue(queue.shutdown(5000));
+        assertEquals(List.of("high", "low", "low2"), order);
+    }
+
+    @Test
+    public void fullQueueRejectsJobs() throws Exception {
+        JobQueue queue = new JobQueue(1, 1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        queue.submit(new BuildJob("repo", 0, () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertEquals(JobQueue.SubmitResult.ACCEPTED, queue.submit(new BuildJob("repo", 0, () -> { })));
+        assertEquals(JobQueue.SubmitResult.QUEUE_FULL, queue.submit(new BuildJob("repo", 0, () -> { })));
+        assertEquals(1, queue.getRejectedJobs());
+
+        blocker.countDown();
+        assertTrue(queue.shutdown(5000));
+        assertEquals(JobQueue.SubmitResult.SHUT_DOWN, queue.submit(new BuildJob("repo", 0, () -> { })));
+    }
+
+    @Test
+    public void newerPushSupersedesQueuedAndRunningJobs() throws Exception {
+        JobQueue queue = new JobQueue(1, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        List<String> superseded = new CopyOnWriteArrayList<>();
+        List<String> built = new CopyOnWriteArrayList<>();
+        String key = BuildJob.coalesceKey("https://github.com/test/repo.git", "refs/heads/main");
+
+        BuildJob running = new BuildJob("repo", 0, key, "sha1", () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        running.setOnSuperseded(() -> superseded.add("sha1"));
+        queue.submit(running);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        BuildJob queued = new BuildJob("repo", 0, key, "sha2", () -> built.add("sha2"));
+        queued.setOnSuperseded(() -> superseded.add("sha2"));
+        queue.submit(queued);
+        assertTrue(running.isSuperseded());
+
+        BuildJob newest = new BuildJob("repo", 0, key, "sha3", () -> built.add("sha3"));
+        queue.submit(newest);
+        blocker.countDown();
+
+        assertTrue(queue.shutdown(5000));
+        assertEquals(List.of("sha1", "sha2"), superseded);
+        assertEquals(List.of("sha3"), built);
+        assertFalse(newest.isSuperseded());
+    }
+
+    @Test
+    public void abortDropsQueuedJobsWithoutSupersedingThem() throws Exception {
+        JobQueue queue = new JobQueue(1, 10, runnable -> new Thread(runnable, "custom"));
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> threads = new CopyOnWriteArrayList<>();
+
+        queue.submit(new BuildJob("repo", 0, () -> {
+            threads.add(Thread.currentThread().getName());
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        BuildJob queued = new BuildJob("repo", 0, () -> threads.add("queued"));
+        queue.submit(queued);
+
+        assertFalse(queue.shutdown(100));
+        assertEquals(1, queue.abort());
+        blocker.countDown();
+        assertTrue(queue.shutdown(5000));
+        assertEquals(List.of("ci-worker-0"), threads);
+        assertFalse(queued.isSuperseded());
+        assertEquals(JobQueue.SubmitResult.SHUT_DOWN, queue.submit(new BuildJob("repo", 0, () -> { })));
+    }
+}
@@ -0,0 +1,73 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsTest {
+
+    @Test
+    public void histogramBucketsArePowersOfTwo() {
+        Histogram histogram = new Histogram(0, 10);
+        for (long value : new long[] { 0, 1, 2, 3, 4, 5, 1000, 1024, 1025, 5000 }) {
+            histogram.record(value);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(2, histogram.getCountAtMost(0));
+        assertEquals(3, histogram.getCountAtMost(1));
+        assertEquals(5, histogram.getCountAtMost(2));
+        assertEquals(8, histogram.getCountAtMost(10));
+        assertEquals(4, histogram.getPercentile(50));
+        assertEquals(1024, histogram.getPercentile(80));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+        assertEquals(0, new Histogram(0, 4).getPercentile(99));
+    }
+
+    @Test
+    public void writesThePrometheusTextFormat() {
+        Metrics metrics = new Metrics();
+        Metrics.Family<LongAdder> builds = metrics.counter("ci_builds_total", "Finished builds", "repo", "outcome");
+        builds.labels("owner/repo", "success").add(2);
+        builds.labels("a\"b\\c", "failure").increment();
+        metrics.gauge("ci_queue_depth", "Jobs waiting", () -> 3);
+        Histogram stage = metrics.histogram("ci_stage_duration_seconds", "Stage time", 1000, 0, 2, "stage")
+                .labels("compile");
+        stage.record(1);
+        stage.record(3);
+        stage.record(10);
+
+        StringBuilder text = new StringBuilder();
+        metrics.write(text);
+        String out = text.toString();
+        assertTrue(out.contains("# TYPE ci_builds_total counter\n"), out);
+        assertTrue(out.contains("ci_builds_total{repo=\"owner/repo\",outcome=\"success\"} 2\n"), out);
+        assertTrue(out.contains("ci_builds_total{repo=\"a\\\"b\\\\c\",outcome=\"failure\"} 1\n"), out);
+        assertTrue(out.contains("# TYPE ci_queue_depth gauge\nci_queue_depth 3\n"), out);
+        assertTrue(out.contains("ci_stage_duration_seconds_bucket{stage=\"compile\",le=\"0.001\"} 1\n"
+                + "ci_stage_duration_seconds_bucket{stage=\"compile\",le=\"0.002\"} 1\n"
+                + "ci_stage_duration_seconds_bucket{stage=\"compile\",le=\"0.004\"} 2\n"
+                + "ci_stage_duration_seconds_bucket{stage=\"compile\",le=\"+Inf\"} 3\n"
+                + "ci_stage_duration_seconds_sum{stage=\"compile\"} 0.014\n"
+                + "ci_stage_duration_seconds_count{stage=\"compile\"} 3\n"), out);
+        assertThrows(IllegalArgumentException.class, () -> metrics.gauge("ci_queue_depth", "again", () -> 0));
+        assertThrows(IllegalArgumentException.class, () -> builds.labels("only one"));
+    }
+
+    @Test
+    public void readsProcessStatsFromProc() throws Exception {
+        assumeTrue(new File("/proc/self/stat").exists());
+        Process child = new ProcessBuilder("sleep", "5").start();
+        try {
+            assertTrue(ProcessStats.getRssBytes(child.pid()) > 0);
+            assertTrue(ProcessStats.getPeakRssBytes(ProcessHandle.current().pid()) > 0);
+            assertTrue(ProcessStats.getDescendantsRssBytes() >= ProcessStats.getRssBytes(child.pid()));
+            assertTrue(ProcessStats.getChildCpuMillis() >= 0);
+        } finally {
+            child.destroy();
+        }
+        assertEquals(0, ProcessStats.getRssBytes(Long.MAX_VALUE));
+    }
+}
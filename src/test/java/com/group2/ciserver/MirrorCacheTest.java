@@ -0,0 +1,79 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+public class MirrorCacheTest {
+
+    @Test
+    public void fetchesOnlyThePushedRef() throws Exception {
+        File remoteDir = Files.createTempDirectory("remoteRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).setInitialBranch("main").call();
+        RevCommit initial = remote.commit().setMessage("Initial").setAllowEmpty(true).call();
+        String url = remoteDir.getAbsolutePath();
+
+        MirrorCache cache = new MirrorCache(Files.createTempDirectory("mirrors").toFile());
+        File mirror = cache.ensureCommit(url, "refs/heads/main", initial.getName());
+
+        remote.checkout().setCreateBranch(true).setName("feature").call();
+        RevCommit onFeature = remote.commit().setMessage("Feature").setAllowEmpty(true).call();
+        remote.checkout().setName("main").call();
+        RevCommit onMain = remote.commit().setMessage("Main").setAllowEmpty(true).call();
+
+        cache.ensureCommit(url, "refs/heads/feature", onFeature.getName());
+
+        try (Git git = Git.open(mirror)) {
+            assertTrue(git.getRepository().getObjectDatabase().has(onFeature));
+            assertEquals(onFeature, git.getRepository().resolve("refs/heads/feature"));
+            assertEquals(initial, git.getRepository().resolve("refs/heads/main"));
+            assertFalse(git.getRepository().getObjectDatabase().has(onMain));
+        }
+    }
+
+    @Test
+    public void shallowMirrorOnlyHasRecentHistory() throws Exception {
+        File remoteDir = Files.createTempDirectory("shallowRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).setInitialBranch("main").call();
+        RevCommit old = remote.commit().setMessage("Old").setAllowEmpty(true).call();
+        RevCommit head = remote.commit().setMessage("Head").setAllowEmpty(true).call();
+        String repoName = remoteDir.getName();
+
+        System.setProperty("ci.repo." + repoName + ".depth", "1");
+        try {
+            MirrorCache cache = new MirrorCache(Files.createTempDirectory("mirrors").toFile());
+            File mirror = cache.ensureCommit(remoteDir.getAbsolutePath(), "refs/heads/main", head.getName());
+            try (Git git = Git.open(mirror)) {
+                assertTrue(git.getRepository().getObjectDatabase().has(head));
+                assertFalse(git.getRepository().getObjectDatabase().has(old));
+            }
+        } finally {
+            System.clearProperty("ci.repo." + repoName + ".depth");
+        }
+    }
+
+    @Test
+    public void commitsWithSameContentShareTree() throws Exception {
+        File remoteDir = Files.createTempDirectory("treeRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).setInitialBranch("main").call();
+        RevCommit first = remote.commit().setMessage("First").setAllowEmpty(true).call();
+        RevCommit amended = remote.commit().setMessage("Same tree").setAllowEmpty(true).call();
+
+        MirrorCache cache = new MirrorCache(Files.createTempDirectory("mirrors").toFile());
+        File mirror = cache.ensureCommit(remoteDir.getAbsolutePath(), "refs/heads/main", amended.getName());
+        assertEquals(MirrorCache.treeOf(mirror, first.getName()), MirrorCache.treeOf(mirror, amended.getName()));
+    }
+
+    @Test
+    public void repositoriesAreKeyedByOwnerAndName() {
+        assertEquals("jolinefrisk/ci-server", MirrorCache.repoKey("https://github.com/jolinefrisk/ci-server.git"));
+        assertEquals("jolinefrisk/ci-server", MirrorCache.repoKey("git@github.com:jolinefrisk/ci-server.git"));
+        assertEquals("other/ci-server", MirrorCache.repoKey("https://github.com/other/ci-server/"));
+        assertEquals("_/_", MirrorCache.repoKey("https://github.com/../.."));
+    }
+}
@@ -0,0 +1,110 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class ProcessSupervisorTest {
+
+    private static ProcessSupervisor supervisor(long timeoutMillis, long idleMillis) {
+        return new ProcessSupervisor(timeoutMillis, idleMillis, 0, 0, null, true);
+    }
+
+    private static ProcessBuilder bash(String script) {
+        return new ProcessBuilder("bash", "-c", script);
+    }
+
+    private static void assertExits(long pid) throws InterruptedException {
+        Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+        for (int i = 0; i < 50 && handle.isPresent() && handle.get().isAlive(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(handle.isPresent() && handle.get().isAlive(), "process " + pid + " is still running");
+    }
+
+    @Test
+    public void silentProcessIsKilledWithItsChildren() throws Exception {
+        List<String> lines = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        ProcessSupervisor.Supervised process = supervisor(60000, 500).start(bash("sleep 30 & echo $!; sleep 30"));
+        ProcessOutput.drain(process, lines::add);
+        process.waitFor();
+
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals("no output for 500 ms", process.getTimeout());
+        assertExits(Long.parseLong(lines.get(0)));
+    }
+
+    @Test
+    public void processRunningTooLongIsKilledEvenWhileItPrints() throws Exception {
+        long start = System.currentTimeMillis();
+        ProcessSupervisor.Supervised process = supervisor(500, 60000)
+                .start(bash("while true; do echo tick; sleep 0.05; done"));
+        ProcessOutput.drain(process, line -> {
+        });
+        process.waitFor();
+
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals("running for more than 500 ms", process.getTimeout());
+    }
+
+    @Test
+    public void finishedProcessIsNotKilled() throws Exception {
+        ProcessSupervisor.Supervised process = supervisor(60000, 60000).start(bash("echo done"));
+        ProcessOutput.drain(process, line -> {
+        });
+
+        assertEquals(0, process.waitFor());
+        assertNull(process.getTimeout());
+    }
+
+    @Test
+    public void childrenLeftBehindAreKilledWhenTheProcessExits() throws Exception {
+        List<String> lines = new ArrayList<>();
+        ProcessSupervisor.Supervised process = supervisor(60000, 2000).start(bash("sleep 30 & echo $!; sleep 1.5"));
+        ProcessOutput.drain(process, lines::add);
+
+        assertEquals(0, process.waitFor());
+        assertNull(process.getTimeout());
+        assertExits(Long.parseLong(lines.get(0)));
+    }
+
+    @Test
+    public void resourcesAreAddedToTheJob() throws Exception {
+        ProcessSupervisor supervisor = supervisor(60000, 2000);
+        Exception[] failure = new Exception[1];
+        BuildJob job = new BuildJob("repo", 0, () -> {
+            try {
+                ProcessSupervisor.Supervised process = supervisor
+                        .start(bash("end=$((SECONDS + 2)); while [ $SECONDS -lt $end ]; do :; done"));
+                ProcessOutput.drain(process, line -> {
+                });
+                process.waitFor();
+            } catch (Exception e) {
+                failure[0] = e;
+            }
+        });
+        job.run();
+
+        assertNull(failure[0]);
+        assertTrue(job.getCpuMillis() > 0, "CPU time " + job.getCpuMillis());
+        assertTrue(job.getPeakRssBytes() > 0, "peak memory " + job.getPeakRssBytes());
+    }
+
+    @Test
+    public void withoutACgroupOnlyTheHeapOfMavenIsSized() throws Exception {
+        List<String> lines = new ArrayList<>();
+        ProcessBuilder builder = bash("echo \"$MAVEN_OPTS\"");
+        builder.environment().put("MAVEN_OPTS", "-Dx=1");
+        ProcessSupervisor.Supervised process = new ProcessSupervisor(60000, 60000, 512L << 20, 0, null, true)
+                .start(builder);
+        ProcessOutput.drain(process, lines::add);
+
+        assertEquals(0, process.waitFor());
+        assertEquals(List.of("-Dx=1 -XX:MaxRAM=" + (512L << 20)), lines);
+        assertEquals("-Dx=1", builder.environment().get("MAVEN_OPTS"));
+    }
+}
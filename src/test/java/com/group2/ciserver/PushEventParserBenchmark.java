@@ -0,0 +1,63 @@
+package com.group2.ciserver;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link PushEventParser} with reading the body through
+ * {@link ContinuousIntegrationServer#getPayload(BufferedReader)} on push
+ * payloads of different sizes. Run with {@code -prof gc} to see the
+ * allocation per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PushEventParserBenchmark {
+
+    @Param({ "1", "20", "300" })
+    public int commits;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = PushEventParserTest.payload(commits).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public PushEvent jsonObject() {
+        return PushEvent.fromJSON(ContinuousIntegrationServer.getPayload(
+                new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))));
+    }
+
+    @Benchmark
+    public PushEvent streaming() throws IOException {
+        return PushEventParser.parse(new ByteArrayInputStream(body), Long.MAX_VALUE);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PushEventParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
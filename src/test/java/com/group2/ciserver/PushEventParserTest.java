@@ -0,0 +1,116 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class PushEventParserTest {
+
+    /**
+     * Returns a push payload in the shape GitHub sends, with the given
+     * number of commits.
+     *
+     * @param commits the number of commits
+     * @return the payload
+     */
+    static String payload(int commits) {
+        JSONObject owner = new JSONObject().put("name", "jolinefrisk").put("login", "jolinefrisk")
+                .put("id", 1234567).put("url", "https://api.github.com/users/jolinefrisk").put("type", "User")
+                .put("site_admin", false);
+        JSONObject repository = new JSONObject().put("id", 918273645).put("name", "ci-server")
+                .put("full_name", "jolinefrisk/ci-server").put("private", false).put("owner", owner)
+                .put("description", JSONObject.NULL).put("fork", false)
+                .put("clone_url", "https://github.com/jolinefrisk/ci-server.git")
+                .put("default_branch", "main").put("size", 412).put("stargazers_count", 3)
+                .put("topics", new JSONArray());
+        JSONArray list = new JSONArray();
+        for (int i = 0; i < commits; i++) {
+            String id = String.format("%040x", i + 1);
+            list.put(new JSONObject().put("id", id).put("tree_id", String.format("%040x", i + 7))
+                    .put("distinct", true)
+                    .put("message", "Change number " + i + "\n\nWith a longer body explaining the change in detail.")
+                    .put("timestamp", "2025-02-10T12:00:00+01:00")
+                    .put("url", "https://github.com/jolinefrisk/ci-server/commit/" + id)
+                    .put("author", new JSONObject().put("name", "Joline Frisk").put("email", "joline@example.com")
+                            .put("username", "jolinefrisk"))
+                    .put("committer", new JSONObject().put("name", "GitHub").put("email", "noreply@github.com"))
+                    .put("added", new JSONArray().put("src/main/java/com/group2/ciserver/New" + i + ".java"))
+                    .put("removed", new JSONArray())
+                    .put("modified", new JSONArray().put("README.md")
+                            .put("src/main/java/com/group2/ciserver/ContinuousIntegrationServer.java")));
+        }
+        return new JSONObject().put("ref", "refs/heads/main").put("before", String.format("%040x", 0))
+                .put("after", String.format("%040x", commits)).put("repository", repository)
+                .put("pusher", new JSONObject().put("name", "jolinefrisk").put("email", "joline@example.com"))
+                .put("created", false).put("deleted", false).put("forced", false)
+                .put("compare", "https://github.com/jolinefrisk/ci-server/compare/a...b")
+                .put("commits", list).put("head_commit", commits > 0 ? list.get(commits - 1) : JSONObject.NULL)
+                .toString();
+    }
+
+    private static PushEvent parse(String body, long maxBytes) throws IOException {
+        return PushEventParser.parse(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), maxBytes);
+    }
+
+    @Test
+    public void extractsTheFieldsOfALargePush() throws Exception {
+        String body = payload(300);
+        PushEvent push = parse(body, Long.MAX_VALUE);
+        JSONObject json = new JSONObject(body);
+
+        assertEquals(json.getString("ref"), push.getRef());
+        assertEquals(json.getString("after"), push.getAfter());
+        assertEquals(json.getString("before"), push.getBefore());
+        assertEquals("https://github.com/jolinefrisk/ci-server.git", push.getCloneUrl());
+        assertEquals("ci-server", push.getRepoName());
+        assertEquals("jolinefrisk", push.getOwner());
+        // the same fields as the JSONObject path
+        assertEquals(PushEvent.fromJSON(json).toJSON().toString(), push.toJSON().toString());
+    }
+
+    @Test
+    public void ignoresNestedFieldsWithWantedNamesAndDecodesEscapes() throws Exception {
+        String body = "{\"commits\":[{\"name\":\"x\",\"ref\":\"no\",\"n\":-1.5e3,\"ok\":true,\"v\":null}],"
+                + "\"repository\":{\"full_name\":\"a/b\",\"name\":\"r\\u00e9po\",\"owner\":{\"login\":\"me\"},"
+                + "\"clone_url\":\"https:\\/\\/example.com\\/r.git\"},\"ref\":\"refs/heads/ma\\\"in\"}";
+        PushEvent push = parse(body, 1000);
+        assertEquals("r\u00e9po", push.getRepoName());
+        assertEquals("me", push.getOwner());
+        assertEquals("https://example.com/r.git", push.getCloneUrl());
+        assertEquals("refs/heads/ma\"in", push.getRef());
+        assertNull(push.getAfter());
+    }
+
+    @Test
+    public void payloadWithoutRepositoryIsNoPush() throws Exception {
+        assertNull(parse("{\"zen\":\"Keep it simple.\",\"hook_id\":1}", 1000));
+    }
+
+    @Test
+    public void rejectsOversizedAndMalformedBodies() {
+        String body = payload(50);
+        PayloadException tooLarge = assertThrows(PayloadException.class, () -> parse(body, 10_000));
+        assertEquals(413, tooLarge.getStatus());
+
+        for (String malformed : new String[] { "", "[]", "{\"a\":1", "{\"a\":[1,}", "{\"a\" 1}",
+                "{\"repository\":{\"name\":\"x}", "{} {}", "{\"a\":\"\n\"}", "{\"a\":nul}",
+                "{\"a\":nullx}", "{\"a\":tru}", "{\"a\":01}", "{\"a\":1.}", "{\"a\":-}", "{\"a\":1e}" }) {
+            PayloadException e = assertThrows(PayloadException.class, () -> parse(malformed, 1000), malformed);
+            assertEquals(400, e.getStatus());
+        }
+    }
+
+    @Test
+    public void branchDeletionIsNoBuild() throws Exception {
+        JSONObject json = new JSONObject(payload(0)).put("after", String.format("%040x", 0)).put("deleted", true);
+        PushEvent push = parse(json.toString(), Long.MAX_VALUE);
+        assertTrue(push.isDeletion());
+        assertFalse(parse(payload(1), Long.MAX_VALUE).isDeletion());
+    }
+}
@@ -0,0 +1,122 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static com.group2.ciserver.TestRepos.commit;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+
+public class ReactorModulesTest {
+
+    private static String pom(String artifactId, String modules, String dependencies) {
+        return "<?xml version=\"1.0\"?>\n<project xmlns=\"http://maven.apache.org/POM/4.0.0\">"
+                + (artifactId.equals("root") ? "<groupId>g</groupId>"
+                        : "<parent><groupId>g</groupId><artifactId>root</artifactId></parent>")
+                + "<artifactId>" + artifactId + "</artifactId>"
+                + "<modules>" + modules + "</modules>"
+                + "<dependencies>" + dependencies + "</dependencies></project>";
+    }
+
+    private static String dependency(String artifactId) {
+        return "<dependency><groupId>${project.groupId}</groupId><artifactId>" + artifactId
+                + "</artifactId></dependency>";
+    }
+
+    /**
+     * A reactor where web depends on core, app on web, and tools on nothing.
+     */
+    private static Git reactor() throws Exception {
+        Git git = Git.init().setDirectory(Files.createTempDirectory("reactor").toFile()).call();
+        commit(git, "pom.xml", pom("root",
+                "<module>core</module><module>web</module><module>apps/app/pom.xml</module><module>tools</module>",
+                ""));
+        commit(git, "core/pom.xml", pom("core", "", ""));
+        commit(git, "core/src/main/java/Core.java", "class Core {}");
+        commit(git, "web/pom.xml", pom("web", "", dependency("core")));
+        commit(git, "web/src/main/java/Web.java", "class Web {}");
+        commit(git, "apps/app/pom.xml", pom("app", "", dependency("web")));
+        commit(git, "apps/app/src/main/java/App.java", "class App {}");
+        commit(git, "tools/pom.xml", pom("tools", "", dependency("junit")));
+        commit(git, "tools/src/main/java/Tool.java", "class Tool {}");
+        return git;
+    }
+
+    @Test
+    public void changedModuleIsBuiltWithItsDependents() throws Exception {
+        Git git = reactor();
+        File dir = git.getRepository().getWorkTree();
+        String before = git.getRepository().resolve("HEAD").getName();
+        String after = commit(git, "core/src/main/java/Core.java", "class Core { int x; }").getName();
+
+        ReactorModules.Selection selection = ReactorModules.select(dir, before, after);
+        assertFalse(selection.isFull());
+        assertEquals(List.of("apps/app", "core", "web"), selection.getModules());
+        assertTrue(selection.includes("pom.xml"));
+        assertTrue(selection.includes("web/src/main/java/Web.java"));
+        assertTrue(selection.includes("tools/pom.xml"));
+        assertFalse(selection.includes("tools/src/main/java/Tool.java"));
+    }
+
+    @Test
+    public void dependenciesOfTheChangedModuleAreOnlyCheckedOut() throws Exception {
+        Git git = reactor();
+        File dir = git.getRepository().getWorkTree();
+        String before = git.getRepository().resolve("HEAD").getName();
+        String after = commit(git, "web/src/main/java/Web.java", "class Web { int x; }").getName();
+
+        ReactorModules.Selection selection = ReactorModules.select(dir, before, after);
+        assertEquals(List.of("apps/app", "web"), selection.getModules());
+        assertTrue(selection.includes("core/src/main/java/Core.java"));
+        assertFalse(selection.includes("tools/src/main/java/Tool.java"));
+    }
+
+    @Test
+    public void changesOutsideModulesBuildEverything() throws Exception {
+        Git git = reactor();
+        File dir = git.getRepository().getWorkTree();
+        String before = git.getRepository().resolve("HEAD").getName();
+        String after = commit(git, ".mvn/maven.config", "-T 4").getName();
+
+        ReactorModules.Selection selection = ReactorModules.select(dir, before, after);
+        assertTrue(selection.isFull());
+        assertTrue(selection.includes("tools/src/main/java/Tool.java"));
+        assertTrue(ReactorModules.select(dir, "0000000000000000000000000000000000000000", after).isFull());
+    }
+
+    @Test
+    public void modulesUsedByPluginsAndProfilesAreUpstream() throws Exception {
+        Git git = reactor();
+        File dir = git.getRepository().getWorkTree();
+        commit(git, "tools/pom.xml", pom("tools", "", "").replace("</project>",
+                "<build><plugins><plugin><groupId>g</groupId><artifactId>checker</artifactId>"
+                        + "<dependencies>" + dependency("core") + "</dependencies></plugin></plugins></build>"
+                        + "<profiles><profile><dependencies>" + dependency("web") + "</dependencies></profile>"
+                        + "</profiles></project>"));
+        String before = git.getRepository().resolve("HEAD").getName();
+        String after = commit(git, "core/src/main/java/Core.java", "class Core { int x; }").getName();
+        assertEquals(List.of("apps/app", "core", "tools", "web"),
+                ReactorModules.select(dir, before, after).getModules());
+
+        before = after;
+        after = commit(git, "web/src/main/java/Web.java", "class Web { int x; }").getName();
+        assertEquals(List.of("apps/app", "tools", "web"), ReactorModules.select(dir, before, after).getModules());
+    }
+
+    @Test
+    public void modulesOfProfilesBuildEverything() throws Exception {
+        Git git = reactor();
+        File dir = git.getRepository().getWorkTree();
+        commit(git, "tools/pom.xml", pom("tools", "", "").replace("</project>",
+                "<profiles><profile><modules><module>extra</module></modules></profile></profiles></project>"));
+        String before = git.getRepository().resolve("HEAD").getName();
+        String after = commit(git, "core/src/main/java/Core.java", "class Core { int x; }").getName();
+
+        ReactorModules.Selection selection = ReactorModules.select(dir, before, after);
+        assertTrue(selection.isFull());
+        assertTrue(selection.describe().contains("tools/pom.xml declares modules in a profile"));
+    }
+}
@@ -0,0 +1,50 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.json.JSONObject;
+
+public class ResultCacheTest {
+
+    @Test
+    public void entriesSurviveRestart() throws Exception {
+        File file = new File(Files.createTempDirectory("cache").toFile(), "cache.json");
+        String fingerprint = ResultCache.fingerprint(List.of("mvn clean compile", "mvn test"));
+        new ResultCache(file, 10, 60000).put("tree1", fingerprint, "sha1", 7);
+
+        ResultCache reopened = new ResultCache(file, 10, 60000);
+        JSONObject entry = reopened.get("tree1", fingerprint);
+        assertNotNull(entry);
+        assertEquals(7, entry.getLong("buildId"));
+        assertEquals("sha1", entry.getString("sha"));
+        assertNull(reopened.get("tree1", ResultCache.fingerprint(List.of("mvn verify"))));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws Exception {
+        File file = new File(Files.createTempDirectory("cache").toFile(), "cache.json");
+        ResultCache cache = new ResultCache(file, 2, 60000);
+        cache.put("tree1", "fp", "sha1", 1);
+        cache.put("tree2", "fp", "sha2", 2);
+        assertNotNull(cache.get("tree1", "fp"));
+        cache.put("tree3", "fp", "sha3", 3);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("tree1", "fp"));
+        assertNull(cache.get("tree2", "fp"));
+        assertNotNull(cache.get("tree3", "fp"));
+    }
+
+    @Test
+    public void expiredEntriesAreMisses() throws Exception {
+        File file = new File(Files.createTempDirectory("cache").toFile(), "cache.json");
+        ResultCache cache = new ResultCache(file, 10, -1);
+        cache.put("tree1", "fp", "sha1", 1);
+        assertNull(cache.get("tree1", "fp"));
+    }
+}
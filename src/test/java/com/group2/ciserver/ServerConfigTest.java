@@ -0,0 +1,99 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+public class ServerConfigTest {
+
+    private static class SlowHandler extends AbstractHandler {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        volatile String thread;
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                HttpServletResponse response) throws java.io.IOException {
+            baseRequest.setHandled(true);
+            thread = Thread.currentThread().toString();
+            started.countDown();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.incrementAndGet();
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().print("done");
+        }
+    }
+
+    private static int get(int port) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/").openConnection();
+        int code = connection.getResponseCode();
+        assertEquals("done", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+        return code;
+    }
+
+    @Test
+    public void stoppingWaitsForRequestsBeingHandled() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setThreads(4, 12);
+        SlowHandler handler = new SlowHandler();
+        Server server = config.createServer(handler);
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        assertEquals(12, ((QueuedThreadPool) server.getThreadPool()).getMaxThreads());
+
+        AtomicInteger code = new AtomicInteger();
+        Thread client = new Thread(() -> {
+            try {
+                code.set(get(port));
+            } catch (Exception e) {
+                code.set(-1);
+            }
+        });
+        client.start();
+        assertTrue(handler.started.await(5, TimeUnit.SECONDS));
+        server.stop();
+        client.join(5000);
+
+        assertEquals(1, handler.handled.get());
+        assertEquals(200, code.get());
+    }
+
+    @Test
+    public void virtualThreadsFallBackToThePool() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setVirtualThreads(true);
+        SlowHandler handler = new SlowHandler();
+        Server server = config.createServer(handler);
+        server.start();
+        try {
+            assertEquals(200, get(((ServerConnector) server.getConnectors()[0]).getLocalPort()));
+            assertEquals(!VirtualThreads.isSupported(), server.getThreadPool() instanceof QueuedThreadPool);
+            if (VirtualThreads.isSupported()) {
+                assertTrue(handler.thread.contains("VirtualThread"), handler.thread);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class StatusPublisherTest {
+
+    private HttpServer server;
+    private File dir;
+    private final List<JSONObject> received = new CopyOnWriteArrayList<>();
+    private final List<String> paths = new CopyOnWriteArrayList<>();
+    private final List<Long> times = new CopyOnWriteArrayList<>();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private volatile IntSupplier responses = () -> 201;
+    private volatile String rateLimitReset = null;
+
+    @BeforeEach
+    public void startStub() throws Exception {
+        dir = Files.createTempDirectory("statuses").toFile();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::respond);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopStub() {
+        server.stop(0);
+        WorkspaceManager.delete(dir);
+    }
+
+    private void respond(HttpExchange exchange) throws java.io.IOException {
+        paths.add(exchange.getRequestURI().getPath());
+        times.add(System.currentTimeMillis());
+        received.add(new JSONObject(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)));
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int code = responses.getAsInt();
+        if (rateLimitReset != null && code == 403) {
+            exchange.getResponseHeaders().add("X-RateLimit-Remaining", "0");
+            exchange.getResponseHeaders().add("X-RateLimit-Reset", rateLimitReset);
+        }
+        exchange.sendResponseHeaders(code, -1);
+        exchange.close();
+    }
+
+    private StatusPublisher publisher(String url) {
+        return new StatusPublisher(url, "ci-server", "token", new File(dir, "outbox.json"), 50);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Test
+    public void collapsesStatusesQueuedWhileSending() throws Exception {
+        release = new CountDownLatch(1);
+        StatusPublisher publisher = publisher(url());
+        publisher.publish("owner", "repo", "abc", "pending", "Queued", "token");
+        while (received.isEmpty()) {
+            Thread.sleep(10);
+        }
+        publisher.publish("owner", "repo", "abc", "pending", "Compiling", "token");
+        publisher.publish("owner", "repo", "abc", "success", "All tests passed", "token");
+        release.countDown();
+
+        assertTrue(publisher.awaitEmpty(5000));
+        assertEquals(2, received.size());
+        assertEquals("success", received.get(1).getString("state"));
+        assertEquals("ci-server", received.get(1).getString("context"));
+        assertEquals("/repos/owner/repo/statuses/abc", paths.get(1));
+        publisher.close();
+    }
+
+    @Test
+    public void retriesServerErrorsAndWaitsForRateLimitReset() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        responses = () -> calls.incrementAndGet() == 1 ? 502 : calls.get() == 2 ? 403 : 201;
+        rateLimitReset = String.valueOf(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 1);
+        StatusPublisher publisher = publisher(url());
+        publisher.publish("owner", "repo", "abc", "failure", "One test failed", "token");
+
+        assertTrue(publisher.awaitEmpty(5000));
+        assertEquals(3, received.size());
+        assertEquals(1, publisher.getSent());
+        assertTrue(times.get(2) >= TimeUnit.SECONDS.toMillis(Long.parseLong(rateLimitReset)));
+        assertEquals(3, publisher.getLatency().getCount());
+        assertEquals(0, publisher.getRateLimitRemaining());
+        publisher.close();
+    }
+
+    @Test
+    public void outboxSurvivesRestart() throws Exception {
+        // nothing listens on the closed stub, so the status stays queued
+        HttpServer closed = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        String closedUrl = "http://127.0.0.1:" + closed.getAddress().getPort();
+        closed.stop(0);
+        StatusPublisher offline = publisher(closedUrl);
+        offline.publish("owner", "repo", "abc", "success", "All tests passed", "token");
+        assertFalse(offline.awaitEmpty(200));
+        offline.close();
+
+        StatusPublisher restarted = publisher(url());
+        assertTrue(restarted.awaitEmpty(5000));
+        assertEquals(1, received.size());
+        assertEquals("All tests passed", received.get(0).getString("description"));
+        restarted.close();
+    }
+
+    @Test
+    public void rejectedStatusesAreDropped() throws Exception {
+        responses = () -> 422;
+        StatusPublisher publisher = publisher(url());
+        publisher.publish("owner", "repo", "abc", "success", "x".repeat(200), "token");
+        assertTrue(publisher.awaitEmpty(5000));
+        assertEquals(1, publisher.getDropped());
+        assertEquals(140, received.get(0).getString("description").length());
+        publisher.close();
+    }
+}
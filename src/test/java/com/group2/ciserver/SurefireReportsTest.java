@@ -0,0 +1,74 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.json.JSONObject;
+
+public class SurefireReportsTest {
+
+    private static final String REPORT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<testsuite name=\"com.example.AppTest\" tests=\"4\" failures=\"1\" errors=\"1\" skipped=\"1\">\n"
+            + "  <properties><property name=\"java.version\" value=\"11\"/></properties>\n"
+            + "  <testcase name=\"passes\" classname=\"com.example.AppTest\" time=\"0.5\"/>\n"
+            + "  <testcase name=\"fails\" classname=\"com.example.AppTest\" time=\"1,250.0\">\n"
+            + "    <failure message=\"expected true\" type=\"AssertionFailedError\">trace</failure>\n"
+            + "  </testcase>\n"
+            + "  <testcase name=\"breaks\" classname=\"com.example.AppTest\" time=\"0.1\">\n"
+            + "    <error type=\"NullPointerException\"/>\n"
+            + "  </testcase>\n"
+            + "  <testcase name=\"ignored\" classname=\"com.example.AppTest\" time=\"0\">\n"
+            + "    <skipped/>\n"
+            + "  </testcase>\n"
+            + "</testsuite>\n";
+
+    @Test
+    public void parseCountsEveryKindOfResult() throws Exception {
+        SurefireReports.Summary summary = new SurefireReports.Summary();
+        SurefireReports.parse(new ByteArrayInputStream(REPORT.getBytes(StandardCharsets.UTF_8)), summary);
+
+        assertEquals(4, summary.getTests());
+        assertEquals(1, summary.getFailures());
+        assertEquals(1, summary.getErrors());
+        assertEquals(1, summary.getSkipped());
+        assertFalse(summary.isPassed());
+        assertEquals("1 of 4 tests passed, 2 failed, 1 skipped", summary.describe());
+        assertEquals(1250.6, summary.getClassSeconds().get("com.example.AppTest"), 1e-9);
+
+        JSONObject slowest = summary.toJSON().getJSONArray("slowest").getJSONObject(0);
+        assertEquals("com.example.AppTest#fails", slowest.getString("name"));
+    }
+
+    @Test
+    public void readIgnoresReportsFromEarlierBuilds() throws Exception {
+        File project = Files.createTempDirectory("surefire").toFile();
+        File reports = new File(project, "core/target/surefire-reports");
+        assertTrue(reports.mkdirs());
+        File stale = new File(reports, "TEST-com.example.OldTest.xml");
+        File fresh = new File(reports, "TEST-com.example.AppTest.xml");
+        Files.write(stale.toPath(), REPORT.getBytes(StandardCharsets.UTF_8));
+        Files.write(fresh.toPath(), REPORT.getBytes(StandardCharsets.UTF_8));
+        long buildStart = System.currentTimeMillis();
+        assertTrue(stale.setLastModified(buildStart - 60_000));
+        assertTrue(fresh.setLastModified(buildStart + 1_000));
+
+        SurefireReports.Summary summary = SurefireReports.read(project, buildStart);
+
+        assertEquals(4, summary.getTests());
+        WorkspaceManager.delete(project);
+    }
+
+    @Test
+    public void readWithoutReportsHasNoTests() throws Exception {
+        File project = Files.createTempDirectory("surefire").toFile();
+        SurefireReports.Summary summary = SurefireReports.read(project, 0);
+        assertEquals(0, summary.getTests());
+        assertTrue(summary.isPassed());
+        WorkspaceManager.delete(project);
+    }
+}
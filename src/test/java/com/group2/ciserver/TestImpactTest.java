@@ -0,0 +1,107 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static com.group2.ciserver.TestRepos.commit;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.api.Git;
+
+public class TestImpactTest {
+
+    private static void copyClass(Class<?> type, File classesDir) throws Exception {
+        String path = type.getName().replace('.', '/') + ".class";
+        File target = new File(classesDir, path);
+        target.getParentFile().mkdirs();
+        try (InputStream in = type.getResourceAsStream("/" + path)) {
+            Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Test
+    public void sourceClassMapsMavenSourcePaths() {
+        assertEquals("com.example.App", TestImpact.sourceClass("core/src/main/java/com/example/App.java"));
+        assertEquals("com.example.AppTest", TestImpact.sourceClass("src/test/java/com/example/AppTest.java"));
+        assertNull(TestImpact.sourceClass("pom.xml"));
+        assertNull(TestImpact.sourceClass("src/main/resources/app.properties"));
+    }
+
+    @Test
+    public void readReferencesFindsClassesInConstantPool() throws Exception {
+        Set<String> referenced = new HashSet<>();
+        try (InputStream in = TestImpact.class.getResourceAsStream("TestImpact.class")) {
+            assertEquals("com.group2.ciserver.TestImpact", TestImpact.readReferences(in, referenced));
+        }
+        assertTrue(referenced.contains("com.group2.ciserver.Config"));
+        assertTrue(referenced.contains("org.json.JSONObject"));
+        assertFalse(referenced.contains("com.group2.ciserver.TestImpact"));
+    }
+
+    @Test
+    public void selectsOnlyTestsReachingChangedClasses() throws Exception {
+        File repoDir = Files.createTempDirectory("tia-repo").toFile();
+        File project = Files.createTempDirectory("tia-project").toFile();
+        File index = new File(Files.createTempDirectory("tia-index").toFile(), "repo.json");
+        try (Git git = Git.init().setDirectory(repoDir).call()) {
+            String config = "src/main/java/com/group2/ciserver/Config.java";
+            String green = commit(git, config, "class Config {}").getName();
+
+            // TestImpactTest reaches Config through TestImpact, SurefireReportsTest does not
+            copyClass(TestImpact.class, new File(project, "target/classes"));
+            copyClass(Config.class, new File(project, "target/classes"));
+            copyClass(SurefireReports.class, new File(project, "target/classes"));
+            copyClass(TestImpactTest.class, new File(project, "target/test-classes"));
+            copyClass(SurefireReportsTest.class, new File(project, "target/test-classes"));
+            TestImpact impact = new TestImpact(index, 20, Long.MAX_VALUE);
+            assertTrue(impact.select(repoDir, green).isFull());
+            impact.update(project, green, true);
+
+            String changed = commit(git, config, "class Config { }").getName();
+            TestImpact.Selection selection = impact.select(repoDir, changed);
+            assertFalse(selection.isFull());
+            assertEquals(List.of("com.group2.ciserver.TestImpactTest"), selection.getTests());
+            impact.update(project, changed, false);
+
+            String docs = commit(git, "README.md", "docs").getName();
+            assertEquals(List.of(), impact.select(repoDir, docs).getTests());
+
+            String pom = commit(git, "pom.xml", "<project/>").getName();
+            assertTrue(impact.select(repoDir, pom).isFull());
+        } finally {
+            WorkspaceManager.delete(repoDir);
+            WorkspaceManager.delete(project);
+            WorkspaceManager.delete(index.getParentFile());
+        }
+    }
+
+    @Test
+    public void runsAllTestsPeriodically() throws Exception {
+        File repoDir = Files.createTempDirectory("tia-repo").toFile();
+        File project = Files.createTempDirectory("tia-project").toFile();
+        File index = new File(Files.createTempDirectory("tia-index").toFile(), "repo.json");
+        try (Git git = Git.init().setDirectory(repoDir).call()) {
+            String first = commit(git, "src/main/java/A.java", "class A {}").getName();
+            TestImpact impact = new TestImpact(index, 2, Long.MAX_VALUE);
+            impact.update(project, first, true);
+            String second = commit(git, "src/main/java/A.java", "class A { }").getName();
+            assertFalse(impact.select(repoDir, second).isFull());
+            impact.update(project, second, false);
+            String third = commit(git, "src/main/java/A.java", "class A {  }").getName();
+            assertFalse(impact.select(repoDir, third).isFull());
+            impact.update(project, third, false);
+            String fourth = commit(git, "src/main/java/A.java", "class A {   }").getName();
+            assertTrue(impact.select(repoDir, fourth).isFull());
+        } finally {
+            WorkspaceManager.delete(repoDir);
+            WorkspaceManager.delete(project);
+            WorkspaceManager.delete(index.getParentFile());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.group2.ciserver;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Git repositories for the tests.
+ */
+final class TestRepos {
+
+    private TestRepos() {
+    }
+
+    /**
+     * Writes a file of a repository and commits it.
+     *
+     * @param git     the repository
+     * @param path    the path of the file in the repository
+     * @param content the new content of the file
+     * @return the commit
+     */
+    static RevCommit commit(Git git, String path, String content) throws Exception {
+        File file = new File(git.getRepository().getWorkTree(), path);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        git.add().addFilepattern(path).call();
+        return git.commit().setMessage("Change " + path).call();
+    }
+}
@@ -0,0 +1,47 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+public class TestShardsTest {
+
+    @Test
+    public void planBalancesByDuration() {
+        Map<String, Double> durations = Map.of("A", 10.0, "B", 6.0, "C", 4.0, "D", 2.0, "E", 2.0);
+        List<List<String>> plan = TestShards.plan(List.of("A", "B", "C", "D", "E"), durations, 2);
+        assertEquals(List.of(List.of("A", "D"), List.of("B", "C", "E")), plan);
+    }
+
+    @Test
+    public void planNeverCreatesEmptyShards() {
+        assertEquals(List.of(List.of("A"), List.of("B")), TestShards.plan(List.of("A", "B"), Map.of(), 4));
+        assertEquals(List.of(), TestShards.plan(List.of(), Map.of(), 4));
+    }
+
+    @Test
+    public void durationsAndTestClassesAreFound() throws Exception {
+        File dir = Files.createTempDirectory("shards").toFile();
+        try {
+            File classes = new File(dir, "core/target/test-classes/com/example");
+            assertTrue(classes.mkdirs());
+            for (String name : new String[] { "AppTest", "AppTest$Nested", "Helper", "TestUtilTests" }) {
+                assertTrue(new File(classes, name + ".class").createNewFile());
+            }
+            assertEquals(List.of("com.example.AppTest", "com.example.TestUtilTests"),
+                    TestShards.findTestClasses(dir));
+
+            TestShards shards = new TestShards(new File(dir, "durations/repo.json"));
+            shards.record(Map.of("com.example.AppTest", 3.5));
+            shards.record(Map.of("com.example.TestUtilTests", 1.0));
+            assertEquals(Map.of("com.example.AppTest", 3.5, "com.example.TestUtilTests", 1.0),
+                    shards.getDurations());
+        } finally {
+            WorkspaceManager.delete(dir);
+        }
+    }
+}
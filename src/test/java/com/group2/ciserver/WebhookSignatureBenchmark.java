@@ -0,0 +1,70 @@
+package com.group2.ciserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures what checking the webhook signature adds to reading a push
+ * payload, by parsing the same body with and without
+ * {@link WebhookSignature.SignedBody} around it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebhookSignatureBenchmark {
+
+    private static final String SECRET = "benchmark-secret";
+
+    @Param({ "1", "20", "300" })
+    public int commits;
+
+    private byte[] body;
+    private String header;
+    private WebhookSignature signature;
+
+    @Setup
+    public void setUp() throws Exception {
+        body = PushEventParserTest.payload(commits).getBytes(StandardCharsets.UTF_8);
+        header = WebhookSignatureTest.sign(SECRET, body);
+        signature = new WebhookSignature(SECRET);
+    }
+
+    @Benchmark
+    public PushEvent unsigned() throws IOException {
+        return PushEventParser.parse(new ByteArrayInputStream(body), Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public PushEvent signed() throws IOException {
+        WebhookSignature.SignedBody signed = signature.open(new ByteArrayInputStream(body), header);
+        PushEvent push = PushEventParser.parse(signed, Long.MAX_VALUE);
+        if (!signed.isValid()) {
+            throw new IllegalStateException("signature does not match");
+        }
+        return push;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WebhookSignatureBenchmark.class.getSimpleName()).build()).run();
+    }
+}
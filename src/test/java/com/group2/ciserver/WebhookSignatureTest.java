@@ -0,0 +1,93 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class WebhookSignatureTest {
+
+    // the example of the GitHub documentation on validating webhook deliveries
+    private static final String SECRET = "It's a Secret to Everybody";
+    private static final String SIGNATURE = "sha256=757107ea0eb2509fc211221cce984b8a37570b6d7586c22c46f4379c8b043e17";
+
+    /**
+     * Returns the header GitHub would send with a body.
+     */
+    static String sign(String secret, byte[] body) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        StringBuilder header = new StringBuilder("sha256=");
+        for (byte b : mac.doFinal(body)) {
+            header.append(String.format("%02x", b));
+        }
+        return header.toString();
+    }
+
+    private static InputStream body(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void acceptsTheSignatureOfTheBodyRead() throws Exception {
+        WebhookSignature signature = new WebhookSignature(SECRET);
+        WebhookSignature.SignedBody body = signature.open(body("Hello, World!"), SIGNATURE);
+        assertEquals("Hello, World!", new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        assertTrue(body.isValid());
+    }
+
+    @Test
+    public void rejectsOtherBodiesSecretsAndHeaders() throws Exception {
+        WebhookSignature signature = new WebhookSignature(SECRET);
+        WebhookSignature.SignedBody tampered = signature.open(body("Hello, World?"), SIGNATURE);
+        tampered.readAllBytes();
+        assertFalse(tampered.isValid());
+
+        WebhookSignature.SignedBody otherSecret = new WebhookSignature("guess").open(body("Hello, World!"),
+                SIGNATURE);
+        otherSecret.readAllBytes();
+        assertFalse(otherSecret.isValid());
+
+        for (String header : new String[] { null, "", "sha1=757107ea0eb2509fc211221cce984b8a37570b6d",
+                SIGNATURE.substring(0, SIGNATURE.length() - 1), SIGNATURE.replace('e', 'x') }) {
+            PayloadException e = assertThrows(PayloadException.class,
+                    () -> signature.open(body("Hello, World!"), header));
+            assertEquals(401, e.getStatus());
+        }
+    }
+
+    @Test
+    public void pooledMacsStartEveryRequestClean() throws Exception {
+        WebhookSignature signature = new WebhookSignature(SECRET);
+        // a request that was never read to its end must not hand its Mac on
+        signature.open(body("Hello, World!"), SIGNATURE).read(new byte[5]);
+        WebhookSignature.SignedBody tampered = signature.open(body("Hello, World?"), SIGNATURE);
+        tampered.readAllBytes();
+        assertFalse(tampered.isValid());
+
+        // two requests read at once, each with its own Mac
+        WebhookSignature.SignedBody first = signature.open(body("Hello, World!"), SIGNATURE);
+        WebhookSignature.SignedBody second = signature.open(body("Hello, World!"), SIGNATURE);
+        first.read(new byte[5]);
+        second.readAllBytes();
+        first.readAllBytes();
+        assertTrue(second.isValid());
+        assertTrue(first.isValid());
+        assertTrue(first.isValid());
+    }
+
+    @Test
+    public void signsWhatTheParserReads() throws Exception {
+        String payload = PushEventParserTest.payload(30);
+        WebhookSignature signature = new WebhookSignature(SECRET);
+        WebhookSignature.SignedBody body = signature.open(body(payload),
+                sign(SECRET, payload.getBytes(StandardCharsets.UTF_8)));
+        assertNotNull(PushEventParser.parse(body, Long.MAX_VALUE));
+        assertTrue(body.isValid());
+    }
+}
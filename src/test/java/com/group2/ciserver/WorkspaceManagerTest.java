@@ -0,0 +1,191 @@
+package com.group2.ciserver;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static com.group2.ciserver.TestRepos.commit;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+public class WorkspaceManagerTest {
+
+    @Test
+    public void concurrentJobsGetSeparateWorkspaces() throws Exception {
+        File remoteDir = Files.createTempDirectory("remoteRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).call();
+        RevCommit first = commit(remote, "App.java", "first");
+        RevCommit second = commit(remote, "App.java", "second");
+        String url = remoteDir.toURI().toString();
+
+        WorkspaceManager manager = new WorkspaceManager(Files.createTempDirectory("ci").toFile(), 2, 60000);
+        try (WorkspaceManager.Workspace a = manager.acquire(url, first.getName());
+                WorkspaceManager.Workspace b = manager.acquire(url, second.getName())) {
+            assertNotEquals(a.getDirectory(), b.getDirectory());
+            assertEquals("first", Files.readString(new File(a.getDirectory(), "App.java").toPath()));
+            assertEquals("second", Files.readString(new File(b.getDirectory(), "App.java").toPath()));
+        }
+        assertEquals(2, manager.getIdleCount());
+    }
+
+    @Test
+    public void releasedWorkspaceIsReusedAtNewCommit() throws Exception {
+        File remoteDir = Files.createTempDirectory("remoteRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).call();
+        RevCommit first = commit(remote, "App.java", "first");
+        String url = remoteDir.toURI().toString();
+
+        WorkspaceManager manager = new WorkspaceManager(Files.createTempDirectory("ci").toFile(), 1, 60000);
+        File firstDir;
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, first.getName())) {
+            firstDir = workspace.getDirectory();
+            Files.write(new File(firstDir, "stray.txt").toPath(), new byte[0]);
+        }
+
+        RevCommit second = commit(remote, "App.java", "second");
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, second.getName())) {
+            assertEquals(firstDir, workspace.getDirectory());
+            assertEquals("second", Files.readString(new File(firstDir, "App.java").toPath()));
+            assertFalse(new File(firstDir, "stray.txt").exists());
+        }
+    }
+
+    @Test
+    public void workspaceThatBuiltTheBranchIsPreferred() throws Exception {
+        File remoteDir = Files.createTempDirectory("remoteRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).call();
+        RevCommit master = commit(remote, "App.java", "master");
+        remote.checkout().setCreateBranch(true).setName("feature").call();
+        RevCommit feature = commit(remote, "App.java", "feature");
+        remote.checkout().setName("master").call();
+        String url = remoteDir.toURI().toString();
+
+        WorkspaceManager manager = new WorkspaceManager(Files.createTempDirectory("ci").toFile(), 2, 60000);
+        File masterDir;
+        try (WorkspaceManager.Workspace a = manager.acquire(url, "refs/heads/master", master.getName());
+                WorkspaceManager.Workspace b = manager.acquire(url, "refs/heads/feature", feature.getName())) {
+            masterDir = a.getDirectory();
+            assertNotEquals(masterDir, b.getDirectory());
+        }
+        assertEquals(2, manager.getMisses());
+
+        // the feature workspace was released last, but the master one built the branch
+        RevCommit next = commit(remote, "App.java", "next");
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, "refs/heads/master", next.getName())) {
+            assertEquals(masterDir, workspace.getDirectory());
+        }
+        assertEquals(1, manager.getBranchHits());
+        assertEquals(0, manager.getRepoHits());
+    }
+
+    @Test
+    public void sparseCheckoutOnlyWritesSelectedFiles() throws Exception {
+        File remoteDir = Files.createTempDirectory("remoteRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).call();
+        commit(remote, "pom.xml", "root");
+        commit(remote, "core/App.java", "first");
+        RevCommit first = commit(remote, "web/Web.java", "web");
+        String url = remoteDir.toURI().toString();
+
+        WorkspaceManager manager = new WorkspaceManager(Files.createTempDirectory("ci").toFile(), 1, 60000);
+        File dir;
+        long pomModified;
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, null, first.getName(),
+                path -> !path.startsWith("web/"))) {
+            dir = workspace.getDirectory();
+            assertEquals("first", Files.readString(new File(dir, "core/App.java").toPath()));
+            assertFalse(new File(dir, "web").exists());
+            pomModified = new File(dir, "pom.xml").lastModified();
+        }
+
+        Thread.sleep(1100);
+        RevCommit second = commit(remote, "core/App.java", "second");
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, null, second.getName(),
+                path -> !path.startsWith("web/"))) {
+            assertEquals(dir, workspace.getDirectory());
+            assertEquals("second", Files.readString(new File(dir, "core/App.java").toPath()));
+            // unchanged files are not written again
+            assertEquals(pomModified, new File(dir, "pom.xml").lastModified());
+            // a build that changes a tracked file
+            Files.writeString(new File(dir, "pom.xml").toPath(), "generated");
+        }
+
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, null, second.getName(),
+                path -> !path.startsWith("web/"))) {
+            assertEquals(dir, workspace.getDirectory());
+            assertEquals("root", Files.readString(new File(dir, "pom.xml").toPath()));
+        }
+
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, second.getName())) {
+            assertEquals(dir, workspace.getDirectory());
+            assertEquals("web", Files.readString(new File(dir, "web/Web.java").toPath()));
+            assertEquals("second", Files.readString(new File(dir, "core/App.java").toPath()));
+        }
+    }
+
+    @Test
+    public void idleWorkspacesAreCollected() throws Exception {
+        File remoteDir = Files.createTempDirectory("remoteRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).call();
+        RevCommit first = commit(remote, "App.java", "first");
+
+        WorkspaceManager manager = new WorkspaceManager(Files.createTempDirectory("ci").toFile(), 2, -1);
+        File dir;
+        try (WorkspaceManager.Workspace workspace = manager.acquire(remoteDir.toURI().toString(), first.getName())) {
+            dir = workspace.getDirectory();
+        }
+        assertEquals(1, manager.collectGarbage());
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void leastValuableSpaceIsReclaimedFirst() throws Exception {
+        File remoteDir = Files.createTempDirectory("remoteRepo").toFile();
+        Git remote = Git.init().setDirectory(remoteDir).call();
+        commit(remote, "pom.xml", "<project/>");
+        RevCommit first = commit(remote, "App.java", "first");
+        String url = remoteDir.toURI().toString();
+
+        WorkspaceManager manager = new WorkspaceManager(Files.createTempDirectory("ci").toFile(), 2, 60000);
+        File dir;
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, first.getName())) {
+            dir = workspace.getDirectory();
+            Files.createDirectories(new File(dir, "target/classes").toPath());
+            Files.write(new File(dir, "target/classes/App.class").toPath(), new byte[4096]);
+        }
+        File mirror = manager.getMirrors().getMirror(MirrorCache.repoKey(url));
+        assertTrue(mirror.exists());
+
+        assertTrue(manager.reclaim(1) >= 4096);
+        assertFalse(new File(dir, "target").exists());
+        assertTrue(new File(dir, "App.java").exists());
+        assertEquals(0, manager.getEvictions());
+
+        try (WorkspaceManager.Workspace workspace = manager.acquire(url, first.getName())) {
+            manager.reclaim(Long.MAX_VALUE);
+            assertTrue(mirror.exists(), "the mirror of a running job is kept");
+            assertTrue(new File(workspace.getDirectory(), "App.java").exists());
+        }
+        manager.reclaim(Long.MAX_VALUE);
+        assertFalse(dir.exists());
+        assertFalse(mirror.exists());
+        assertEquals(2, manager.getEvictions());
+        assertTrue(manager.getReclaimedBytes() >= 4096);
+    }
+
+    @Test
+    public void workspacesLeftBehindAreDeleted() throws Exception {
+        File root = Files.createTempDirectory("ci").toFile();
+        File orphan = new File(root, "workspaces/owner/repo/ws-7");
+        Files.createDirectories(orphan.toPath());
+        Files.write(new File(orphan, "App.java").toPath(), new byte[10]);
+
+        WorkspaceManager manager = new WorkspaceManager(root, 2, 60000);
+        manager.maintain();
+        assertFalse(orphan.exists());
+        assertEquals(10, manager.getReclaimedBytes());
+        assertEquals(0, manager.getUsedBytes());
+    }
+}